@@ -0,0 +1,161 @@
+package uk.codersparks.communitytreematerializedpath.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.repository.InMemoryCommunityRepository;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.service.CommunityChangeFeed;
+import uk.codersparks.communitytreematerializedpath.service.CommunityMetrics;
+import uk.codersparks.communitytreematerializedpath.service.CommunityService;
+import uk.codersparks.communitytreematerializedpath.service.CommunityTreeCache;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the tree operations of {@link CommunityService} against an {@link InMemoryCommunityRepository}.
+ *
+ * Run with <code>mvn -Pbenchmark test-compile exec:exec</code>, JMH options can be passed with
+ * <code>-Djmh.args="..."</code>, e.g. <code>-Djmh.args="generateTree -p nodeCount=1000"</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommunityServiceBenchmark {
+
+    private static final int DISTANCE_PAIRS = 1024;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int nodeCount;
+
+    @Param({"1", "2", "8", "256"})
+    public int maxDepth;
+
+    @Param({"1", "8", "1000"})
+    public int fanOut;
+
+    private InMemoryCommunityRepository repository;
+    private CommunityTreeCache treeCache;
+    private CommunityService communityService;
+    private CommunityTreeCache parallelTreeCache;
+    private CommunityService parallelCommunityService;
+
+    private String movedName;
+    private String movedOriginalParentName;
+    private boolean movedToRoot;
+
+    private String createParentName;
+    private int createdCount;
+
+    private String[] distanceFrom;
+    private String[] distanceTo;
+    private int distancePair;
+
+    @Setup(Level.Trial)
+    public void setupForest() {
+
+        repository = new InMemoryCommunityRepository();
+        treeCache = new CommunityTreeCache();
+        communityService = new CommunityService(repository, treeCache, new CommunityChangeFeed(new CommunityProperties()), new CommunityMetrics(new SimpleMeterRegistry()), new CommunityProperties());
+
+        CommunityProperties parallelProperties = new CommunityProperties();
+        parallelProperties.getTree().setBuildParallelism(Runtime.getRuntime().availableProcessors());
+        parallelTreeCache = new CommunityTreeCache();
+        parallelCommunityService = new CommunityService(repository, parallelTreeCache, new CommunityChangeFeed(new CommunityProperties()), new CommunityMetrics(new SimpleMeterRegistry()), parallelProperties);
+
+        List<Community> forest = SyntheticForest.generate(nodeCount, maxDepth, fanOut);
+        repository.insert(forest);
+
+        // Move the first non root community, it has the deepest sub tree available, between root and its parent. A flat
+        // forest has none, so its first root is moved between root and the next root instead.
+        Community moved = forest.stream().filter(c -> !c.getPath().equals(Community.PATH_SEPERATOR)).findFirst().orElse(null);
+        if (moved != null) {
+            movedName = moved.getName();
+            movedOriginalParentName = CommunityPaths.parentName(moved.getPath());
+            movedToRoot = false;
+        } else {
+            movedName = forest.get(0).getName();
+            movedOriginalParentName = forest.get(1).getName();
+            movedToRoot = true;
+        }
+
+        createParentName = forest.get(forest.size() / 2).getName();
+
+        Random random = new Random(42);
+        distanceFrom = new String[DISTANCE_PAIRS];
+        distanceTo = new String[DISTANCE_PAIRS];
+        for (int i = 0; i < DISTANCE_PAIRS; i++) {
+            distanceFrom[i] = forest.get(random.nextInt(forest.size())).getName();
+            distanceTo[i] = forest.get(random.nextInt(forest.size())).getName();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownServices() {
+        communityService.shutdown();
+        parallelCommunityService.shutdown();
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeCreatedCommunities() {
+        // Deleted through the service so its path cache forgets them and the next iteration can create them again
+        for (int i = 0; i < createdCount; i++) {
+            communityService.deleteCommunity("created" + i, false);
+        }
+        createdCount = 0;
+    }
+
+    @Benchmark
+    public List<CommunityTreeNode> generateTree_uncached() {
+        treeCache.invalidate();
+        return communityService.generateTree();
+    }
+
+    @Benchmark
+    public List<CommunityTreeNode> generateTree_uncachedParallel() {
+        parallelTreeCache.invalidate();
+        return parallelCommunityService.generateTree();
+    }
+
+    @Benchmark
+    public List<CommunityTreeNode> generateTree_cached() {
+        return communityService.generateTree();
+    }
+
+    @Benchmark
+    public Community moveCommunity() {
+        movedToRoot = !movedToRoot;
+        return communityService.moveCommunity(movedName, movedToRoot ? "" : movedOriginalParentName);
+    }
+
+    @Benchmark
+    public Community createCommunity() {
+        return communityService.createCommunity("created" + createdCount++, createParentName);
+    }
+
+    @Benchmark
+    public void distanceToCommonAncestor(Blackhole blackhole) {
+        int pair = distancePair++ & (DISTANCE_PAIRS - 1);
+        blackhole.consume(communityService.distanceToCommonAncestor(distanceFrom[pair], distanceTo[pair]));
+    }
+}
@@ -0,0 +1,55 @@
+package uk.codersparks.communitytreematerializedpath.benchmark;
+
+import uk.codersparks.communitytreematerializedpath.model.Community;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Generates a forest of communities breadth first. Every community gets up to <code>fanOut</code> children until
+ * <code>maxDepth</code> is reached, at which point a new root is started, so a depth of 1 gives a flat list of
+ * roots and a fan out of 1 gives chains <code>maxDepth</code> long.
+ */
+public final class SyntheticForest {
+
+    private SyntheticForest() {
+    }
+
+    public static List<Community> generate(int nodeCount, int maxDepth, int fanOut) {
+
+        List<Community> communities = new ArrayList<>(nodeCount);
+        Deque<Community> pending = new ArrayDeque<>();
+        Deque<Integer> pendingDepths = new ArrayDeque<>();
+
+        while (communities.size() < nodeCount) {
+
+            Community root = new Community("c" + communities.size(), Community.PATH_SEPERATOR);
+            communities.add(root);
+            pending.add(root);
+            pendingDepths.add(1);
+
+            while (!pending.isEmpty() && communities.size() < nodeCount) {
+                Community parent = pending.poll();
+                int depth = pendingDepths.poll();
+
+                if (depth >= maxDepth) {
+                    continue;
+                }
+
+                for (int i = 0; i < fanOut && communities.size() < nodeCount; i++) {
+                    Community child = new Community("c" + communities.size(), parent.getIdentityPath());
+                    communities.add(child);
+                    pending.add(child);
+                    pendingDepths.add(depth + 1);
+                }
+            }
+
+            pending.clear();
+            pendingDepths.clear();
+        }
+
+        return communities;
+    }
+}
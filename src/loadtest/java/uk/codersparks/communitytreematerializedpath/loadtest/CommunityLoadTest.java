@@ -0,0 +1,247 @@
+package uk.codersparks.communitytreematerializedpath.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RestTemplate;
+import uk.codersparks.communitytreematerializedpath.CommunityTreeMaterializedPathApplication;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load tests the whole application, from HTTP through to MongoDB, with a mix of tree reads, creates, moves and
+ * distance queries sent by many clients at once, and reports the throughput and latency percentiles of each endpoint.
+ *
+ * The application is started in this JVM against either an in-memory MongoDB started alongside it or a local one, and
+ * seeded with a generated forest. Nothing is sent beyond the loopback interface. Run with
+ * <code>mvn -Ploadtest test-compile exec:exec</code>, settings are passed with <code>-Dloadtest.args="..."</code>, e.g.
+ * <code>-Dloadtest.args="--loadtest.clients=32 --loadtest.mix=tree:1,distance:9 --community.seed.communities=100000"</code>.
+ * Arguments other than the {@link LoadTestSettings} are passed to the application.
+ */
+public class CommunityLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityLoadTest.class);
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private static final int NAMES_PAGE_SIZE = 500;
+
+    /**
+     * Application settings used unless they are given as arguments
+     */
+    private static final Map<String, String> DEFAULT_APPLICATION_SETTINGS = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_APPLICATION_SETTINGS.put("server.address", LOCALHOST);
+        DEFAULT_APPLICATION_SETTINGS.put("server.port", "0");
+        DEFAULT_APPLICATION_SETTINGS.put("community.seed.mode", "FOREST");
+        DEFAULT_APPLICATION_SETTINGS.put("community.seed.replace", "true");
+        DEFAULT_APPLICATION_SETTINGS.put("community.seed.communities", "10000");
+        DEFAULT_APPLICATION_SETTINGS.put("community.seed.roots", "10");
+    }
+
+    private final LoadTestSettings settings;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    public CommunityLoadTest(LoadTestSettings settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        List<String> applicationArgs = new ArrayList<>();
+        LoadTestSettings settings = LoadTestSettings.fromArgs(args, applicationArgs);
+
+        new CommunityLoadTest(settings).run(applicationArgs);
+
+        // Whatever the application left running, the test is over
+        System.exit(0);
+    }
+
+    public void run(List<String> applicationArgs) throws Exception {
+
+        // The application is started from a plain main method, which devtools would otherwise restart
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        // Lets every client keep its connection open between requests
+        System.setProperty("http.maxConnections", String.valueOf(settings.getClients()));
+
+        MongoServer embeddedMongo = null;
+        String mongoUri = settings.getMongo();
+        if (settings.isEmbeddedMongo()) {
+            embeddedMongo = new MongoServer(new MemoryBackend());
+            embeddedMongo.bind(LOCALHOST, 0);
+            InetSocketAddress address = embeddedMongo.getLocalAddress();
+            mongoUri = "mongodb://" + LOCALHOST + ":" + address.getPort() + "/community-loadtest";
+            logger.info("Started in-memory MongoDB at {}", address);
+        }
+
+        List<String> args = new ArrayList<>(applicationArgs);
+        args.add("--spring.data.mongodb.uri=" + mongoUri);
+        DEFAULT_APPLICATION_SETTINGS.forEach((name, value) -> {
+            if (args.stream().noneMatch(arg -> arg.startsWith("--" + name + "="))) {
+                args.add("--" + name + "=" + value);
+            }
+        });
+
+        logger.info("Starting the application with {}", args);
+
+        ConfigurableApplicationContext application = new SpringApplicationBuilder(CommunityTreeMaterializedPathApplication.class)
+                .run(args.toArray(new String[0]));
+        try {
+            String baseUrl = "http://" + LOCALHOST + ":" + application.getEnvironment().getProperty("local.server.port") + "/api/community";
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("settings", describeSettings(args));
+            report.putAll(sendRequests(baseUrl));
+
+            File reportFile = new File(settings.getReport());
+            if (reportFile.getAbsoluteFile().getParentFile() != null) {
+                reportFile.getAbsoluteFile().getParentFile().mkdirs();
+            }
+            objectMapper.writeValue(reportFile, report);
+
+            logger.info("Load test report written to {}\n{}", reportFile.getAbsolutePath(), objectMapper.writeValueAsString(report.get("total")));
+        } finally {
+            application.close();
+            if (embeddedMongo != null) {
+                embeddedMongo.shutdownNow();
+            }
+        }
+    }
+
+    private Map<String, Object> sendRequests(String baseUrl) throws Exception {
+
+        RestTemplate restTemplate = restTemplate();
+
+        List<String> names = readNames(restTemplate, baseUrl);
+
+        Set<String> rootNameSet = new HashSet<>();
+        restTemplate.getForObject(baseUrl + "/tree?depth=1", JsonNode.class).forEach(root -> rootNameSet.add(root.get("name").asText()));
+        List<String> rootNames = new ArrayList<>(rootNameSet);
+
+        List<String> nonRootNames = new ArrayList<>(names);
+        nonRootNames.removeAll(rootNameSet);
+
+        if (names.isEmpty() || (settings.getMix().containsKey(Operation.MOVE) && (rootNames.isEmpty() || nonRootNames.isEmpty()))) {
+            throw new IllegalStateException("The forest has " + rootNames.size() + " roots and " + nonRootNames.size()
+                    + " other communities, which is not enough to send the mix " + settings.getMix());
+        }
+
+        logger.info("Sending {} with {} clients to {} communities, warming up for {}s then measuring for {}s", settings.getMix(),
+                settings.getClients(), names.size(), settings.getWarmupSeconds(), settings.getDurationSeconds());
+
+        // Communities created by this run are named apart from any left by an earlier one
+        String createdNamePrefix = "loadtest-" + Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + "-";
+
+        LatencyRecorder recorder = new LatencyRecorder();
+        long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.getWarmupSeconds());
+        long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(settings.getDurationSeconds());
+
+        ExecutorService clients = Executors.newFixedThreadPool(settings.getClients());
+        try {
+            for (int i = 0; i < settings.getClients(); i++) {
+                clients.execute(new LoadTestClient(i, baseUrl, restTemplate, objectMapper, recorder, settings, names, rootNames,
+                        nonRootNames, createdNamePrefix, measureFrom, measureUntil));
+            }
+
+            clients.shutdown();
+            long waitNanos = measureUntil - System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            if (!clients.awaitTermination(waitNanos, TimeUnit.NANOSECONDS)) {
+                throw new IllegalStateException("Clients were still waiting for responses a minute after the test ended");
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+
+        return recorder.report(measureUntil - measureFrom);
+    }
+
+    /**
+     * Reads the names of every community a page at a time, each page starting after the last name of the one before
+     */
+    private static List<String> readNames(RestTemplate restTemplate, String baseUrl) {
+
+        List<String> names = new ArrayList<>();
+        String after = null;
+        while (true) {
+            JsonNode page = after == null
+                    ? restTemplate.getForObject(baseUrl + "/?limit={limit}", JsonNode.class, NAMES_PAGE_SIZE)
+                    : restTemplate.getForObject(baseUrl + "/?limit={limit}&after={after}", JsonNode.class, NAMES_PAGE_SIZE, after);
+
+            page.forEach(name -> names.add(name.asText()));
+            if (page.size() < NAMES_PAGE_SIZE) {
+                return names;
+            }
+            after = names.get(names.size() - 1);
+        }
+    }
+
+    /**
+     * The settings of the run, so reports of differently configured runs are not compared by mistake
+     */
+    private Map<String, Object> describeSettings(List<String> applicationArgs) {
+
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("mongo", settings.isEmbeddedMongo() ? LoadTestSettings.EMBEDDED_MONGO : "local");
+        description.put("clients", settings.getClients());
+        description.put("warmupSeconds", settings.getWarmupSeconds());
+        description.put("durationSeconds", settings.getDurationSeconds());
+        description.put("rate", settings.getRate());
+
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        settings.getMix().forEach((operation, weight) -> mix.put(operation.getKey(), weight));
+        description.put("mix", mix);
+
+        description.put("randomSeed", settings.getRandomSeed());
+
+        List<String> args = new ArrayList<>();
+        for (String arg : applicationArgs) {
+            if (!arg.startsWith("--spring.data.mongodb.uri=")) {
+                args.add(arg);
+            }
+        }
+        description.put("applicationArgs", args);
+
+        return description;
+    }
+
+    /**
+     * A rest template reading every response through, so error responses are timed like any other rather than thrown
+     */
+    private RestTemplate restTemplate() {
+
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(10));
+        requestFactory.setReadTimeout((int) TimeUnit.MINUTES.toMillis(1));
+
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response) {
+                return false;
+            }
+        });
+
+        return restTemplate;
+    }
+}
@@ -0,0 +1,105 @@
+package uk.codersparks.communitytreematerializedpath.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the latencies of the measured requests of each operation in HDR histograms, which any number of clients can
+ * record into at once without losing the tail of the distribution
+ */
+public class LatencyRecorder {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+
+    public LatencyRecorder() {
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder(SIGNIFICANT_DIGITS));
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * @param error whether the request failed or its response was not a success, its latency is still recorded
+     */
+    public void record(Operation operation, long latencyNanos, boolean error) {
+
+        recorders.get(operation).recordValue(latencyNanos);
+
+        if (error) {
+            errors.get(operation).increment();
+        }
+    }
+
+    /**
+     * The requests, errors, throughput and latency percentiles of each operation that was sent and of all of them
+     * together, with latencies in milliseconds. Only to be called once the clients have stopped recording.
+     */
+    public Map<String, Object> report(long measuredNanos) {
+
+        double measuredSeconds = measuredNanos / (double) TimeUnit.SECONDS.toNanos(1);
+
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+        long totalErrors = 0;
+
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = recorders.get(operation).getIntervalHistogram();
+            long operationErrors = errors.get(operation).sum();
+
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+
+            Map<String, Object> endpoint = new LinkedHashMap<>();
+            endpoint.put("endpoint", operation.getEndpoint());
+            endpoint.putAll(summary(histogram, operationErrors, measuredSeconds));
+            endpoints.put(operation.getKey(), endpoint);
+
+            total.add(histogram);
+            totalErrors += operationErrors;
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("endpoints", endpoints);
+        report.put("total", summary(total, totalErrors, measuredSeconds));
+        return report;
+    }
+
+    private static Map<String, Object> summary(Histogram histogram, long errors, double measuredSeconds) {
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("requests", histogram.getTotalCount());
+        summary.put("errors", errors);
+        summary.put("throughputPerSecond", round(histogram.getTotalCount() / measuredSeconds));
+
+        Map<String, Object> latency = new LinkedHashMap<>();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            latency.put(PERCENTILE_NAMES[i], millis(histogram.getValueAtPercentile(PERCENTILES[i])));
+        }
+        latency.put("max", millis(histogram.getMaxValue()));
+        latency.put("mean", millis(histogram.getMean()));
+        summary.put("latencyMillis", latency);
+
+        return summary;
+    }
+
+    private static double millis(double nanos) {
+        return round(nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
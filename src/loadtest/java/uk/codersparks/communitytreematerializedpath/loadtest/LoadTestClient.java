@@ -0,0 +1,163 @@
+package uk.codersparks.communitytreematerializedpath.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import uk.codersparks.communitytreematerializedpath.model.NewCommunity;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One client of a load test, sending one request at a time until the test ends. Each request is chosen at random by
+ * the weights of the mix, and its latency recorded if it was both sent and answered while the test was measuring.
+ */
+public class LoadTestClient implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadTestClient.class);
+
+    private final int index;
+    private final String baseUrl;
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper;
+    private final LatencyRecorder recorder;
+    private final Random random;
+
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+
+    private final List<String> names;
+    private final List<String> nonRootNames;
+    private final List<String> rootNames;
+    private final String createdNamePrefix;
+
+    private final long measureFrom;
+    private final long measureUntil;
+
+    /**
+     * Nanoseconds between the requests of this client when sending at a rate, otherwise 0
+     */
+    private final long intervalNanos;
+    private final long startOffsetNanos;
+
+    private long created;
+
+    /**
+     * @param measureFrom  the nano time requests start being measured
+     * @param measureUntil the nano time the test ends
+     */
+    public LoadTestClient(int index, String baseUrl, RestTemplate restTemplate, ObjectMapper objectMapper, LatencyRecorder recorder,
+                          LoadTestSettings settings, List<String> names, List<String> rootNames, List<String> nonRootNames,
+                          String createdNamePrefix, long measureFrom, long measureUntil) {
+        this.index = index;
+        this.baseUrl = baseUrl;
+        this.restTemplate = restTemplate;
+        this.objectMapper = objectMapper;
+        this.recorder = recorder;
+        this.random = new Random(settings.getRandomSeed() + index);
+        this.names = names;
+        this.rootNames = rootNames;
+        this.nonRootNames = nonRootNames;
+        this.createdNamePrefix = createdNamePrefix;
+        this.measureFrom = measureFrom;
+        this.measureUntil = measureUntil;
+        this.intervalNanos = settings.getRate() > 0 ? (long) (settings.getClients() * TimeUnit.SECONDS.toNanos(1) / settings.getRate()) : 0;
+        this.startOffsetNanos = intervalNanos * index / settings.getClients();
+
+        Map<Operation, Integer> mix = settings.getMix();
+        this.operations = mix.keySet().toArray(new Operation[0]);
+        this.cumulativeWeights = new int[operations.length];
+        int weights = 0;
+        for (int i = 0; i < operations.length; i++) {
+            weights += mix.get(operations[i]);
+            cumulativeWeights[i] = weights;
+        }
+    }
+
+    @Override
+    public void run() {
+
+        // Clients sending at a rate are spread evenly over the interval rather than all starting at once
+        long due = System.nanoTime() + startOffsetNanos;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.nanoTime();
+            if (now - measureUntil >= 0) {
+                return;
+            }
+
+            long start = now;
+            if (intervalNanos > 0) {
+                if (due - now > 0) {
+                    LockSupport.parkNanos(due - now);
+                }
+                start = due;
+                due += intervalNanos;
+            }
+
+            Operation operation = nextOperation();
+
+            boolean error;
+            try {
+                error = !send(operation).getStatusCode().is2xxSuccessful();
+            } catch (RestClientException | JsonProcessingException e) {
+                logger.debug("Client {} could not send {}", index, operation, e);
+                error = true;
+            }
+
+            long end = System.nanoTime();
+            if (start - measureFrom >= 0 && end - measureUntil < 0) {
+                recorder.record(operation, end - start, error);
+            }
+        }
+    }
+
+    private Operation nextOperation() {
+
+        int weight = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (weight < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        throw new IllegalStateException("Weight " + weight + " is beyond the mix");
+    }
+
+    private ResponseEntity<byte[]> send(Operation operation) throws JsonProcessingException {
+
+        switch (operation) {
+            case TREE:
+                return restTemplate.exchange(baseUrl + "/tree", HttpMethod.GET, null, byte[].class);
+            case CREATE:
+                List<NewCommunity> newCommunities = Collections.singletonList(new NewCommunity(createdNamePrefix + index + "-" + created++, pick(names)));
+                HttpHeaders headers = new HttpHeaders();
+                headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+                return restTemplate.exchange(baseUrl + "/", HttpMethod.POST, new HttpEntity<>(objectMapper.writeValueAsBytes(newCommunities), headers),
+                        byte[].class);
+            case MOVE:
+                return restTemplate.exchange(baseUrl + "/tree/{id}/parent/{parent}", HttpMethod.POST, null, byte[].class,
+                        pick(nonRootNames), pick(rootNames));
+            case DISTANCE:
+                return restTemplate.exchange(baseUrl + "/tree/{id}/distance/{to}", HttpMethod.GET, null, byte[].class,
+                        pick(names), pick(names));
+            default:
+                throw new IllegalArgumentException("Cannot send " + operation);
+        }
+    }
+
+    private String pick(List<String> from) {
+        return from.get(random.nextInt(from.size()));
+    }
+}
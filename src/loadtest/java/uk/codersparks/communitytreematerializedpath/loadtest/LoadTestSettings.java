@@ -0,0 +1,156 @@
+package uk.codersparks.communitytreematerializedpath.loadtest;
+
+import lombok.Data;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings of a load test, given as <code>--loadtest.name=value</code> arguments. Every other argument is passed on to
+ * the application under test.
+ */
+@Data
+public class LoadTestSettings {
+
+    public static final String EMBEDDED_MONGO = "embedded";
+
+    private static final String PREFIX = "--loadtest.";
+
+    /**
+     * Either <code>embedded</code> for an in-memory MongoDB started in the same JVM, listening on the loopback
+     * interface only, or the URI of a local MongoDB. The communities in its database are replaced when seeding.
+     */
+    private String mongo = EMBEDDED_MONGO;
+
+    /**
+     * Number of clients sending requests at once, each waiting for its response before sending the next
+     */
+    private int clients = 16;
+
+    /**
+     * Seconds requests are sent for before measuring, to warm up the caches and the JIT
+     */
+    private int warmupSeconds = 10;
+
+    /**
+     * Seconds requests are measured for
+     */
+    private int durationSeconds = 60;
+
+    /**
+     * Requests per second sent by all clients together, 0 to send them as fast as the responses come back. With a
+     * rate, latencies are measured from when each request was due rather than when it was sent, so a slow response
+     * also counts against the requests it held up.
+     */
+    private double rate = 0;
+
+    /**
+     * Relative weights of the operations, as <code>operation:weight</code> pairs separated by commas
+     */
+    private Map<Operation, Integer> mix = parseMix("tree:5,create:25,move:10,distance:60");
+
+    /**
+     * File the report is written to as JSON
+     */
+    private String report = "target/loadtest-report.json";
+
+    /**
+     * Seed of the random numbers choosing the operations and the communities they are sent for
+     */
+    private long randomSeed = 1;
+
+    /**
+     * Reads the load test settings from the arguments, adding the rest to <code>applicationArgs</code>
+     */
+    public static LoadTestSettings fromArgs(String[] args, List<String> applicationArgs) {
+
+        LoadTestSettings settings = new LoadTestSettings();
+
+        for (String arg : args) {
+            if (!arg.startsWith(PREFIX)) {
+                applicationArgs.add(arg);
+                continue;
+            }
+
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Load test setting has no value: " + arg);
+            }
+
+            String name = arg.substring(PREFIX.length(), separator);
+            String value = arg.substring(separator + 1);
+
+            switch (name) {
+                case "mongo":
+                    settings.setMongo(value);
+                    break;
+                case "clients":
+                    settings.setClients(Integer.parseInt(value));
+                    break;
+                case "warmup-seconds":
+                    settings.setWarmupSeconds(Integer.parseInt(value));
+                    break;
+                case "duration-seconds":
+                    settings.setDurationSeconds(Integer.parseInt(value));
+                    break;
+                case "rate":
+                    settings.setRate(Double.parseDouble(value));
+                    break;
+                case "mix":
+                    settings.setMix(parseMix(value));
+                    break;
+                case "report":
+                    settings.setReport(value);
+                    break;
+                case "random-seed":
+                    settings.setRandomSeed(Long.parseLong(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown load test setting: " + name);
+            }
+        }
+
+        if (settings.getClients() < 1) {
+            throw new IllegalArgumentException("There must be at least one client: " + settings.getClients());
+        }
+        if (settings.getWarmupSeconds() < 0 || settings.getDurationSeconds() < 1) {
+            throw new IllegalArgumentException("Requests must be measured for at least a second after a warm up that is not negative");
+        }
+        if (settings.getRate() < 0) {
+            throw new IllegalArgumentException("Rate cannot be negative: " + settings.getRate());
+        }
+
+        return settings;
+    }
+
+    public boolean isEmbeddedMongo() {
+        return EMBEDDED_MONGO.equals(mongo);
+    }
+
+    static Map<Operation, Integer> parseMix(String mix) {
+
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+
+        for (String pair : mix.split(",")) {
+            String[] parts = pair.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Mix entries are operation:weight pairs: " + pair);
+            }
+
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weight cannot be negative: " + pair);
+            }
+            if (weight > 0) {
+                weights.put(Operation.fromKey(parts[0].trim()), weight);
+            }
+        }
+
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("Mix has no operations with a weight: " + mix);
+        }
+
+        return weights;
+    }
+}
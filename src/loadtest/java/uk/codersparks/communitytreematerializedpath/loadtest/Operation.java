@@ -0,0 +1,58 @@
+package uk.codersparks.communitytreematerializedpath.loadtest;
+
+/**
+ * The requests the load test sends, each reported as its own endpoint
+ */
+public enum Operation {
+
+    /**
+     * Reads the whole tree
+     */
+    TREE("tree", "GET /api/community/tree"),
+
+    /**
+     * Creates a community under a random seeded community
+     */
+    CREATE("create", "POST /api/community/"),
+
+    /**
+     * Moves a random seeded community that is not a root, with its sub tree, under a random root. Roots are never
+     * moved, so the move can never be into the community's own sub tree.
+     */
+    MOVE("move", "POST /api/community/tree/{id}/parent/{parent}"),
+
+    /**
+     * Finds the distance from a random seeded community to its common ancestor with another
+     */
+    DISTANCE("distance", "GET /api/community/tree/{id}/distance/{to}");
+
+    private final String key;
+    private final String endpoint;
+
+    Operation(String key, String endpoint) {
+        this.key = key;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * The name of the operation in the mix and the report
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public static Operation fromKey(String key) {
+
+        for (Operation operation : values()) {
+            if (operation.key.equals(key)) {
+                return operation;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown operation: " + key);
+    }
+}
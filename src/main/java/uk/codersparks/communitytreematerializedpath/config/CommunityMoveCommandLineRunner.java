@@ -0,0 +1,38 @@
+package uk.codersparks.communitytreematerializedpath.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import uk.codersparks.communitytreematerializedpath.model.CommunityMove;
+import uk.codersparks.communitytreematerializedpath.service.CommunityService;
+
+/**
+ * Picks up the batched moves left unfinished when the application last stopped, so the sub trees they split are
+ * kept from other moves until each is resumed or rolled back through <code>/api/community/moves</code>. Runs before
+ * the tree cache is warmed from a snapshot, so the split tree is never cached.
+ */
+@Configuration
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class CommunityMoveCommandLineRunner implements CommandLineRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityMoveCommandLineRunner.class);
+
+    private final CommunityService communityService;
+
+    public CommunityMoveCommandLineRunner(CommunityService communityService) {
+        this.communityService = communityService;
+    }
+
+    @Override
+    public void run(String... strings) throws Exception {
+
+        for (CommunityMove move : communityService.getUnfinishedMoves()) {
+            logger.warn("Move {} of {} from {} to {} is {} with {} of {} descendants rewritten, it can be resumed or rolled back",
+                    move.getId(), move.getName(), move.getOriginalPath(), move.getNewPath(), move.getState(),
+                    move.getRewrittenCount(), move.getDescendantCount());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package uk.codersparks.communitytreematerializedpath.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings under the <code>community</code> prefix
+ */
+@Component
+@ConfigurationProperties(prefix = "community")
+@Data
+public class CommunityProperties {
+
+    private Schema schema = new Schema();
+
+    private Locks locks = new Locks();
+
+    private Feed feed = new Feed();
+
+    private Snapshot snapshot = new Snapshot();
+
+    private Seed seed = new Seed();
+
+    private Stats stats = new Stats();
+
+    private PathCache pathCache = new PathCache();
+
+    private Tree tree = new Tree();
+
+    private Moves moves = new Moves();
+
+    @Data
+    public static class Schema {
+
+        /**
+         * Also store the names of the ancestors of each community in an indexed array, so descendants are found by
+         * index equality on a name instead of a path prefix. Turning this off removes the arrays on the next start.
+         */
+        private boolean ancestors = false;
+
+        /**
+         * Build paths from short surrogate keys instead of names, so paths stay small and renaming a community does
+         * not rewrite the paths of its descendants. Changing this rewrites every path on the next start.
+         */
+        private boolean keys = false;
+    }
+
+    @Data
+    public static class Locks {
+
+        /**
+         * Number of read/write locks that community names are striped over when creating and moving communities
+         */
+        private int stripes = 1024;
+    }
+
+    @Data
+    public static class Feed {
+
+        /**
+         * Number of recent changes kept for clients catching up, a client further behind has to fetch the tree again
+         */
+        private int capacity = 1024;
+    }
+
+    @Data
+    public static class Snapshot {
+
+        /**
+         * File the tree is snapshotted to on shut down and loaded from on start up, unset to always load the tree
+         * from the database
+         */
+        private String file;
+    }
+
+    @Data
+    public static class Stats {
+
+        /**
+         * Number of communities whose sub tree stats are cached, they are recomputed after any change to the forest
+         */
+        private int cacheSize = 1024;
+    }
+
+    @Data
+    public static class PathCache {
+
+        /**
+         * Number of communities whose paths are cached for checking and placing the communities created and moved
+         * under them, 0 turns the cache off
+         */
+        private int size = 10_000;
+
+        /**
+         * Seconds a cached path is used for before it is read again, which bounds how long a change made through
+         * another instance can go unseen
+         */
+        private long timeToLiveSeconds = 60;
+    }
+
+    @Data
+    public static class Tree {
+
+        /**
+         * Number of sub trees read and assembled at once when the whole tree is built, 1 builds it in a single pass
+         */
+        private int buildParallelism = 1;
+
+        /**
+         * Milliseconds between reads of the tree stamp to find writes made through other instances, which drop the
+         * cached tree and move the change version on, 0 never reads it for a single instance
+         */
+        private long stampCheckIntervalMillis = 1000;
+    }
+
+    @Data
+    public static class Moves {
+
+        /**
+         * Number of descendants rewritten at a time by a batched move, each batch holding the locks of the move only
+         * while it runs
+         */
+        private int batchSize = 1000;
+    }
+
+    @Data
+    public static class Seed {
+
+        public enum Mode {
+            /**
+             * Leave the communities as they are
+             */
+            NONE,
+            /**
+             * A small sample forest of two trees
+             */
+            SAMPLE,
+            /**
+             * A generated forest shaped by the settings below
+             */
+            FOREST
+        }
+
+        private Mode mode = Mode.SAMPLE;
+
+        /**
+         * Remove the existing communities before seeding, otherwise communities are only seeded when there are none.
+         * Other collections are never touched.
+         */
+        private boolean replace = true;
+
+        /**
+         * Number of communities in a generated forest
+         */
+        private long communities = 100_000;
+
+        /**
+         * Number of root communities in a generated forest
+         */
+        private int roots = 10;
+
+        /**
+         * Depth of the deepest communities in a generated forest, roots are at depth 0
+         */
+        private int maxDepth = 8;
+
+        private int minFanOut = 1;
+
+        private int maxFanOut = 16;
+
+        /**
+         * Fan-outs are drawn with a probability proportional to <code>1 / (fanOut - minFanOut + 1)^skew</code>, so 0
+         * draws them uniformly and larger values make small fan-outs more common
+         */
+        private double fanOutSkew = 1.0;
+
+        private int minNameLength = 8;
+
+        private int maxNameLength = 16;
+
+        /**
+         * Seed of the random numbers, the same settings and seed always generate the same forest
+         */
+        private long randomSeed = 1;
+    }
+}
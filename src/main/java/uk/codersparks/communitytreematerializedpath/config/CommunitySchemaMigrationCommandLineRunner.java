@@ -0,0 +1,66 @@
+package uk.codersparks.communitytreematerializedpath.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import uk.codersparks.communitytreematerializedpath.repository.CommunityRepository;
+
+/**
+ * Brings communities saved by earlier versions up to the current schema before anything else reads them
+ */
+@Configuration
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class CommunitySchemaMigrationCommandLineRunner implements CommandLineRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunitySchemaMigrationCommandLineRunner.class);
+
+    private final CommunityRepository repository;
+    private final CommunityProperties properties;
+
+    public CommunitySchemaMigrationCommandLineRunner(CommunityRepository repository, CommunityProperties properties) {
+        this.repository = repository;
+        this.properties = properties;
+    }
+
+    @Override
+    public void run(String... strings) throws Exception {
+
+        long updated = repository.backfillDepth();
+
+        if (updated > 0) {
+            logger.info("Backfilled the depth of {} communities", updated);
+        }
+
+        updated = repository.backfillVersion();
+
+        if (updated > 0) {
+            logger.info("Backfilled the version of {} communities", updated);
+        }
+
+        // Paths are rebuilt before the ancestors as the ancestors are taken from the paths
+        boolean keys = properties.getSchema().isKeys();
+        if (repository.countByKeyExists(!keys) > 0) {
+            updated = repository.rewritePaths(keys);
+            repository.advanceTreeStamp();
+
+            logger.info("Rewrote the paths of {} communities to be built from {}", updated, keys ? "keys" : "names");
+        }
+
+        if (properties.getSchema().isAncestors()) {
+            updated = repository.backfillAncestors();
+
+            if (updated > 0) {
+                logger.info("Backfilled the ancestors of {} communities", updated);
+            }
+        } else {
+            updated = repository.removeAncestors();
+
+            if (updated > 0) {
+                logger.info("Removed the ancestors of {} communities as the ancestors schema is disabled", updated);
+            }
+        }
+    }
+}
@@ -4,49 +4,96 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.mongodb.core.MongoOperations;
-import uk.codersparks.communitytreematerializedpath.model.Community;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import uk.codersparks.communitytreematerializedpath.model.NewCommunity;
+import uk.codersparks.communitytreematerializedpath.service.CommunityForestGenerator;
 import uk.codersparks.communitytreematerializedpath.service.CommunityService;
 
+import java.util.Arrays;
+
+/**
+ * Seeds the communities as chosen by <code>community.seed.mode</code>, after the schema is migrated and before the
+ * tree is loaded
+ */
 @Configuration
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
 public class CommunitySeedingCommandLineRunner implements CommandLineRunner {
 
     private static final Logger logger = LoggerFactory.getLogger(CommunitySeedingCommandLineRunner.class);
 
-    private final MongoOperations mongoOperations;
     private final CommunityService communityService;
+    private final CommunityProperties properties;
 
-    public CommunitySeedingCommandLineRunner(MongoOperations mongoOperations, CommunityService communityService) {
-        this.mongoOperations = mongoOperations;
+    public CommunitySeedingCommandLineRunner(CommunityService communityService, CommunityProperties properties) {
         this.communityService = communityService;
+        this.properties = properties;
     }
 
     @Override
     public void run(String... strings) throws Exception {
 
-        mongoOperations.getCollectionNames().forEach(name -> mongoOperations.dropCollection(name));
+        CommunityProperties.Seed seed = properties.getSeed();
+
+        if (seed.getMode() == CommunityProperties.Seed.Mode.NONE) {
+            return;
+        }
+
+        if (seed.isReplace()) {
+            communityService.removeAllCommunities();
+        } else if (communityService.countCommunities() > 0) {
+            logger.info("Not seeding as there are already communities");
+            return;
+        }
+
+        switch (seed.getMode()) {
+            case SAMPLE:
+                seedSample();
+                break;
+            case FOREST:
+                seedForest(seed);
+                break;
+        }
+    }
+
+    private void seedSample() {
 
-        Community community1 = communityService.createCommunity("com1", "");
-        Community community1_1 = communityService.createCommunity("com1_1", "com1");
-        Community community1_2 = communityService.createCommunity("com1_2", "com1");
-        Community community1_3 = communityService.createCommunity("com1_3", "com1");
+        communityService.createCommunities(Arrays.asList(
+                new NewCommunity("com1", ""),
+                new NewCommunity("com1_1", "com1"),
+                new NewCommunity("com1_2", "com1"),
+                new NewCommunity("com1_3", "com1"),
+
+                new NewCommunity("com1_2_1", "com1_2"),
+                new NewCommunity("com1_2_2", "com1_2"),
+                new NewCommunity("com1_2_3", "com1_2"),
+                new NewCommunity("com1_2_4", "com1_2"),
+
+
+                new NewCommunity("com2", null),
+                new NewCommunity("com2_1", "com2"),
+                new NewCommunity("com2_2", "com2"),
+                new NewCommunity("com2_3", "com2"),
+
+                new NewCommunity("com2_1_1", "com2_1"),
+                new NewCommunity("com2_1_2", "com2_1"),
+                new NewCommunity("com2_1_3", "com2_1"),
+                new NewCommunity("com2_1_4", "com2_1")
+        ));
+
+        logger.info("Seeded {} communities", communityService.countCommunities());
+    }
 
-        Community community1_2_1 = communityService.createCommunity("com1_2_1", "com1_2");
-        Community community1_2_2 = communityService.createCommunity("com1_2_2", "com1_2");
-        Community community1_2_3 = communityService.createCommunity("com1_2_3", "com1_2");
-        Community community1_2_4 = communityService.createCommunity("com1_2_4", "com1_2");
+    private void seedForest(CommunityProperties.Seed seed) {
 
+        CommunityForestGenerator generator = new CommunityForestGenerator(seed);
 
-        Community community2 = communityService.createCommunity("com2", null);
-        Community community2_1 = communityService.createCommunity("com2_1", "com2");
-        Community community2_2 = communityService.createCommunity("com2_2", "com2");
-        Community community2_3 = communityService.createCommunity("com2_3", "com2");
+        logger.info("Generating a forest of {} communities", generator.size());
 
-        Community community2_1_1 = communityService.createCommunity("com2_1_1", "com2_1");
-        Community community2_1_2 = communityService.createCommunity("com2_1_2", "com2_1");
-        Community community2_1_3 = communityService.createCommunity("com2_1_3", "com2_1");
-        Community community2_1_4 = communityService.createCommunity("com2_1_4", "com2_1");
+        long start = System.nanoTime();
+        long imported = communityService.importForest(generator);
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
 
-        logger.info("Communities: {}", communityService.getAllCommunities());
+        logger.info("Seeded {} generated communities in {} ms ({} per second)", imported, millis, imported * 1000 / millis);
     }
 }
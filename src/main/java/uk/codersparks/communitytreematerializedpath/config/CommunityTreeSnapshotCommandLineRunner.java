@@ -0,0 +1,73 @@
+package uk.codersparks.communitytreematerializedpath.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import uk.codersparks.communitytreematerializedpath.service.CommunityService;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Warms the tree cache from the snapshot file on start up, once the communities are migrated and seeded and the
+ * unfinished batched moves picked up, and writes a fresh snapshot on shut down so the next start up can do the same
+ */
+@Configuration
+@Order(Ordered.HIGHEST_PRECEDENCE + 3)
+public class CommunityTreeSnapshotCommandLineRunner implements CommandLineRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityTreeSnapshotCommandLineRunner.class);
+
+    private final CommunityService communityService;
+    private final CommunityProperties properties;
+
+    public CommunityTreeSnapshotCommandLineRunner(CommunityService communityService, CommunityProperties properties) {
+        this.communityService = communityService;
+        this.properties = properties;
+    }
+
+    @Override
+    public void run(String... strings) throws Exception {
+
+        Path file = snapshotFile();
+        if (file == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            if (communityService.loadTreeSnapshot(file)) {
+                logger.info("Warmed the tree cache from {} in {} ms", file, (System.nanoTime() - start) / 1_000_000);
+            }
+        } catch (IOException e) {
+            // The tree is then loaded from the database as usual
+            logger.warn("Cannot load snapshot {}", file, e);
+        }
+    }
+
+    @PreDestroy
+    public void writeSnapshot() {
+
+        Path file = snapshotFile();
+        if (file == null) {
+            return;
+        }
+
+        try {
+            communityService.writeTreeSnapshot(file);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot write snapshot {}", file, e);
+        }
+    }
+
+    private Path snapshotFile() {
+        String file = properties.getSnapshot().getFile();
+        return file == null || file.isEmpty() ? null : Paths.get(file);
+    }
+}
@@ -1,11 +1,22 @@
 package uk.codersparks.communitytreematerializedpath.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.List;
+
 @Document
+@CompoundIndexes({
+        @CompoundIndex(name = "depth_path", def = "{'depth': 1, 'path': 1}"),
+        @CompoundIndex(name = "path_depth", def = "{'path': 1, 'depth': 1}")
+})
 @Data
 @AllArgsConstructor
 public class Community {
@@ -15,9 +26,54 @@ public class Community {
     @Id
     private String name;
 
+    /**
+     * The surrogate key the paths below this community are built from, only set when the keys schema is enabled.
+     * Without one the paths are built from names.
+     */
+    @Indexed(sparse = true)
+    private String key;
+
+    /**
+     * Indexed by path_depth, which serves path prefix queries and also covers counting their depths
+     */
     private String path = "";
 
+    /**
+     * The number of ancestors, stored so a level of a sub tree can be selected with an index range instead of a regex
+     */
+    private int depth;
+
+    /**
+     * The names along the path, root first. Only stored when the ancestors schema is enabled, null otherwise.
+     */
+    @Indexed(sparse = true)
+    private List<String> ancestors;
+
+    /**
+     * Incremented by every write, saves of a stale copy fail rather than overwrite a concurrent change
+     */
+    @Version
+    private Long version;
+
+    public Community(String name, String path) {
+        this.name = name;
+        setPath(path);
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+        this.depth = CommunityPaths.depth(path);
+    }
+
+    /**
+     * What identifies this community in the paths of its descendants, its key if it has one and its name otherwise
+     */
+    @JsonIgnore
+    public String getPathSegment() {
+        return key != null ? key : name;
+    }
+
     public String getIdentityPath() {
-        return path + name + PATH_SEPERATOR;
+        return path + getPathSegment() + PATH_SEPERATOR;
     }
 }
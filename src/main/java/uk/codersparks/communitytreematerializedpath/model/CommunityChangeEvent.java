@@ -0,0 +1,87 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+/**
+ * A single change to the forest. Applying an event sets where one community now lives and what it is called, or
+ * removes it along with its sub tree, so events can be replayed over a snapshot that may already contain some of them.
+ */
+public class CommunityChangeEvent {
+
+    public enum Type {
+        CREATED,
+        MOVED,
+        RENAMED,
+        DELETED
+    }
+
+    private final long version;
+    private final Type type;
+    private final String name;
+    private final String oldName;
+    private final String oldPath;
+    private final String path;
+    private final long subTreeSize;
+
+    public CommunityChangeEvent(long version, Type type, String name, String oldName, String oldPath, String path, long subTreeSize) {
+        this.version = version;
+        this.type = type;
+        this.name = name;
+        this.oldName = oldName;
+        this.oldPath = oldPath;
+        this.path = path;
+        this.subTreeSize = subTreeSize;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The name before a rename, null for any other change
+     */
+    public String getOldName() {
+        return oldName;
+    }
+
+    /**
+     * The path before a move, rename or delete, null for a created community
+     */
+    public String getOldPath() {
+        return oldPath;
+    }
+
+    /**
+     * The path after the change, null for a deleted community
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * The number of communities whose name or path changed, the community itself and all of its descendants whose
+     * path was rewritten, or the number of communities deleted
+     */
+    public long getSubTreeSize() {
+        return subTreeSize;
+    }
+
+    @Override
+    public String toString() {
+        return "CommunityChangeEvent{" +
+                "version=" + version +
+                ", type=" + type +
+                ", name='" + name + '\'' +
+                ", oldName='" + oldName + '\'' +
+                ", oldPath='" + oldPath + '\'' +
+                ", path='" + path + '\'' +
+                ", subTreeSize=" + subTreeSize +
+                '}';
+    }
+}
@@ -0,0 +1,32 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+/**
+ * Surrogate keys that paths are built from instead of names when the keys schema is enabled. A key is a counter
+ * written as a fixed number of base 62 digits, so keys are short whatever the names are, and ordering keys as strings
+ * orders them the same as the counters they were made from.
+ */
+public final class CommunityKeys {
+
+    public static final int WIDTH = 6;
+
+    private static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private static final long LIMIT = (long) Math.pow(DIGITS.length(), WIDTH);
+
+    private CommunityKeys() {
+    }
+
+    public static String encode(long counter) {
+
+        if (counter < 0 || counter >= LIMIT) {
+            throw new IllegalArgumentException("Key counter " + counter + " does not fit in " + WIDTH + " base 62 digits");
+        }
+
+        char[] key = new char[WIDTH];
+        for (int i = WIDTH - 1; i >= 0; i--) {
+            key[i] = DIGITS.charAt((int) (counter % DIGITS.length()));
+            counter /= DIGITS.length();
+        }
+        return new String(key);
+    }
+}
@@ -0,0 +1,116 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+
+import java.util.Date;
+
+/**
+ * Checkpoint of a move whose sub tree is rewritten in batches, stored so a move that was interrupted can be resumed
+ * or rolled back.
+ *
+ * Descendants are rewritten from the identity path the community is moving from to the one it is moving to, or back
+ * again when rolling back. A rewritten descendant no longer has the path prefix being rewritten from, so the
+ * descendants left to rewrite are always exactly those still under it and the checkpoint only has to record which
+ * way the move is going.
+ */
+@Data
+public class CommunityMove {
+
+    public enum State {
+        /**
+         * The community has been moved and its descendants are being rewritten to follow it
+         */
+        MOVING,
+        MOVED,
+        /**
+         * The community has been moved back and its descendants are being rewritten to follow it
+         */
+        ROLLING_BACK,
+        ROLLED_BACK
+    }
+
+    @Id
+    private String id;
+
+    private String name;
+
+    private String originalPath;
+
+    private String newPath;
+
+    private String originalIdentityPath;
+
+    private String newIdentityPath;
+
+    private State state;
+
+    /**
+     * The number of descendants when the move started
+     */
+    private long descendantCount;
+
+    /**
+     * The number of descendants rewritten so far in the current direction, short by the last batch if the
+     * application stopped between rewriting it and recording it
+     */
+    private long rewrittenCount;
+
+    /**
+     * Why the last attempt to rewrite the descendants stopped, null unless it failed
+     */
+    private String error;
+
+    private Date startedAt;
+
+    private Date updatedAt;
+
+    /**
+     * Whether this instance is rewriting the descendants right now, not stored
+     */
+    @Transient
+    private boolean running;
+
+    public CommunityMove() {
+    }
+
+    public CommunityMove(String name, String originalPath, String newPath, String pathSegment) {
+        this.name = name;
+        this.originalPath = originalPath;
+        this.newPath = newPath;
+        this.originalIdentityPath = originalPath + pathSegment + Community.PATH_SEPERATOR;
+        this.newIdentityPath = newPath + pathSegment + Community.PATH_SEPERATOR;
+        this.state = State.MOVING;
+    }
+
+    public boolean isFinished() {
+        return state == State.MOVED || state == State.ROLLED_BACK;
+    }
+
+    /**
+     * The identity path descendants are being rewritten from
+     */
+    public String fromIdentityPath() {
+        return state == State.ROLLING_BACK ? newIdentityPath : originalIdentityPath;
+    }
+
+    /**
+     * The identity path descendants are being rewritten to
+     */
+    public String toIdentityPath() {
+        return state == State.ROLLING_BACK ? originalIdentityPath : newIdentityPath;
+    }
+
+    /**
+     * Whether the sub tree of the community with the identity path overlaps either place the moved sub tree is
+     * split between, which it does when either is an ancestor of the other
+     */
+    public boolean overlaps(String identityPath) {
+        return overlaps(identityPath, originalIdentityPath) || overlaps(identityPath, newIdentityPath);
+    }
+
+    private static boolean overlaps(String identityPath, String otherIdentityPath) {
+        return identityPath.startsWith(otherIdentityPath) || otherIdentityPath.startsWith(identityPath);
+    }
+}
@@ -0,0 +1,93 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for working with materialized paths such as <code>/com2/com3/</code>. The segments of a path are the names
+ * of the communities along it, or their keys when the keys schema is enabled.
+ */
+public final class CommunityPaths {
+
+    private static final String REGEX_META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    private CommunityPaths() {
+    }
+
+    /**
+     * Builds an anchored regex that matches every path starting with the given prefix. The prefix is escaped
+     * character by character (rather than with \Q..\E) so MongoDB still treats it as a simple prefix expression
+     * and can answer it with an index range scan.
+     */
+    public static String prefixRegex(String prefix) {
+        StringBuilder regex = new StringBuilder(prefix.length() + 8).append('^');
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Splits a path into the segments of the communities along it, root first
+     */
+    public static List<String> names(String path) {
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = path.indexOf(Community.PATH_SEPERATOR, start)) >= 0) {
+            if (end > start) {
+                names.add(path.substring(start, end));
+            }
+            start = end + Community.PATH_SEPERATOR.length();
+        }
+        return names;
+    }
+
+    /**
+     * Counts the communities along a path, which is the depth of a community with that path (0 for the root path)
+     */
+    public static int depth(String path) {
+        int depth = 0;
+        int index = path.indexOf(Community.PATH_SEPERATOR);
+        while (index >= 0 && (index = path.indexOf(Community.PATH_SEPERATOR, index + Community.PATH_SEPERATOR.length())) >= 0) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Extracts the segment of the immediate parent from a path, or null when the path is the root path
+     */
+    public static String parentName(String path) {
+        int end = path.length() - Community.PATH_SEPERATOR.length();
+        if (end <= 0) {
+            return null;
+        }
+        int start = path.lastIndexOf(Community.PATH_SEPERATOR, end - 1) + Community.PATH_SEPERATOR.length();
+        return path.substring(start, end);
+    }
+
+    /**
+     * Tests whether <code>path</code> is exactly the identity path of the parent, without building that identity path
+     */
+    public static boolean isChildPath(String path, String parentPath, String parentSegment) {
+        return path.length() == parentPath.length() + parentSegment.length() + Community.PATH_SEPERATOR.length()
+                && path.startsWith(parentPath)
+                && path.startsWith(parentSegment, parentPath.length())
+                && path.endsWith(Community.PATH_SEPERATOR);
+    }
+
+    /**
+     * Tests whether <code>path</code> starts with the identity path of the ancestor, so a community with that path is
+     * in its sub tree, without building that identity path
+     */
+    public static boolean isInSubTree(String path, String ancestorPath, String ancestorSegment) {
+        return path.startsWith(ancestorPath)
+                && path.startsWith(ancestorSegment, ancestorPath.length())
+                && path.startsWith(Community.PATH_SEPERATOR, ancestorPath.length() + ancestorSegment.length());
+    }
+}
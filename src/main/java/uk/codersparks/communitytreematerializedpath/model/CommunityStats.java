@@ -0,0 +1,80 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Summary of the sub tree below a community
+ */
+public class CommunityStats {
+
+    private final String name;
+    private final int depth;
+    private final long descendantCount;
+    private final int maxDepth;
+    private final List<Long> levelCounts;
+
+    public CommunityStats(String name, int depth, List<Long> levelCounts) {
+        this.name = name;
+        this.depth = depth;
+        this.levelCounts = Collections.unmodifiableList(levelCounts);
+        this.descendantCount = levelCounts.stream().mapToLong(Long::longValue).sum();
+        this.maxDepth = depth + levelCounts.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The depth of the community itself, roots are at depth 0
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getDescendantCount() {
+        return descendantCount;
+    }
+
+    /**
+     * The depth of the deepest community in the sub tree, the depth of the community itself when it has no children
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * The number of descendants on each level below the community, starting with its children
+     */
+    public List<Long> getLevelCounts() {
+        return levelCounts;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CommunityStats that = (CommunityStats) o;
+        return depth == that.depth &&
+                Objects.equals(name, that.name) &&
+                Objects.equals(levelCounts, that.levelCounts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, depth, levelCounts);
+    }
+
+    @Override
+    public String toString() {
+        return "CommunityStats{" +
+                "name='" + name + '\'' +
+                ", depth=" + depth +
+                ", descendantCount=" + descendantCount +
+                ", maxDepth=" + maxDepth +
+                ", levelCounts=" + levelCounts +
+                '}';
+    }
+}
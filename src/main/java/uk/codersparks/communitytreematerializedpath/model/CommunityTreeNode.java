@@ -1,6 +1,10 @@
 package uk.codersparks.communitytreematerializedpath.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -8,11 +12,17 @@ import java.util.stream.Collectors;
 public class CommunityTreeNode {
 
     private final String name;
+    private final String key;
     private final String path;
-    private final List<CommunityTreeNode> children = new ArrayList<>();
+    private List<CommunityTreeNode> children = new ArrayList<>();
 
     public CommunityTreeNode(String name, String path) {
+        this(name, null, path);
+    }
+
+    public CommunityTreeNode(String name, String key, String path) {
         this.name = name;
+        this.key = key;
         this.path = path;
     }
 
@@ -20,24 +30,45 @@ public class CommunityTreeNode {
         return name;
     }
 
+    /**
+     * The key the paths of the children are built from, null when they are built from names
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getKey() {
+        return key;
+    }
+
+    @JsonIgnore
+    public String getPathSegment() {
+        return key != null ? key : name;
+    }
+
     public String getPath() { return path; }
 
     public List<CommunityTreeNode> getChildren() {
         return children;
     }
 
+    /**
+     * Stops children being added or removed, once the node is part of a {@link CommunityTreeSnapshot}
+     */
+    void freezeChildren() {
+        children = Collections.unmodifiableList(children);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         CommunityTreeNode that = (CommunityTreeNode) o;
         return Objects.equals(name, that.name) &&
-                Objects.equals(children, that.children);
+                Objects.equals(key, that.key) &&
+                Objects.equals(path, that.path);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name, children);
+        return 31 * (31 * Objects.hashCode(name) + Objects.hashCode(key)) + Objects.hashCode(path);
     }
 
     @Override
@@ -0,0 +1,56 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An immutable view of the community forest at a given tree version
+ */
+public class CommunityTreeSnapshot {
+
+    /**
+     * Version of a snapshot read straight from the repository without being cached, as it may be missing part of the
+     * forest
+     */
+    public static final long UNCACHED_VERSION = -1;
+
+    private final long version;
+    private final List<CommunityTreeNode> roots;
+
+    /**
+     * The nodes of the tree are frozen, none of them can have children added or removed afterwards
+     */
+    public CommunityTreeSnapshot(long version, List<CommunityTreeNode> roots) {
+        this.version = version;
+        this.roots = Collections.unmodifiableList(roots);
+
+        Deque<CommunityTreeNode> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            CommunityTreeNode node = pending.pop();
+            node.freezeChildren();
+            node.getChildren().forEach(pending::push);
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<CommunityTreeNode> getRoots() {
+        return roots;
+    }
+
+    public boolean isCached() {
+        return version != UNCACHED_VERSION;
+    }
+
+    @Override
+    public String toString() {
+        return "CommunityTreeSnapshot{" +
+                "version=" + version +
+                ", roots=" + roots.size() +
+                '}';
+    }
+}
@@ -0,0 +1,18 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A pair of community names to calculate the distance to their common ancestor for
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DistanceQuery {
+
+    private String from;
+
+    private String to;
+}
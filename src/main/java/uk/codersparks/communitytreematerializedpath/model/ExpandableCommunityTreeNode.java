@@ -0,0 +1,84 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * A node of a depth limited view of the tree. The child count is always the total number of children, so a node
+ * whose children list is shorter than its child count was truncated and can be expanded with another request.
+ */
+public class ExpandableCommunityTreeNode {
+
+    private final String name;
+    private final String key;
+    private final String path;
+    private long childCount;
+    private final List<ExpandableCommunityTreeNode> children = new ArrayList<>();
+
+    public ExpandableCommunityTreeNode(String name, String path) {
+        this(name, null, path);
+    }
+
+    public ExpandableCommunityTreeNode(String name, String key, String path) {
+        this.name = name;
+        this.key = key;
+        this.path = path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The key the paths of the children are built from, null when they are built from names
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getKey() {
+        return key;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getChildCount() {
+        return childCount;
+    }
+
+    public void setChildCount(long childCount) {
+        this.childCount = childCount;
+    }
+
+    public List<ExpandableCommunityTreeNode> getChildren() {
+        return children;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ExpandableCommunityTreeNode that = (ExpandableCommunityTreeNode) o;
+        return childCount == that.childCount &&
+                Objects.equals(name, that.name) &&
+                Objects.equals(key, that.key) &&
+                Objects.equals(path, that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * Objects.hashCode(name) + Objects.hashCode(key)) + Objects.hashCode(path)) + Long.hashCode(childCount);
+    }
+
+    @Override
+    public String toString() {
+        return "ExpandableCommunityTreeNode{" +
+                "name='" + name + '\'' +
+                ", childCount=" + childCount +
+                ", children=" + children.stream().map(ExpandableCommunityTreeNode::getName).collect(Collectors.toList()) +
+                '}';
+    }
+}
@@ -0,0 +1,18 @@
+package uk.codersparks.communitytreematerializedpath.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A community to be created, the parent is referenced by name and may be another community created alongside it
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class NewCommunity {
+
+    private String name;
+
+    private String parentName;
+}
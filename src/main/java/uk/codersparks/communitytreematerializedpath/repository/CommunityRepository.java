@@ -3,9 +3,26 @@ package uk.codersparks.communitytreematerializedpath.repository;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import uk.codersparks.communitytreematerializedpath.model.Community;
 
+import java.util.Collection;
 import java.util.List;
 
-public interface CommunityRepository extends MongoRepository<Community, String> {
+public interface CommunityRepository extends MongoRepository<Community, String>, CommunityRepositoryCustom {
 
     List<Community> findAllByOrderByPathAsc();
+
+    List<Community> findByPathRegexOrderByPathAsc(String pathRegex);
+
+    List<Community> findByAncestorsOrderByPathAsc(String ancestorSegment);
+
+    List<Community> findByPathOrderByNameAsc(String path);
+
+    List<Community> findByNameIn(Collection<String> names);
+
+    List<Community> findByKeyIn(Collection<String> keys);
+
+    long countByKeyExists(boolean exists);
+
+    boolean existsByPath(String path);
+
+    List<Community> findByPathRegexAndDepthIn(String pathRegex, Collection<Integer> depths);
 }
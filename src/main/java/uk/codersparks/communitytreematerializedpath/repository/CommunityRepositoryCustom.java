@@ -0,0 +1,169 @@
+package uk.codersparks.communitytreematerializedpath.repository;
+
+import org.springframework.data.util.CloseableIterator;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityMove;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Tree operations that cannot be expressed as derived queries and are implemented directly against MongoDB
+ */
+public interface CommunityRepositoryCustom {
+
+    /**
+     * Rewrites the leading <code>oldPrefix</code> of every path that starts with it to <code>newPrefix</code>
+     *
+     * @return the number of communities whose path was rewritten
+     */
+    long replacePathPrefix(String oldPrefix, String newPrefix);
+
+    /**
+     * Rewrites the path prefix of every community that has <code>ancestorSegment</code> as an ancestor, in the
+     * ancestors schema. The ancestors arrays are rewritten along with the paths.
+     *
+     * @return the number of communities whose path was rewritten
+     */
+    long replaceAncestorPath(String ancestorSegment, String oldPrefix, String newPrefix);
+
+    /**
+     * Rewrites the leading <code>oldPrefix</code> of at most <code>limit</code> paths that start with it, taking them
+     * in path order. A rewritten path no longer starts with <code>oldPrefix</code>, so each call carries on from
+     * where the last one stopped. The ancestors arrays are rewritten along with the paths when
+     * <code>withAncestors</code> is set.
+     *
+     * @return the number of communities whose path was rewritten, 0 once there are none left to rewrite
+     */
+    long replacePathPrefix(String oldPrefix, String newPrefix, boolean withAncestors, int limit);
+
+    /**
+     * Gives a community a new name, which as the name is the document id means storing it under the new name and
+     * removing it from the old one. The paths of its descendants are left for the caller to rewrite if they were
+     * built from the name.
+     *
+     * @throws org.springframework.dao.OptimisticLockingFailureException when the community changed since it was read
+     */
+    void rename(Community community, String newName);
+
+    /**
+     * Removes a community and its whole sub tree with a single delete, matching the community by name and its
+     * descendants by an anchored prefix of their indexed path, so none of them are read
+     *
+     * @return the number of communities removed
+     */
+    long deleteSubTree(String name, String identityPath);
+
+    /**
+     * Reserves a range of key counters for new communities
+     *
+     * @return the first counter of the range
+     */
+    long allocateKeys(int count);
+
+    /**
+     * Streams every community ordered by its identity path, which is a depth first (pre-order) walk of the forest
+     * where each community is immediately followed by its whole sub tree. The iterator must be closed.
+     */
+    CloseableIterator<Community> streamAllInTreeOrder();
+
+    /**
+     * Streams the sub tree below the community with the given identity path in tree order, without the community
+     * itself. The iterator must be closed.
+     */
+    CloseableIterator<Community> streamSubTreeInTreeOrder(String identityPath);
+
+    /**
+     * Streams community names in order, reading nothing but the index on the name. The iterator must be closed.
+     *
+     * @param after the name to start after, or null to start from the first
+     * @param limit the most names to stream, 0 for no limit
+     */
+    CloseableIterator<String> streamNames(String after, int limit);
+
+    /**
+     * Inserts the communities with unordered bulk writes, the caller is responsible for them not already existing
+     */
+    void bulkInsert(List<Community> communities);
+
+    /**
+     * Counts the communities at <code>depth</code> whose path starts with <code>pathPrefix</code>, grouped by path
+     *
+     * @return the number of children keyed by the identity path of their parent, parents without children are absent
+     */
+    Map<String, Long> countChildrenByParentPath(String pathPrefix, int depth);
+
+    /**
+     * Counts the communities whose path starts with <code>pathPrefix</code>, grouped by depth
+     *
+     * @return the number of communities keyed by depth in ascending order, depths without communities are absent
+     */
+    SortedMap<Integer, Long> countByDepth(String pathPrefix);
+
+    /**
+     * Stores the depth of every community that was saved before depths were stored
+     *
+     * @return the number of communities updated
+     */
+    long backfillDepth();
+
+    /**
+     * Starts the version of every community saved before communities were versioned, without a version a save would
+     * try to insert them again
+     *
+     * @return the number of communities updated
+     */
+    long backfillVersion();
+
+    /**
+     * Stores the ancestors array of every community that does not have one
+     *
+     * @return the number of communities updated
+     */
+    long backfillAncestors();
+
+    /**
+     * Rebuilds every path from keys, giving each community a key, or from names, removing the keys. Either way the
+     * ancestors arrays are removed, to be backfilled from the new paths when the ancestors schema is enabled.
+     *
+     * @return the number of communities updated
+     */
+    long rewritePaths(boolean withKeys);
+
+    /**
+     * Removes every stored ancestors array, so they are not left to go stale while the ancestors schema is disabled
+     *
+     * @return the number of communities updated
+     */
+    long removeAncestors();
+
+    /**
+     * Stores the checkpoint of a batched move, giving it an id if it does not have one yet
+     */
+    void saveMove(CommunityMove move);
+
+    /**
+     * @return the checkpoint of the batched move, or null if there is none with that id
+     */
+    CommunityMove findMove(String id);
+
+    /**
+     * @return the checkpoints of the batched moves that are neither moved nor rolled back
+     */
+    List<CommunityMove> findUnfinishedMoves();
+
+    /**
+     * The stamp of the community tree, which is advanced after every write to it. A copy of the tree taken after
+     * reading a stamp reflects at least the writes up to that stamp, and if the stamp is still the same later on the
+     * copy is still current.
+     */
+    long getTreeStamp();
+
+    /**
+     * Advances the stamp of the community tree, to be called once the communities of a write have been saved
+     *
+     * @return the new stamp
+     */
+    long advanceTreeStamp();
+}
@@ -0,0 +1,458 @@
+package uk.codersparks.communitytreematerializedpath.repository;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityKeys;
+import uk.codersparks.communitytreematerializedpath.model.CommunityMove;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.project;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+public class CommunityRepositoryImpl implements CommunityRepositoryCustom {
+
+    static final String NAME_FIELD = "_id";
+    static final String PATH_FIELD = "path";
+    static final String DEPTH_FIELD = "depth";
+    static final String KEY_FIELD = "key";
+    static final String ANCESTORS_FIELD = "ancestors";
+    static final String VERSION_FIELD = "version";
+    static final String COUNT_FIELD = "count";
+    static final String TREE_ORDER_FIELD = "treeOrder";
+    static final String STAMP_FIELD = "stamp";
+    static final String STATE_FIELD = "state";
+
+    static final String TREE_STAMP_COLLECTION = "communityTreeStamp";
+    static final String TREE_STAMP_ID = "tree";
+
+    static final String COUNTER_COLLECTION = "communityCounters";
+    static final String KEY_COUNTER_ID = "keys";
+    static final String COUNTER_FIELD = "counter";
+
+    static final String MOVE_COLLECTION = "communityMoves";
+
+    private static final int BULK_BATCH_SIZE = 1000;
+
+    private final MongoOperations mongoOperations;
+
+    public CommunityRepositoryImpl(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    @Override
+    public long replacePathPrefix(String oldPrefix, String newPrefix) {
+
+        return updateEach(new Query(where(PATH_FIELD).regex(CommunityPaths.prefixRegex(oldPrefix))), community -> {
+            String newPath = newPrefix + community.getPath().substring(oldPrefix.length());
+            return Update.update(PATH_FIELD, newPath).set(DEPTH_FIELD, CommunityPaths.depth(newPath)).inc(VERSION_FIELD, 1);
+        });
+    }
+
+    @Override
+    public long replaceAncestorPath(String ancestorSegment, String oldPrefix, String newPrefix) {
+
+        return updateEach(new Query(where(ANCESTORS_FIELD).is(ancestorSegment)), community -> {
+            String newPath = newPrefix + community.getPath().substring(oldPrefix.length());
+            return Update.update(PATH_FIELD, newPath)
+                    .set(DEPTH_FIELD, CommunityPaths.depth(newPath))
+                    .set(ANCESTORS_FIELD, CommunityPaths.names(newPath))
+                    .inc(VERSION_FIELD, 1);
+        });
+    }
+
+    @Override
+    public long replacePathPrefix(String oldPrefix, String newPrefix, boolean withAncestors, int limit) {
+
+        // A range of the path_depth index starting at the first path still to rewrite, as the ones before it have left it
+        Query query = new Query(where(PATH_FIELD).regex(CommunityPaths.prefixRegex(oldPrefix)))
+                .with(new Sort(PATH_FIELD))
+                .limit(limit);
+
+        return updateEach(query, community -> {
+            String newPath = newPrefix + community.getPath().substring(oldPrefix.length());
+            Update update = Update.update(PATH_FIELD, newPath).set(DEPTH_FIELD, CommunityPaths.depth(newPath)).inc(VERSION_FIELD, 1);
+            return withAncestors ? update.set(ANCESTORS_FIELD, CommunityPaths.names(newPath)) : update;
+        });
+    }
+
+    @Override
+    public CloseableIterator<Community> streamAllInTreeOrder() {
+        return streamInTreeOrder(new ArrayList<>());
+    }
+
+    @Override
+    public CloseableIterator<Community> streamSubTreeInTreeOrder(String identityPath) {
+
+        // An anchored prefix on the indexed path, so only the index range of the sub tree is scanned
+        List<DBObject> pipeline = new ArrayList<>();
+        pipeline.add(new BasicDBObject("$match", new BasicDBObject(PATH_FIELD, Pattern.compile(CommunityPaths.prefixRegex(identityPath)))));
+        return streamInTreeOrder(pipeline);
+    }
+
+    private CloseableIterator<Community> streamInTreeOrder(List<DBObject> pipeline) {
+
+        // Sorting on path alone groups siblings together, sorting on the identity path (path + key or name) instead
+        // puts every community directly in front of its sub tree. The sort may spill to disk so nothing is buffered in
+        // the JVM.
+        Object pathSegment = new BasicDBObject("$ifNull", Arrays.asList("$" + KEY_FIELD, "$" + NAME_FIELD));
+        pipeline.add(new BasicDBObject("$project", new BasicDBObject(PATH_FIELD, 1).append(KEY_FIELD, 1)
+                .append(TREE_ORDER_FIELD, new BasicDBObject("$concat", Arrays.asList("$" + PATH_FIELD, pathSegment, Community.PATH_SEPERATOR)))));
+        pipeline.add(new BasicDBObject("$sort", new BasicDBObject(TREE_ORDER_FIELD, 1)));
+
+        AggregationOptions options = AggregationOptions.builder()
+                .allowDiskUse(true)
+                .batchSize(BULK_BATCH_SIZE)
+                .outputMode(AggregationOptions.OutputMode.CURSOR)
+                .build();
+
+        Cursor cursor = mongoOperations.getCollection(mongoOperations.getCollectionName(Community.class)).aggregate(pipeline, options);
+        MongoConverter converter = mongoOperations.getConverter();
+
+        return new CloseableIterator<Community>() {
+
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public Community next() {
+                return converter.read(Community.class, cursor.next());
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    @Override
+    public CloseableIterator<String> streamNames(String after, int limit) {
+
+        // Filtering, sorting and projecting on _id alone lets the _id index cover the query, so no documents are read
+        DBObject query = after == null ? new BasicDBObject() : new BasicDBObject(NAME_FIELD, new BasicDBObject("$gt", after));
+        DBCursor cursor = mongoOperations.getCollection(mongoOperations.getCollectionName(Community.class))
+                .find(query, new BasicDBObject(NAME_FIELD, 1))
+                .sort(new BasicDBObject(NAME_FIELD, 1))
+                .limit(limit)
+                .batchSize(BULK_BATCH_SIZE);
+
+        return new CloseableIterator<String>() {
+
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return (String) cursor.next().get(NAME_FIELD);
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    @Override
+    public void bulkInsert(List<Community> communities) {
+
+        // Bulk inserts bypass the versioning done by save, so start the versions off as an insert through save would
+        for (Community community : communities) {
+            if (community.getVersion() == null) {
+                community.setVersion(0L);
+            }
+        }
+
+        for (int start = 0; start < communities.size(); start += BULK_BATCH_SIZE) {
+            List<Community> batch = communities.subList(start, Math.min(start + BULK_BATCH_SIZE, communities.size()));
+            mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, Community.class).insert(batch).execute();
+        }
+    }
+
+    @Override
+    public void rename(Community community, String newName) {
+
+        Community renamed = new Community(newName, community.getPath());
+        renamed.setKey(community.getKey());
+        renamed.setAncestors(community.getAncestors());
+        renamed.setVersion(community.getVersion() + 1);
+
+        // Inserted as a document since inserting the entity would start its version again from zero
+        DBObject document = new BasicDBObject();
+        mongoOperations.getConverter().write(renamed, document);
+        mongoOperations.insert(document, mongoOperations.getCollectionName(Community.class));
+
+        long removed = mongoOperations.remove(new Query(where(NAME_FIELD).is(community.getName()).and(VERSION_FIELD).is(community.getVersion())),
+                Community.class).getN();
+
+        if (removed == 0) {
+            mongoOperations.remove(new Query(where(NAME_FIELD).is(newName)), Community.class);
+            throw new OptimisticLockingFailureException("Community " + community.getName() + " is not at version " + community.getVersion());
+        }
+
+        community.setName(newName);
+        community.setVersion(renamed.getVersion());
+    }
+
+    @Override
+    public long deleteSubTree(String name, String identityPath) {
+
+        // Each side of the $or is served by its own index, the _id index and the path prefix range of path_depth
+        Query query = new Query(new Criteria().orOperator(where(NAME_FIELD).is(name), where(PATH_FIELD).regex(CommunityPaths.prefixRegex(identityPath))));
+
+        return mongoOperations.remove(query, Community.class).getN();
+    }
+
+    @Override
+    public long allocateKeys(int count) {
+
+        DBObject counter = mongoOperations.findAndModify(new Query(where(NAME_FIELD).is(KEY_COUNTER_ID)), new Update().inc(COUNTER_FIELD, count),
+                FindAndModifyOptions.options().returnNew(true).upsert(true), DBObject.class, COUNTER_COLLECTION);
+        return ((Number) counter.get(COUNTER_FIELD)).longValue() - count;
+    }
+
+    @Override
+    public Map<String, Long> countChildrenByParentPath(String pathPrefix, int depth) {
+
+        // Both fields are in the depth_path index, so the counts are taken from index keys alone
+        Aggregation aggregation = newAggregation(
+                match(where(DEPTH_FIELD).is(depth).and(PATH_FIELD).regex(CommunityPaths.prefixRegex(pathPrefix))),
+                group(PATH_FIELD).count().as(COUNT_FIELD)
+        );
+
+        Map<String, Long> childCounts = new HashMap<>();
+        for (DBObject result : mongoOperations.aggregate(aggregation, Community.class, DBObject.class)) {
+            childCounts.put((String) result.get(NAME_FIELD), ((Number) result.get(COUNT_FIELD)).longValue());
+        }
+        return childCounts;
+    }
+
+    @Override
+    public SortedMap<Integer, Long> countByDepth(String pathPrefix) {
+
+        // Only the path and depth are used, both of which are in the path_depth index, so no documents are fetched
+        Aggregation aggregation = newAggregation(
+                match(where(PATH_FIELD).regex(CommunityPaths.prefixRegex(pathPrefix))),
+                project(DEPTH_FIELD).andExclude(NAME_FIELD),
+                group(DEPTH_FIELD).count().as(COUNT_FIELD)
+        );
+
+        SortedMap<Integer, Long> counts = new TreeMap<>();
+        for (DBObject result : mongoOperations.aggregate(aggregation, Community.class, DBObject.class)) {
+            counts.put(((Number) result.get(NAME_FIELD)).intValue(), ((Number) result.get(COUNT_FIELD)).longValue());
+        }
+        return counts;
+    }
+
+    @Override
+    public long backfillDepth() {
+
+        return updateEach(new Query(where(DEPTH_FIELD).exists(false)),
+                community -> Update.update(DEPTH_FIELD, CommunityPaths.depth(community.getPath())));
+    }
+
+    @Override
+    public long backfillVersion() {
+
+        return mongoOperations.updateMulti(new Query(where(VERSION_FIELD).exists(false)), Update.update(VERSION_FIELD, 0L), Community.class).getN();
+    }
+
+    @Override
+    public long backfillAncestors() {
+
+        return updateEach(new Query(where(ANCESTORS_FIELD).exists(false)),
+                community -> Update.update(ANCESTORS_FIELD, CommunityPaths.names(community.getPath())));
+    }
+
+    @Override
+    public long rewritePaths(boolean withKeys) {
+
+        // In tree order every parent is rewritten before its children, so the new path of a community is always the
+        // new identity path of the open ancestor its old path matches
+        Deque<RewrittenAncestor> openAncestors = new ArrayDeque<>();
+        long nextKey = 0;
+        long keysLeft = 0;
+
+        long updated = 0;
+        int pending = 0;
+        BulkOperations bulkOperations = null;
+
+        try (CloseableIterator<Community> communities = streamAllInTreeOrder()) {
+            while (communities.hasNext()) {
+                Community community = communities.next();
+
+                while (!openAncestors.isEmpty() && !openAncestors.peek().oldIdentityPath.equals(community.getPath())) {
+                    openAncestors.pop();
+                }
+
+                String newPath = openAncestors.isEmpty() ? Community.PATH_SEPERATOR : openAncestors.peek().newIdentityPath;
+                String oldIdentityPath = community.getIdentityPath();
+
+                Update update = Update.update(PATH_FIELD, newPath).set(DEPTH_FIELD, CommunityPaths.depth(newPath))
+                        .unset(ANCESTORS_FIELD).inc(VERSION_FIELD, 1);
+
+                if (withKeys) {
+                    if (keysLeft == 0) {
+                        nextKey = allocateKeys(BULK_BATCH_SIZE);
+                        keysLeft = BULK_BATCH_SIZE;
+                    }
+                    community.setKey(CommunityKeys.encode(nextKey++));
+                    keysLeft--;
+                    update.set(KEY_FIELD, community.getKey());
+                } else {
+                    community.setKey(null);
+                    update.unset(KEY_FIELD);
+                }
+
+                community.setPath(newPath);
+                openAncestors.push(new RewrittenAncestor(oldIdentityPath, community.getIdentityPath()));
+
+                if (bulkOperations == null) {
+                    bulkOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, Community.class);
+                }
+
+                bulkOperations.updateOne(new Query(where(NAME_FIELD).is(community.getName())), update);
+                pending++;
+
+                if (pending == BULK_BATCH_SIZE) {
+                    updated += bulkOperations.execute().getMatchedCount();
+                    bulkOperations = null;
+                    pending = 0;
+                }
+            }
+        }
+
+        if (pending > 0) {
+            updated += bulkOperations.execute().getMatchedCount();
+        }
+
+        return updated;
+    }
+
+    @Override
+    public long removeAncestors() {
+
+        return mongoOperations.updateMulti(new Query(where(ANCESTORS_FIELD).exists(true)), new Update().unset(ANCESTORS_FIELD), Community.class).getN();
+    }
+
+    @Override
+    public void saveMove(CommunityMove move) {
+
+        move.setUpdatedAt(new Date());
+        mongoOperations.save(move, MOVE_COLLECTION);
+    }
+
+    @Override
+    public CommunityMove findMove(String id) {
+        return mongoOperations.findById(id, CommunityMove.class, MOVE_COLLECTION);
+    }
+
+    @Override
+    public List<CommunityMove> findUnfinishedMoves() {
+
+        return mongoOperations.find(new Query(where(STATE_FIELD).in(CommunityMove.State.MOVING.name(), CommunityMove.State.ROLLING_BACK.name())),
+                CommunityMove.class, MOVE_COLLECTION);
+    }
+
+    @Override
+    public long getTreeStamp() {
+
+        DBObject stamp = mongoOperations.findOne(new Query(where(NAME_FIELD).is(TREE_STAMP_ID)), DBObject.class, TREE_STAMP_COLLECTION);
+        return stamp == null ? 0 : ((Number) stamp.get(STAMP_FIELD)).longValue();
+    }
+
+    @Override
+    public long advanceTreeStamp() {
+
+        DBObject stamp = mongoOperations.findAndModify(new Query(where(NAME_FIELD).is(TREE_STAMP_ID)), new Update().inc(STAMP_FIELD, 1),
+                FindAndModifyOptions.options().returnNew(true).upsert(true), DBObject.class, TREE_STAMP_COLLECTION);
+        return ((Number) stamp.get(STAMP_FIELD)).longValue();
+    }
+
+    /**
+     * Applies an update built from the name and path of each matching community. Only the name and path are read, and
+     * the updates are sent back in unordered batches so the memory used is bounded by the batch size rather than the
+     * number of communities matched.
+     *
+     * @return the number of communities matched by the updates
+     */
+    private long updateEach(Query query, Function<Community, Update> update) {
+
+        query.fields().include(PATH_FIELD);
+
+        long updated = 0;
+        int pending = 0;
+        BulkOperations bulkOperations = null;
+
+        try (CloseableIterator<Community> communities = mongoOperations.stream(query, Community.class)) {
+            while (communities.hasNext()) {
+                Community community = communities.next();
+
+                if (bulkOperations == null) {
+                    bulkOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, Community.class);
+                }
+
+                bulkOperations.updateOne(new Query(where(NAME_FIELD).is(community.getName())), update.apply(community));
+                pending++;
+
+                if (pending == BULK_BATCH_SIZE) {
+                    updated += bulkOperations.execute().getMatchedCount();
+                    bulkOperations = null;
+                    pending = 0;
+                }
+            }
+        }
+
+        if (pending > 0) {
+            updated += bulkOperations.execute().getMatchedCount();
+        }
+
+        return updated;
+    }
+
+    private static final class RewrittenAncestor {
+
+        private final String oldIdentityPath;
+        private final String newIdentityPath;
+
+        private RewrittenAncestor(String oldIdentityPath, String newIdentityPath) {
+            this.oldIdentityPath = oldIdentityPath;
+            this.newIdentityPath = newIdentityPath;
+        }
+    }
+}
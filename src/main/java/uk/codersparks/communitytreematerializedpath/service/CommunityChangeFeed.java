@@ -0,0 +1,164 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.springframework.stereotype.Component;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityChangeEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Numbers every change to the forest with a change version and keeps the most recent ones in a fixed size ring
+ * buffer, so clients holding a copy of the tree can catch up from the version they last saw instead of downloading
+ * the whole tree again.
+ *
+ * Changes are published after they have been written and applied to the tree cache, so a snapshot read after
+ * taking {@link #getVersion()} contains at least every change up to that version.
+ */
+@Component
+public class CommunityChangeFeed {
+
+    private static final char POSITION_SEPARATOR = '-';
+
+    private final CommunityChangeEvent[] buffer;
+    private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private long version;
+
+    public CommunityChangeFeed(CommunityProperties properties) {
+
+        int capacity = properties.getFeed().getCapacity();
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The change feed must hold at least one event: " + capacity);
+        }
+
+        this.buffer = new CommunityChangeEvent[capacity];
+    }
+
+    public CommunityChangeEvent created(Community community) {
+        return publish(CommunityChangeEvent.Type.CREATED, community.getName(), null, null, community.getPath(), 1);
+    }
+
+    public CommunityChangeEvent moved(Community community, String oldPath, long descendantCount) {
+        return publish(CommunityChangeEvent.Type.MOVED, community.getName(), null, oldPath, community.getPath(), descendantCount + 1);
+    }
+
+    /**
+     * @param rewrittenCount the number of descendants whose path was rewritten, none when paths are built from keys
+     */
+    public CommunityChangeEvent renamed(Community community, String oldName, long rewrittenCount) {
+        return publish(CommunityChangeEvent.Type.RENAMED, community.getName(), oldName, community.getPath(), community.getPath(), rewrittenCount + 1);
+    }
+
+    /**
+     * @param deletedCount the number of communities deleted, the community itself and its descendants
+     */
+    public CommunityChangeEvent deleted(Community community, long deletedCount) {
+        return publish(CommunityChangeEvent.Type.DELETED, community.getName(), null, community.getPath(), null, deletedCount);
+    }
+
+    private CommunityChangeEvent publish(CommunityChangeEvent.Type type, String name, String oldName, String oldPath, String path, long subTreeSize) {
+
+        CommunityChangeEvent event;
+        synchronized (this) {
+            version++;
+            event = new CommunityChangeEvent(version, type, name, oldName, oldPath, path, subTreeSize);
+            buffer[(int) (version % buffer.length)] = event;
+        }
+
+        listeners.forEach(Runnable::run);
+
+        return event;
+    }
+
+    /**
+     * Moves the version on for changes made somewhere this feed does not see, such as through another instance. There
+     * is no event for them, so clients catching up across this version have to start again from a snapshot.
+     */
+    public void unseenChanges() {
+
+        synchronized (this) {
+            version++;
+            buffer[(int) (version % buffer.length)] = null;
+        }
+
+        listeners.forEach(Runnable::run);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Identifies this run of the feed, versions start again from zero when the application restarts
+     */
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * The version as it is handed to clients, prefixed with the epoch so a version from before a restart is never
+     * taken for one after it
+     */
+    public String toPosition(long version) {
+        return epoch + POSITION_SEPARATOR + version;
+    }
+
+    /**
+     * Reads back a position handed out by {@link #toPosition(long)}
+     *
+     * @return the version, or null when the position was handed out by another run of the feed or is not a position
+     */
+    public Long versionOf(String position) {
+
+        int separator = position.indexOf(POSITION_SEPARATOR);
+        if (separator < 0 || !epoch.equals(position.substring(0, separator))) {
+            return null;
+        }
+
+        try {
+            long version = Long.parseLong(position.substring(separator + 1));
+            return version < 0 ? null : version;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the changes made after the given version, oldest first
+     *
+     * @return the changes, or null when some of them are no longer buffered or were {@link #unseenChanges() unseen}
+     * (or the version is unknown or negative) and the caller has to start again from a snapshot
+     */
+    public synchronized List<CommunityChangeEvent> since(long sinceVersion) {
+
+        if (sinceVersion < 0 || sinceVersion > version || version - sinceVersion > buffer.length) {
+            return null;
+        }
+
+        List<CommunityChangeEvent> events = new ArrayList<>((int) (version - sinceVersion));
+        for (long v = sinceVersion + 1; v <= version; v++) {
+            CommunityChangeEvent event = buffer[(int) (v % buffer.length)];
+            if (event == null) {
+                return null;
+            }
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Registers a listener run after each change is published. Listeners run on the publishing thread, so they should
+     * only hand the work off and use {@link #since(long)} to collect the changes in order.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+}
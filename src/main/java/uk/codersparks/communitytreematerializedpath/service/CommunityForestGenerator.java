@@ -0,0 +1,193 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.function.LongFunction;
+
+/**
+ * Generates a synthetic forest of communities in tree order, with their paths already worked out so they can be bulk
+ * inserted as they are generated.
+ *
+ * The requested number of communities is shared evenly between the roots, and each community shares what is left of
+ * its share between its children. The number of children is drawn from the fan-out distribution, and raised when the
+ * share would not otherwise fit below the community within the maximum depth. Only the communities waiting to be
+ * generated on the current branch are held, so forests of millions of communities are generated in constant memory.
+ */
+public class CommunityForestGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityForestGenerator.class);
+
+    private final CommunityProperties.Seed settings;
+
+    /**
+     * Cumulative weights of the fan-outs from the minimum up to the maximum
+     */
+    private final double[] fanOutWeights;
+
+    public CommunityForestGenerator(CommunityProperties.Seed settings) {
+
+        if (settings.getRoots() < 1 || settings.getMaxDepth() < 0 || settings.getCommunities() < 0) {
+            throw new IllegalArgumentException("A forest needs at least one root, a maximum depth and a number of communities that are not negative");
+        }
+        if (settings.getMinFanOut() < 1 || settings.getMaxFanOut() < settings.getMinFanOut()) {
+            throw new IllegalArgumentException("Fan-outs must be at least one and the maximum at least the minimum");
+        }
+        if (settings.getMinNameLength() < 1 || settings.getMaxNameLength() < settings.getMinNameLength()) {
+            throw new IllegalArgumentException("Name lengths must be at least one and the maximum at least the minimum");
+        }
+
+        this.settings = settings;
+
+        fanOutWeights = new double[settings.getMaxFanOut() - settings.getMinFanOut() + 1];
+        double total = 0;
+        for (int i = 0; i < fanOutWeights.length; i++) {
+            total += Math.pow(i + 1, -settings.getFanOutSkew());
+            fanOutWeights[i] = total;
+        }
+    }
+
+    /**
+     * The number of communities that will be generated, which is less than requested when they cannot all fit within
+     * the maximum depth and fan-out
+     */
+    public long size() {
+        return Math.min(settings.getCommunities(), multiply(settings.getRoots(), capacity(settings.getMaxDepth())));
+    }
+
+    public Iterator<Community> generate() {
+        return generate(null);
+    }
+
+    /**
+     * Generates the forest with each community given the key made from its sequence number, so paths are built from
+     * keys rather than names
+     *
+     * @param keys makes the key of the community with the given sequence number, or null to build paths from names
+     */
+    public Iterator<Community> generate(LongFunction<String> keys) {
+
+        long size = size();
+        if (size < settings.getCommunities()) {
+            logger.warn("Only {} of the {} communities requested fit in {} roots with a maximum depth of {} and fan-out of {}",
+                    size, settings.getCommunities(), settings.getRoots(), settings.getMaxDepth(), settings.getMaxFanOut());
+        }
+
+        Random random = new Random(settings.getRandomSeed());
+        Deque<Pending> pending = new ArrayDeque<>();
+        pushShares(pending, Community.PATH_SEPERATOR, 0, size, settings.getRoots());
+
+        return new Iterator<Community>() {
+
+            private long generated;
+
+            @Override
+            public boolean hasNext() {
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public Community next() {
+
+                if (pending.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+
+                Pending next = pending.pop();
+                long sequence = generated++;
+                Community community = new Community(name(random, sequence), next.path);
+                if (keys != null) {
+                    community.setKey(keys.apply(sequence));
+                }
+
+                long remaining = next.share - 1;
+                if (remaining > 0) {
+                    long childCapacity = capacity(settings.getMaxDepth() - next.depth - 1);
+                    long needed = (remaining + childCapacity - 1) / childCapacity;
+                    long children = Math.max(needed, Math.min(fanOut(random), remaining));
+                    pushShares(pending, community.getIdentityPath(), next.depth + 1, remaining, children);
+                }
+
+                return community;
+            }
+        };
+    }
+
+    /**
+     * Shares the communities between the given number of siblings, pushed so the first sibling is generated first
+     */
+    private static void pushShares(Deque<Pending> pending, String path, int depth, long communities, long siblings) {
+
+        long share = communities / siblings;
+        long extra = communities % siblings;
+        for (long i = siblings - 1; i >= 0; i--) {
+            long siblingShare = share + (i < extra ? 1 : 0);
+            if (siblingShare > 0) {
+                pending.push(new Pending(path, depth, siblingShare));
+            }
+        }
+    }
+
+    private int fanOut(Random random) {
+
+        int index = Arrays.binarySearch(fanOutWeights, random.nextDouble() * fanOutWeights[fanOutWeights.length - 1]);
+        return settings.getMinFanOut() + (index < 0 ? -index - 1 : index);
+    }
+
+    /**
+     * A unique name of a random length between the minimum and maximum, made of upper case padding followed by the
+     * sequence number in lower case base 36 so no two sequence numbers can ever give the same name
+     */
+    private String name(Random random, long sequence) {
+
+        String suffix = Long.toString(sequence, 36);
+        int length = settings.getMinNameLength() + random.nextInt(settings.getMaxNameLength() - settings.getMinNameLength() + 1);
+
+        StringBuilder name = new StringBuilder(Math.max(length, suffix.length()));
+        for (int i = suffix.length(); i < length; i++) {
+            name.append((char) ('A' + random.nextInt(26)));
+        }
+        return name.append(suffix).toString();
+    }
+
+    /**
+     * The most communities that fit in a sub tree whose root has the given number of levels below it
+     */
+    private long capacity(int levelsBelow) {
+
+        long capacity = 1;
+        for (int level = 0; level < levelsBelow; level++) {
+            capacity = multiply(capacity, settings.getMaxFanOut()) + 1;
+            if (capacity < 0) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return capacity;
+    }
+
+    private static long multiply(long a, long b) {
+        long product = a * b;
+        return a != 0 && (product / a != b || product < 0) ? Long.MAX_VALUE : product;
+    }
+
+    private static final class Pending {
+
+        private final String path;
+        private final int depth;
+        private final long share;
+
+        private Pending(String path, int depth, long share) {
+            this.path = path;
+            this.depth = depth;
+            this.share = share;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lowest common ancestor index over a {@link CommunityTreeSnapshot} using binary lifting.
+ *
+ * Every community is numbered and, for each power of two up to the depth of the forest, the ancestor that many
+ * levels up is stored in a primitive array. A common ancestor is then found in O(log depth) without touching the
+ * repository. The index is immutable and describes exactly one tree version.
+ */
+public class CommunityLcaIndex {
+
+    private static final int NO_ANCESTOR = -1;
+
+    private final long version;
+    private final Map<String, Integer> idsByName;
+    private final int[] depths;
+    private final int[][] ancestors;
+
+    public CommunityLcaIndex(CommunityTreeSnapshot snapshot) {
+
+        this.version = snapshot.getVersion();
+        this.idsByName = new HashMap<>();
+
+        // First pass numbers the communities so the arrays can be sized exactly
+        Deque<CommunityTreeNode> pending = new ArrayDeque<>(snapshot.getRoots());
+        while (!pending.isEmpty()) {
+            CommunityTreeNode node = pending.pop();
+            idsByName.put(node.getName(), idsByName.size());
+            node.getChildren().forEach(pending::push);
+        }
+
+        int size = idsByName.size();
+        this.depths = new int[size];
+        int[] parents = new int[size];
+        int maxDepth = 0;
+
+        for (CommunityTreeNode root : snapshot.getRoots()) {
+            int rootId = idsByName.get(root.getName());
+            parents[rootId] = NO_ANCESTOR;
+            depths[rootId] = 1;
+            pending.push(root);
+        }
+
+        while (!pending.isEmpty()) {
+            CommunityTreeNode node = pending.pop();
+            int id = idsByName.get(node.getName());
+            maxDepth = Math.max(maxDepth, depths[id]);
+            for (CommunityTreeNode child : node.getChildren()) {
+                int childId = idsByName.get(child.getName());
+                parents[childId] = id;
+                depths[childId] = depths[id] + 1;
+                pending.push(child);
+            }
+        }
+
+        int levels = 1;
+        while ((1 << levels) < maxDepth) {
+            levels++;
+        }
+
+        this.ancestors = new int[levels][];
+        this.ancestors[0] = parents;
+        for (int level = 1; level < levels; level++) {
+            int[] previous = ancestors[level - 1];
+            int[] current = new int[size];
+            for (int id = 0; id < size; id++) {
+                int halfway = previous[id];
+                current[id] = halfway == NO_ANCESTOR ? NO_ANCESTOR : previous[halfway];
+            }
+            ancestors[level] = current;
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return depths.length;
+    }
+
+    public boolean contains(String name) {
+        return idsByName.containsKey(name);
+    }
+
+    /**
+     * Same result as {@link CommunityService#distanceToCommonAncestor(uk.codersparks.communitytreematerializedpath.model.Community,
+     * uk.codersparks.communitytreematerializedpath.model.Community)}: the number of levels between <code>from</code>
+     * and the deepest community that is an ancestor of both <code>from</code> and <code>to</code>, counting the root
+     * as a common ancestor. Communities at the top of the forest have no ancestors to climb and so give 0.
+     */
+    public int distanceToCommonAncestor(String from, String to) {
+
+        int fromId = idOf(from);
+        int toId = idOf(to);
+
+        if (fromId == toId || depths[fromId] == 1) {
+            return 0;
+        }
+
+        return depths[fromId] - commonAncestorDepth(ancestors[0][fromId], ancestors[0][toId]);
+    }
+
+    private int commonAncestorDepth(int first, int second) {
+
+        if (first == NO_ANCESTOR || second == NO_ANCESTOR) {
+            return 0;
+        }
+
+        if (depths[first] < depths[second]) {
+            int swap = first;
+            first = second;
+            second = swap;
+        }
+
+        first = lift(first, depths[first] - depths[second]);
+
+        if (first == second) {
+            return depths[first];
+        }
+
+        for (int level = ancestors.length - 1; level >= 0; level--) {
+            if (ancestors[level][first] != ancestors[level][second]) {
+                first = ancestors[level][first];
+                second = ancestors[level][second];
+            }
+        }
+
+        int common = ancestors[0][first];
+        return common == NO_ANCESTOR ? 0 : depths[common];
+    }
+
+    private int lift(int id, int levels) {
+        for (int level = 0; levels > 0; level++, levels >>= 1) {
+            if ((levels & 1) != 0) {
+                id = ancestors[level][id];
+            }
+        }
+        return id;
+    }
+
+    private int idOf(String name) {
+        Integer id = idsByName.get(name);
+        if (id == null) {
+            throw new IllegalArgumentException("Cannot find community with name: " + name);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,153 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks over community names, striped so the number of locks is fixed however large the forest is.
+ *
+ * A write takes shared locks on every community along the paths it depends on and exclusive locks on the
+ * communities it changes. A move therefore excludes every write inside the moved sub tree, since those hold a shared
+ * lock on the moved community, while writes in disjoint sub trees only meet on shared locks and run in parallel.
+ * Stripes are always acquired in index order so overlapping lock sets cannot deadlock.
+ *
+ * The names to lock are only known after reading the communities involved, which may change before the locks are
+ * held. Each stripe records a sequence number when an exclusive holder releases it, so a caller that takes
+ * {@link #sequence()} before reading can tell whether anything it locked was written since and retry, holding on to
+ * the lock while re-reading so the retry is usually {@link Lock#covers covered} by it.
+ */
+public class CommunityLocks {
+
+    private final Stripe[] stripes;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public CommunityLocks(int stripeCount) {
+
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("There must be at least one lock stripe: " + stripeCount);
+        }
+
+        // Rounded up to a power of two so a stripe can be picked with a mask
+        int size = Integer.highestOneBit(stripeCount);
+        if (size < stripeCount) {
+            size <<= 1;
+        }
+
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public long sequence() {
+        return sequence.get();
+    }
+
+    public Lock lock(Collection<String> sharedNames, Collection<String> exclusiveNames) {
+
+        // A stripe wanted both shared and exclusive is only taken exclusively, read locks cannot be upgraded
+        Map<Integer, Boolean> exclusiveByStripe = new TreeMap<>();
+        sharedNames.forEach(name -> exclusiveByStripe.putIfAbsent(stripeIndex(name), false));
+        exclusiveNames.forEach(name -> exclusiveByStripe.put(stripeIndex(name), true));
+
+        int[] indexes = new int[exclusiveByStripe.size()];
+        boolean[] exclusive = new boolean[indexes.length];
+
+        int held = 0;
+        try {
+            for (Map.Entry<Integer, Boolean> entry : exclusiveByStripe.entrySet()) {
+                indexes[held] = entry.getKey();
+                exclusive[held] = entry.getValue();
+
+                ReentrantReadWriteLock lock = stripes[indexes[held]].lock;
+                if (exclusive[held]) {
+                    lock.writeLock().lock();
+                } else {
+                    lock.readLock().lock();
+                }
+                held++;
+            }
+        } catch (RuntimeException | Error e) {
+            new Lock(indexes, exclusive, held).close();
+            throw e;
+        }
+
+        return new Lock(indexes, exclusive, held);
+    }
+
+    private int stripeIndex(String name) {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+
+    public class Lock implements AutoCloseable {
+
+        private final int[] indexes;
+        private final boolean[] exclusive;
+        private final int held;
+
+        private Lock(int[] indexes, boolean[] exclusive, int held) {
+            this.indexes = indexes;
+            this.exclusive = exclusive;
+            this.held = held;
+        }
+
+        /**
+         * Tests that no exclusive holder released any of the locked stripes after the given sequence was taken
+         */
+        public boolean isUnchangedSince(long sequence) {
+            for (int i = 0; i < held; i++) {
+                if (stripes[indexes[i]].lastExclusiveRelease > sequence) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Tests whether this lock already holds every stripe the given names need, in at least the mode they need
+         */
+        public boolean covers(Collection<String> sharedNames, Collection<String> exclusiveNames) {
+            for (String name : sharedNames) {
+                if (heldIndex(stripeIndex(name)) < 0) {
+                    return false;
+                }
+            }
+            for (String name : exclusiveNames) {
+                int held = heldIndex(stripeIndex(name));
+                if (held < 0 || !exclusive[held]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int heldIndex(int stripeIndex) {
+            int found = Arrays.binarySearch(indexes, 0, held, stripeIndex);
+            return found >= 0 ? found : -1;
+        }
+
+        @Override
+        public void close() {
+            for (int i = held - 1; i >= 0; i--) {
+                Stripe stripe = stripes[indexes[i]];
+                if (exclusive[i]) {
+                    stripe.lastExclusiveRelease = sequence.incrementAndGet();
+                    stripe.lock.writeLock().unlock();
+                } else {
+                    stripe.lock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    private static class Stripe {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile long lastExclusiveRelease;
+    }
+}
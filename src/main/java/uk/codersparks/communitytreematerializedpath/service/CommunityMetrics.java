@@ -0,0 +1,213 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.stereotype.Component;
+import uk.codersparks.communitytreematerializedpath.repository.CommunityRepository;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer instrumentation of the community operations.
+ *
+ * Operations are timed while a thread local records which operation is running, so every repository method called
+ * during it can be counted against that operation. A call is counted once however many MongoDB round trips it makes,
+ * so a cursor or stream read in batches, or a bulk write, counts as one call. Work an operation hands to
+ * other threads is only counted against it when run through {@link #attribute(String, Runnable)}, as the parallel
+ * tree build does. Other calls made off the operation's thread, such as those of the streamed responses or of a
+ * batched move between its batches, are counted against no operation.
+ */
+@Component
+public class CommunityMetrics {
+
+    public static final String OPERATION_CREATE = "create";
+    public static final String OPERATION_BULK_CREATE = "bulk-create";
+    public static final String OPERATION_MOVE = "move";
+    public static final String OPERATION_MOVE_BATCH = "move-batch";
+    public static final String OPERATION_RENAME = "rename";
+    public static final String OPERATION_DELETE = "delete";
+    public static final String OPERATION_TREE = "tree";
+    public static final String OPERATION_TREE_LEVELS = "tree-levels";
+    public static final String OPERATION_DISTANCE = "distance";
+    public static final String OPERATION_DESCENDANTS = "descendants";
+    public static final String OPERATION_CHILDREN = "children";
+    public static final String OPERATION_ANCESTORS = "ancestors";
+    public static final String OPERATION_STATS = "stats";
+
+    private static final String NO_OPERATION = "none";
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> operationTimers = new ConcurrentHashMap<>();
+    private final DistributionSummary movedSubTreeSize;
+    private final DistributionSummary builtTreeSize;
+    private final ThreadLocal<String> currentOperation = new ThreadLocal<>();
+
+    public CommunityMetrics(MeterRegistry registry) {
+        this.registry = registry;
+
+        this.movedSubTreeSize = DistributionSummary.builder("community.move.subtree.size")
+                .description("Number of descendants rewritten by a move")
+                .publishPercentileHistogram()
+                .register(registry);
+
+        this.builtTreeSize = DistributionSummary.builder("community.tree.build.nodes")
+                .description("Number of communities in each tree built from the repository")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    public <T> T time(String operation, Supplier<T> call) {
+
+        Timer timer = operationTimers.computeIfAbsent(operation, o -> Timer.builder("community.operation")
+                .description("Time taken by community operations")
+                .tag("operation", o)
+                .publishPercentileHistogram()
+                .register(registry));
+
+        String outerOperation = currentOperation.get();
+        if (outerOperation != null) {
+            // Nested operations are accounted to the outermost one
+            return call.get();
+        }
+
+        currentOperation.set(operation);
+        try {
+            return timer.record(call);
+        } finally {
+            currentOperation.remove();
+        }
+    }
+
+    /**
+     * The operation running on this thread, to hand to work done for it on other threads
+     *
+     * @return the operation, or null when none is running
+     */
+    public String getCurrentOperation() {
+        return currentOperation.get();
+    }
+
+    /**
+     * Runs work done for an operation on another thread, counting its repository calls against that operation
+     * without timing it again
+     *
+     * @param operation as given by {@link #getCurrentOperation()} on the operation's thread, null for none
+     */
+    public void attribute(String operation, Runnable call) {
+
+        if (operation == null || currentOperation.get() != null) {
+            call.run();
+            return;
+        }
+
+        currentOperation.set(operation);
+        try {
+            call.run();
+        } finally {
+            currentOperation.remove();
+        }
+    }
+
+    public void subTreeMoved(long size) {
+        movedSubTreeSize.record(size);
+    }
+
+    public void treeBuilt(long size) {
+        builtTreeSize.record(size);
+    }
+
+    /**
+     * Counts a call of a repository method, not the round trips it makes
+     */
+    public void repositoryCall(String method) {
+        String operation = currentOperation.get();
+        registry.counter("community.repository.calls",
+                "operation", operation == null ? NO_OPERATION : operation,
+                "method", method).increment();
+    }
+
+    /**
+     * Wraps the repository so every method called through it is counted against the running operation
+     */
+    public CommunityRepository instrument(CommunityRepository repository) {
+
+        ProxyFactory proxyFactory = new ProxyFactory();
+        proxyFactory.setTarget(repository);
+        proxyFactory.addInterface(CommunityRepository.class);
+        proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+            repositoryCall(invocation.getMethod().getName());
+            return invocation.proceed();
+        });
+
+        return (CommunityRepository) proxyFactory.getProxy();
+    }
+
+    public void monitor(CommunityTreeCache treeCache) {
+
+        FunctionCounter.builder("community.tree.cache.hits", treeCache, CommunityTreeCache::getHitCount)
+                .description("Tree reads served without going to the repository")
+                .register(registry);
+
+        FunctionCounter.builder("community.tree.cache.misses", treeCache, CommunityTreeCache::getMissCount)
+                .description("Tree reads that loaded the tree from the repository")
+                .register(registry);
+
+        Gauge.builder("community.tree.cache.hit.ratio", treeCache, CommunityMetrics::hitRatio)
+                .description("Fraction of tree reads served without going to the repository")
+                .register(registry);
+
+        Gauge.builder("community.tree.cache.version", treeCache, CommunityTreeCache::getVersion)
+                .description("Current version of the cached tree")
+                .register(registry);
+    }
+
+    public void monitor(CommunityStatsCache statsCache) {
+
+        FunctionCounter.builder("community.stats.cache.hits", statsCache, CommunityStatsCache::getHitCount)
+                .description("Sub tree stats served without aggregating them again")
+                .register(registry);
+
+        FunctionCounter.builder("community.stats.cache.misses", statsCache, CommunityStatsCache::getMissCount)
+                .description("Sub tree stats aggregated by the repository")
+                .register(registry);
+    }
+
+    public void monitor(CommunityPathCache pathCache) {
+
+        FunctionCounter.builder("community.path.cache.hits", pathCache, CommunityPathCache::getHitCount)
+                .description("Community paths looked up without going to the repository")
+                .register(registry);
+
+        FunctionCounter.builder("community.path.cache.misses", pathCache, CommunityPathCache::getMissCount)
+                .description("Community paths read from the repository")
+                .register(registry);
+
+        Gauge.builder("community.path.cache.size", pathCache, CommunityPathCache::size)
+                .description("Number of community paths cached")
+                .register(registry);
+    }
+
+    public void monitorTreeLoads(SingleFlight<?> treeLoads) {
+
+        FunctionCounter.builder("community.tree.loads", treeLoads, SingleFlight::getCallCount)
+                .description("Reads of the whole tree from the repository to load the tree cache")
+                .register(registry);
+
+        FunctionCounter.builder("community.tree.loads.coalesced", treeLoads, SingleFlight::getCoalescedCount)
+                .description("Tree reads that waited for a load already in flight rather than reading the tree again")
+                .register(registry);
+    }
+
+    private static double hitRatio(CommunityTreeCache treeCache) {
+        double hits = treeCache.getHitCount();
+        double total = hits + treeCache.getMissCount();
+        return total == 0 ? 0 : hits / total;
+    }
+}
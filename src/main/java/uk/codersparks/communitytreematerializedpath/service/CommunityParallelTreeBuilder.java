@@ -0,0 +1,133 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.springframework.data.util.CloseableIterator;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.repository.CommunityRepository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the forest with its sub trees read and assembled concurrently, giving the same forest as reading it in a
+ * single pass.
+ *
+ * The top levels are read a level at a time, until the last of them has enough communities to share out between the
+ * threads, and assembled first. The sub tree below each community on that level is then read with a range query on
+ * its path prefix and assembled below it by a fork join task. Each task only adds to the nodes of its own sub tree, so
+ * the sub trees are stitched into the forest as they are assembled. The reads of the tasks are counted against the
+ * operation the build was made for.
+ */
+public class CommunityParallelTreeBuilder {
+
+    private final CommunityRepository repository;
+    private final CommunityTreeAssembler assembler;
+    private final CommunityMetrics metrics;
+    private final ForkJoinPool pool;
+
+    public CommunityParallelTreeBuilder(CommunityRepository repository, CommunityTreeAssembler assembler, CommunityMetrics metrics, int parallelism) {
+        this.repository = repository;
+        this.assembler = assembler;
+        this.metrics = metrics;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public List<CommunityTreeNode> build() {
+
+        List<Community> topLevels = new ArrayList<>();
+        List<Community> lastLevel = readLevel(0);
+        int lastDepth = 0;
+        boolean deeper = true;
+
+        while (lastLevel.size() < pool.getParallelism()) {
+            List<Community> nextLevel = readLevel(lastDepth + 1);
+            if (nextLevel.isEmpty()) {
+                deeper = false;
+                break;
+            }
+            topLevels.addAll(lastLevel);
+            lastLevel = nextLevel;
+            lastDepth++;
+        }
+        topLevels.addAll(lastLevel);
+
+        topLevels.sort(Comparator.comparing(Community::getIdentityPath));
+        List<CommunityTreeNode> roots = assembler.assemble(topLevels.iterator());
+
+        if (deeper) {
+            List<CommunityTreeNode> parents = nodesAt(roots, lastDepth);
+            pool.invoke(new SubTrees(parents, 0, parents.size(), metrics.getCurrentOperation()));
+        }
+
+        return roots;
+    }
+
+    /**
+     * Stops the threads of the pool once any build under way has finished, no build can be started afterwards
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private List<Community> readLevel(int depth) {
+        return repository.findByPathRegexAndDepthIn(CommunityPaths.prefixRegex(Community.PATH_SEPERATOR), Collections.singletonList(depth));
+    }
+
+    /**
+     * The assembled nodes at the depth, a community on that level that was not assembled has no sub tree to read
+     */
+    private static List<CommunityTreeNode> nodesAt(List<CommunityTreeNode> roots, int depth) {
+
+        List<CommunityTreeNode> level = roots;
+        for (int i = 0; i < depth; i++) {
+            List<CommunityTreeNode> children = new ArrayList<>();
+            level.forEach(node -> children.addAll(node.getChildren()));
+            level = children;
+        }
+        return level;
+    }
+
+    /**
+     * Reads and assembles the sub trees of a range of parents, splitting the range until each task has one parent
+     */
+    private final class SubTrees extends RecursiveAction {
+
+        private final List<CommunityTreeNode> parents;
+        private final int from;
+        private final int to;
+        private final String operation;
+
+        private SubTrees(List<CommunityTreeNode> parents, int from, int to, String operation) {
+            this.parents = parents;
+            this.from = from;
+            this.to = to;
+            this.operation = operation;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SubTrees(parents, from, middle, operation), new SubTrees(parents, middle, to, operation));
+                return;
+            }
+
+            metrics.attribute(operation, () -> {
+                for (int i = from; i < to; i++) {
+                    CommunityTreeNode parent = parents.get(i);
+                    String identityPath = parent.getPath() + parent.getPathSegment() + Community.PATH_SEPERATOR;
+
+                    try (CloseableIterator<Community> descendants = repository.streamSubTreeInTreeOrder(identityPath)) {
+                        assembler.assembleBelow(parent, descendants);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import uk.codersparks.communitytreematerializedpath.model.Community;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the identity paths of the most recently used communities by name, so checking a community exists and finding
+ * the path to create or move communities under does not go to the repository every time. Entries are evicted once
+ * there are more than the capacity or they are older than the time to live, which bounds how long a change made
+ * other than through this instance can go unseen.
+ *
+ * Entries are also indexed by identity path, so a write drops exactly the communities it changed along with every
+ * cached descendant. A lookup that read the repository while an entry was being dropped does not cache what it read,
+ * as it may be from before the write.
+ */
+public class CommunityPathCache {
+
+    private static final char MAX_CHAR = Character.MAX_VALUE;
+
+    private final int capacity;
+    private final long timeToLiveNanos;
+    private final LongSupplier nanoClock;
+
+    private final Map<String, Entry> entries;
+    private final NavigableMap<String, String> namesByIdentityPath = new TreeMap<>();
+
+    private long invalidationCount;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CommunityPathCache(int capacity, long timeToLive, TimeUnit unit) {
+        this(capacity, timeToLive, unit, System::nanoTime);
+    }
+
+    CommunityPathCache(int capacity, long timeToLive, TimeUnit unit, LongSupplier nanoClock) {
+
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative: " + capacity);
+        }
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live cannot be negative: " + timeToLive);
+        }
+
+        this.capacity = capacity;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.nanoClock = nanoClock;
+
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > CommunityPathCache.this.capacity) {
+                    namesByIdentityPath.remove(eldest.getValue().identityPath);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the identity path of the community, read with the loader and cached when it is not already, or null
+     * when there is no community with that name
+     */
+    public String getIdentityPath(String name, Function<String, Community> loader) {
+
+        long invalidationCountBeforeLoad;
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null) {
+                if (nanoClock.getAsLong() - entry.cachedAt < timeToLiveNanos) {
+                    hits.increment();
+                    return entry.identityPath;
+                }
+                remove(name);
+            }
+
+            misses.increment();
+            invalidationCountBeforeLoad = invalidationCount;
+        }
+
+        Community community = loader.apply(name);
+        if (community == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (invalidationCount == invalidationCountBeforeLoad) {
+                put(community.getName(), community.getIdentityPath());
+            }
+        }
+
+        return community.getIdentityPath();
+    }
+
+    /**
+     * Caches a community that was just written, to be called while holding the locks of the write
+     */
+    public synchronized void put(Community community) {
+        put(community.getName(), community.getIdentityPath());
+    }
+
+    /**
+     * Drops the community with the name
+     */
+    public synchronized void invalidate(String name) {
+
+        invalidationCount++;
+        remove(name);
+    }
+
+    /**
+     * Drops the community at the identity path and every cached community below it
+     */
+    public synchronized void invalidateSubTree(String identityPath) {
+
+        invalidationCount++;
+
+        Map<String, String> subTree = namesByIdentityPath.subMap(identityPath, true, identityPath + MAX_CHAR, false);
+        subTree.values().forEach(entries::remove);
+        subTree.clear();
+    }
+
+    public synchronized void invalidateAll() {
+
+        invalidationCount++;
+        entries.clear();
+        namesByIdentityPath.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private void put(String name, String identityPath) {
+
+        if (capacity == 0) {
+            return;
+        }
+
+        remove(name);
+
+        // Another community cached at the same identity path has since been moved or deleted
+        String previousName = namesByIdentityPath.put(identityPath, name);
+        if (previousName != null) {
+            entries.remove(previousName);
+        }
+        entries.put(name, new Entry(identityPath, nanoClock.getAsLong()));
+    }
+
+    private void remove(String name) {
+
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            namesByIdentityPath.remove(entry.identityPath);
+        }
+    }
+
+    private static final class Entry {
+
+        private final String identityPath;
+        private final long cachedAt;
+
+        private Entry(String identityPath, long cachedAt) {
+            this.identityPath = identityPath;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -2,31 +2,106 @@ package uk.codersparks.communitytreematerializedpath.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
 import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityKeys;
+import uk.codersparks.communitytreematerializedpath.model.CommunityMove;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+import uk.codersparks.communitytreematerializedpath.model.CommunityStats;
 import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+import uk.codersparks.communitytreematerializedpath.model.DistanceQuery;
+import uk.codersparks.communitytreematerializedpath.model.ExpandableCommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.NewCommunity;
 import uk.codersparks.communitytreematerializedpath.repository.CommunityRepository;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-
-import static java.util.Arrays.asList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 @Service
 public class CommunityService {
 
     private static final Logger logger = LoggerFactory.getLogger(CommunityService.class);
 
-    private static final Pattern ROOT_PATH_PATTERN = Pattern.compile("^" + Community.PATH_SEPERATOR + "$");
-    private static final Pattern IMMEDIATE_PARENT_PATTERN = Pattern.compile(Community.PATH_SEPERATOR + "([^" + Community.PATH_SEPERATOR + "]+)" + Community.PATH_SEPERATOR + "$");
+    private static final int MAX_LOCK_ATTEMPTS = 10;
+    private static final int IMPORT_BATCH_SIZE = 10_000;
 
     private final CommunityRepository repository;
-
-    public CommunityService(CommunityRepository repository) {
-        this.repository = repository;
+    private final CommunityTreeCache treeCache;
+    private final CommunityChangeFeed changeFeed;
+    private final CommunityMetrics metrics;
+    private final boolean ancestorsSchema;
+    private final boolean keysSchema;
+    private final CommunityLocks locks;
+    private final CommunityStatsCache statsCache;
+    private final CommunityPathCache pathCache;
+    private final CommunityTreeStampTracker stampTracker;
+    private final CommunityParallelTreeBuilder parallelTreeBuilder;
+    private final CommunityTreeAssembler treeAssembler = new CommunityTreeAssembler();
+    private final CommunityTreeSnapshotFormat snapshotFormat = new CommunityTreeSnapshotFormat();
+    private final SingleFlight<CommunityTreeSnapshot> treeLoads = new SingleFlight<>();
+
+    private final int moveBatchSize;
+    private final ExecutorService moveRunner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "community-moves");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The batched moves whose sub trees are split between where they are moving from and to, by id
+     */
+    private final Map<String, CommunityMove> unfinishedMoves = new ConcurrentHashMap<>();
+
+    /**
+     * The ids of the batched moves running or waiting to run on this instance
+     */
+    private final Set<String> runningMoves = ConcurrentHashMap.newKeySet();
+    private final Set<String> requestedRollBacks = ConcurrentHashMap.newKeySet();
+
+    private volatile CommunityLcaIndex lcaIndex;
+    private final AtomicBoolean lcaIndexBuildQueued = new AtomicBoolean();
+    private final ExecutorService lcaIndexBuilder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "community-lca-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CommunityService(CommunityRepository repository, CommunityTreeCache treeCache, CommunityChangeFeed changeFeed,
+                            CommunityMetrics metrics, CommunityProperties properties) {
+        this.repository = metrics.instrument(repository);
+        this.treeCache = treeCache;
+        this.changeFeed = changeFeed;
+        this.metrics = metrics;
+        this.ancestorsSchema = properties.getSchema().isAncestors();
+        this.keysSchema = properties.getSchema().isKeys();
+        this.locks = new CommunityLocks(properties.getLocks().getStripes());
+
+        this.statsCache = new CommunityStatsCache(properties.getStats().getCacheSize());
+        this.pathCache = new CommunityPathCache(properties.getPathCache().getSize(), properties.getPathCache().getTimeToLiveSeconds(), TimeUnit.SECONDS);
+        this.stampTracker = new CommunityTreeStampTracker(this.repository::getTreeStamp, properties.getTree().getStampCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+        this.moveBatchSize = properties.getMoves().getBatchSize();
+
+        int buildParallelism = properties.getTree().getBuildParallelism();
+        this.parallelTreeBuilder = buildParallelism > 1 ? new CommunityParallelTreeBuilder(this.repository, treeAssembler, metrics, buildParallelism) : null;
+
+        metrics.monitor(treeCache);
+        metrics.monitor(statsCache);
+        metrics.monitor(pathCache);
+        metrics.monitorTreeLoads(treeLoads);
     }
 
 
@@ -35,70 +110,879 @@ public class CommunityService {
     }
 
     public List<Community> getAllCommunities() {
-        logger.info("Getting all communities");
+        logger.debug("Getting all communities");
         return repository.findAllByOrderByPathAsc();
     }
 
+    public List<Community> getDescendants(String name) {
+        return metrics.time(CommunityMetrics.OPERATION_DESCENDANTS, () -> {
+            Community community = getExistingCommunity(name);
+
+            if (ancestorsSchema) {
+                return repository.findByAncestorsOrderByPathAsc(community.getPathSegment());
+            }
+
+            return repository.findByPathRegexOrderByPathAsc(CommunityPaths.prefixRegex(community.getIdentityPath()));
+        });
+    }
+
+    public List<Community> getChildren(String name) {
+        return metrics.time(CommunityMetrics.OPERATION_CHILDREN, () -> {
+            Community community = getExistingCommunity(name);
+
+            return repository.findByPathOrderByNameAsc(community.getIdentityPath());
+        });
+    }
+
+    public List<Community> getAncestors(String name) {
+        return metrics.time(CommunityMetrics.OPERATION_ANCESTORS, () -> {
+            Community community = getExistingCommunity(name);
+
+            if (keysSchema) {
+                // Paths only hold the keys of the ancestors, so their names have to be looked up
+                Map<String, Community> ancestorsByKey = new HashMap<>();
+                List<String> keys = CommunityPaths.names(community.getPath());
+                for (Community ancestor : repository.findByKeyIn(keys)) {
+                    ancestorsByKey.put(ancestor.getKey(), ancestor);
+                }
+
+                List<Community> ancestors = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    Community ancestor = ancestorsByKey.get(key);
+                    if (ancestor != null) {
+                        ancestors.add(ancestor);
+                    }
+                }
+                return ancestors;
+            }
+
+            // The ancestors are fully described by the path so they can be rebuilt without going back to the repository
+            List<Community> ancestors = new ArrayList<>();
+            StringBuilder ancestorPath = new StringBuilder(Community.PATH_SEPERATOR);
+            for (String ancestorName : CommunityPaths.names(community.getPath())) {
+                ancestors.add(new Community(ancestorName, ancestorPath.toString()));
+                ancestorPath.append(ancestorName).append(Community.PATH_SEPERATOR);
+            }
+
+            return ancestors;
+        });
+    }
+
+    /**
+     * Counts the descendants of a community on each level below it. The counting is done by the repository so only
+     * the counts are read, and they are cached until the forest next changes. While a batched move is unfinished the
+     * change version does not move with its batches, so counts are neither served from nor put in the cache.
+     */
+    public CommunityStats getStats(String name) {
+        return metrics.time(CommunityMetrics.OPERATION_STATS, () -> {
+            checkForeignWrites();
+
+            // Taken first, so stats computed while a change is being made are cached at the version before it
+            long version = changeFeed.getVersion();
+
+            CommunityStats stats = hasUnfinishedMoves() ? null : statsCache.get(name, version);
+            if (stats != null) {
+                return stats;
+            }
+
+            Community community = getExistingCommunity(name);
+
+            SortedMap<Integer, Long> countsByDepth = repository.countByDepth(community.getIdentityPath());
+
+            List<Long> levelCounts = new ArrayList<>();
+            if (!countsByDepth.isEmpty()) {
+                for (int depth = community.getDepth() + 1; depth <= countsByDepth.lastKey(); depth++) {
+                    levelCounts.add(countsByDepth.getOrDefault(depth, 0L));
+                }
+            }
+
+            stats = new CommunityStats(community.getName(), community.getDepth(), levelCounts);
+            // Checked after counting, as a move registers itself before it changes anything
+            if (!hasUnfinishedMoves()) {
+                statsCache.put(name, version, stats);
+            }
+
+            return stats;
+        });
+    }
+
     public Community createCommunity(String name, String parentName) throws IllegalArgumentException {
+        return metrics.time(CommunityMetrics.OPERATION_CREATE, () -> lockedRetrying("create of " + name, () -> {
+            if(name.equals(parentName)) {
+                throw new IllegalArgumentException("Community cannot have parent of same name");
+            }
 
-        if(name.equals(parentName)) {
-            throw new IllegalArgumentException("Community cannot have parent of same name");
+            if(this.getIdentityPath(name) != null) {
+                throw new IllegalArgumentException("Community " + name + " already exists therefore cannot create");
+            }
+
+            String parentPath = getParentPathForCommunity(parentName);
+
+            return new LockedWrite<>(CommunityPaths.names(parentPath), Collections.singleton(name), () -> {
+                Community community = newCommunity(name, parentPath, keysSchema ? repository.allocateKeys(1) : 0);
+
+                Community returnValue = repository.save(community);
+                advanceTreeStamp();
+
+                pathCache.put(returnValue);
+                treeCache.onCreated(returnValue);
+                changeFeed.created(returnValue);
+
+                return returnValue;
+            });
+        }));
+    }
+
+    /**
+     * Creates many communities at once. Parents may be existing communities or other communities in the same batch,
+     * the existence checks are a single query and the inserts are unordered bulk writes.
+     *
+     * @return the created communities, each parent before its children
+     */
+    public List<Community> createCommunities(List<NewCommunity> newCommunities) throws IllegalArgumentException {
+        return metrics.time(CommunityMetrics.OPERATION_BULK_CREATE, () -> lockedRetrying("bulk create", () -> {
+            Map<String, NewCommunity> batch = new LinkedHashMap<>();
+            Set<String> externalParentNames = new HashSet<>();
+
+            for (NewCommunity newCommunity : newCommunities) {
+                String name = newCommunity.getName();
+                if (name == null || name.isEmpty()) {
+                    throw new IllegalArgumentException("Community must have a name");
+                }
+                if (name.equals(newCommunity.getParentName())) {
+                    throw new IllegalArgumentException("Community cannot have parent of same name");
+                }
+                if (batch.put(name, newCommunity) != null) {
+                    throw new IllegalArgumentException("Community " + name + " is defined more than once");
+                }
+            }
+
+            for (NewCommunity newCommunity : batch.values()) {
+                String parentName = newCommunity.getParentName();
+                if (parentName != null && !parentName.isEmpty() && !batch.containsKey(parentName)) {
+                    externalParentNames.add(parentName);
+                }
+            }
+
+            Set<String> lookupNames = new HashSet<>(batch.keySet());
+            lookupNames.addAll(externalParentNames);
+
+            Map<String, Community> existingCommunities = new HashMap<>();
+            for (Community community : repository.findByNameIn(lookupNames)) {
+                if (batch.containsKey(community.getName())) {
+                    throw new IllegalArgumentException("Community " + community.getName() + " already exists therefore cannot create");
+                }
+                existingCommunities.put(community.getName(), community);
+            }
+
+            // Keys are reserved before locking as the paths depend on them, a retry simply reserves new ones
+            long nextKey = keysSchema ? repository.allocateKeys(batch.size()) : 0;
+
+            // Resolve paths parent first, starting from the communities whose parent is not part of the batch
+            Map<String, List<NewCommunity>> childrenInBatch = new HashMap<>();
+            Deque<Community> resolved = new ArrayDeque<>();
+            Set<String> lineageNames = new HashSet<>();
+
+            for (NewCommunity newCommunity : batch.values()) {
+                String parentName = newCommunity.getParentName();
+                if (parentName == null || parentName.isEmpty()) {
+                    resolved.add(newCommunity(newCommunity.getName(), Community.PATH_SEPERATOR, nextKey++));
+                } else if (batch.containsKey(parentName)) {
+                    childrenInBatch.computeIfAbsent(parentName, k -> new ArrayList<>()).add(newCommunity);
+                } else {
+                    Community parentCommunity = existingCommunities.get(parentName);
+                    if (parentCommunity == null) {
+                        throw new IllegalArgumentException("Cannot find parent community with name: " + parentName);
+                    }
+                    resolved.add(newCommunity(newCommunity.getName(), parentCommunity.getIdentityPath(), nextKey++));
+                    lineageNames.addAll(CommunityPaths.names(parentCommunity.getIdentityPath()));
+                }
+            }
+
+            List<Community> communities = new ArrayList<>(batch.size());
+            while (!resolved.isEmpty()) {
+                Community community = resolved.poll();
+                communities.add(community);
+                for (NewCommunity child : childrenInBatch.getOrDefault(community.getName(), Collections.emptyList())) {
+                    resolved.add(newCommunity(child.getName(), community.getIdentityPath(), nextKey++));
+                }
+            }
+
+            if (communities.size() != batch.size()) {
+                throw new IllegalArgumentException("Communities cannot be created as their parents form a cycle");
+            }
+
+            return new LockedWrite<>(lineageNames, batch.keySet(), () -> {
+                repository.bulkInsert(communities);
+                advanceTreeStamp();
+
+                for (Community community : communities) {
+                    pathCache.put(community);
+                    treeCache.onCreated(community);
+                    changeFeed.created(community);
+                }
+
+                logger.info("Created {} communities", communities.size());
+
+                return communities;
+            });
+        }));
+    }
+
+    /**
+     * Bulk inserts communities whose paths are already worked out, such as a generated forest, without any of the
+     * checks made when creating communities. Meant for loading communities before they are served, the tree cache is
+     * dropped rather than patched and no changes are published.
+     *
+     * @return the number of communities inserted
+     */
+    public long importCommunities(Iterator<Community> communities) {
+
+        long imported = 0;
+        List<Community> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+
+        try {
+            while (communities.hasNext()) {
+                batch.add(withSchema(communities.next()));
+
+                if (batch.size() == IMPORT_BATCH_SIZE || !communities.hasNext()) {
+                    repository.bulkInsert(batch);
+                    imported += batch.size();
+                    batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+
+                    logger.debug("Imported {} communities", imported);
+                }
+            }
+        } finally {
+            advanceTreeStamp();
+            pathCache.invalidateAll();
+            treeCache.invalidate();
         }
 
-        if(this.getCommunity(name) != null) {
-            throw new IllegalArgumentException("Community " + name + " already exists therefore cannot create");
+        return imported;
+    }
+
+    /**
+     * Bulk inserts a generated forest, with paths built from keys reserved for it when the keys schema is enabled
+     *
+     * @return the number of communities inserted
+     */
+    public long importForest(CommunityForestGenerator generator) {
+
+        if (keysSchema) {
+            long firstKey = repository.allocateKeys(Math.toIntExact(generator.size()));
+            return importCommunities(generator.generate(sequence -> CommunityKeys.encode(firstKey + sequence)));
         }
 
-        String parentPath = getParentPathForCommunity(parentName);
+        return importCommunities(generator.generate());
+    }
 
-        Community community = new Community(name, parentPath);
+    /**
+     * Removes every community, keeping the collection and its indexes. Like importing communities this is only meant
+     * for use before they are served.
+     */
+    public void removeAllCommunities() {
+
+        repository.deleteAll();
+        advanceTreeStamp();
+        pathCache.invalidateAll();
+        treeCache.invalidate();
+    }
 
-        return repository.save(community);
+    public long countCommunities() {
+        return repository.count();
     }
 
     public Community moveCommunity(String name, String newParentName) {
+        return metrics.time(CommunityMetrics.OPERATION_MOVE, () -> lockedRetrying("move of " + name, () -> {
+            if(name.equals(newParentName)) {
+                throw new IllegalArgumentException("Community cannot have parent of same name");
+            }
+
+            Community community = this.getCommunity(name);
+
+            if(community == null) {
+                throw new IllegalArgumentException("Community " + name + " does not exist therefore cannot move");
+            }
+
+            String originalPath = community.getPath();
+            String originalFullPathToCommunity = community.getIdentityPath();
+
+            String newParentPath = getParentPathForCommunity(newParentName);
+
+            if (newParentPath.startsWith(originalFullPathToCommunity)) {
+                throw new IllegalArgumentException("Community " + name + " cannot be moved into its own sub tree");
+            }
 
-        if(name.equals(newParentName)) {
-            throw new IllegalArgumentException("Community cannot have parent of same name");
+            Set<String> lineageNames = new HashSet<>(CommunityPaths.names(originalPath));
+            lineageNames.addAll(CommunityPaths.names(newParentPath));
+
+            // Both the name and the segment in the paths below it, which differ when paths are built from keys
+            Set<String> exclusiveNames = new HashSet<>(Arrays.asList(name, community.getPathSegment()));
+
+            return new LockedWrite<>(lineageNames, exclusiveNames, () -> {
+                checkNoMoveUnderway(originalFullPathToCommunity);
+
+                community.setPath(newParentPath);
+                withSchema(community);
+
+                String newFullPathToCommunity = community.getIdentityPath();
+
+                // The moved community is saved first so a concurrent change to it fails the version check before
+                // any of its sub tree is touched
+                Community returnValue = repository.save(community);
+
+                // Now we have to update any sub tree that has community as a parent, the paths are rewritten in place
+                // by the repository so the sub tree never has to be loaded here
+                long subCommunityCount = ancestorsSchema
+                        ? repository.replaceAncestorPath(community.getPathSegment(), originalFullPathToCommunity, newFullPathToCommunity)
+                        : repository.replacePathPrefix(originalFullPathToCommunity, newFullPathToCommunity);
+
+                advanceTreeStamp();
+
+                metrics.subTreeMoved(subCommunityCount);
+
+                logger.info("Rewrote paths of {} sub communities of {}", subCommunityCount, community.getName());
+
+                pathCache.invalidateSubTree(originalFullPathToCommunity);
+                pathCache.put(returnValue);
+                treeCache.onMoved(returnValue, originalPath);
+                changeFeed.moved(returnValue, originalPath, subCommunityCount);
+
+                return returnValue;
+            });
+        }));
+    }
+
+    /**
+     * Gives a community a new name. When paths are built from keys nothing else changes, otherwise the paths of its
+     * descendants are rewritten as they are when it moves.
+     */
+    public Community renameCommunity(String name, String newName) {
+        return metrics.time(CommunityMetrics.OPERATION_RENAME, () -> lockedRetrying("rename of " + name, () -> {
+            if (newName == null || newName.isEmpty()) {
+                throw new IllegalArgumentException("Community must have a name");
+            }
+            if (name.equals(newName)) {
+                throw new IllegalArgumentException("Community " + name + " already has that name");
+            }
+
+            Community community = this.getCommunity(name);
+
+            if (community == null) {
+                throw new IllegalArgumentException("Community " + name + " does not exist therefore cannot rename");
+            }
+
+            if (this.getIdentityPath(newName) != null) {
+                throw new IllegalArgumentException("Community " + newName + " already exists therefore cannot rename " + name);
+            }
+
+            return new LockedWrite<>(CommunityPaths.names(community.getPath()), Arrays.asList(name, newName), () -> {
+                String originalSegment = community.getPathSegment();
+                String originalFullPathToCommunity = community.getIdentityPath();
+
+                if (!keysSchema) {
+                    checkNoMoveUnderway(originalFullPathToCommunity);
+                }
+
+                repository.rename(community, newName);
+
+                long rewrittenCount = 0;
+                if (originalSegment.equals(community.getPathSegment())) {
+                    pathCache.invalidate(name);
+                } else {
+                    pathCache.invalidateSubTree(originalFullPathToCommunity);
+
+                    String newFullPathToCommunity = community.getIdentityPath();
+
+                    rewrittenCount = ancestorsSchema
+                            ? repository.replaceAncestorPath(originalSegment, originalFullPathToCommunity, newFullPathToCommunity)
+                            : repository.replacePathPrefix(originalFullPathToCommunity, newFullPathToCommunity);
+
+                    logger.info("Rewrote paths of {} sub communities of {}", rewrittenCount, community.getName());
+                }
+
+                advanceTreeStamp();
+
+                pathCache.put(community);
+                treeCache.onRenamed(community, name);
+                changeFeed.renamed(community, name, rewrittenCount);
+
+                return community;
+            });
+        }));
+    }
+
+    /**
+     * Deletes a community. Without <code>cascade</code> only a community without children can be deleted, with it
+     * the community and its whole sub tree are removed by a single delete on the path index.
+     *
+     * @return the number of communities deleted
+     */
+    public long deleteCommunity(String name, boolean cascade) {
+        return metrics.time(CommunityMetrics.OPERATION_DELETE, () -> lockedRetrying("delete of " + name, () -> {
+            Community community = this.getCommunity(name);
+
+            if (community == null) {
+                throw new IllegalArgumentException("Community " + name + " does not exist therefore cannot delete");
+            }
+
+            return new LockedWrite<>(CommunityPaths.names(community.getPath()), Arrays.asList(name, community.getPathSegment()), () -> {
+                String fullPathToCommunity = community.getIdentityPath();
+
+                checkNoMoveUnderway(fullPathToCommunity);
+
+                // Checked under the locks, as children are created holding only a shared lock on their parent
+                if (!cascade && repository.existsByPath(fullPathToCommunity)) {
+                    throw new IllegalArgumentException("Community " + name + " has children therefore can only be deleted with its sub tree");
+                }
+
+                long deletedCount = repository.deleteSubTree(name, fullPathToCommunity);
+                advanceTreeStamp();
+
+                logger.info("Deleted {} communities from the sub tree of {}", deletedCount, name);
+
+                pathCache.invalidateSubTree(fullPathToCommunity);
+                treeCache.onDeleted(community);
+                changeFeed.deleted(community, deletedCount);
+
+                return deletedCount;
+            });
+        }));
+    }
+
+    /**
+     * Moves a community straight away and leaves its descendants to be rewritten in batches on a background thread,
+     * so the memory used and the time each batch holds the locks stay the same however large the sub tree is. The
+     * progress is checkpointed after every batch, and a move that stops part way can be resumed or rolled back.
+     *
+     * Until the move is finished the sub tree is split between where it is moving from and to, so communities are
+     * only created in it and none overlapping it are moved or renamed.
+     *
+     * @return the checkpoint of the move
+     */
+    public CommunityMove startMove(String name, String newParentName) {
+        CommunityMove started = metrics.time(CommunityMetrics.OPERATION_MOVE, () -> lockedRetrying("batched move of " + name, () -> {
+            if (name.equals(newParentName)) {
+                throw new IllegalArgumentException("Community cannot have parent of same name");
+            }
+
+            Community community = this.getCommunity(name);
+
+            if (community == null) {
+                throw new IllegalArgumentException("Community " + name + " does not exist therefore cannot move");
+            }
+
+            String originalPath = community.getPath();
+            String newParentPath = getParentPathForCommunity(newParentName);
+
+            if (newParentPath.startsWith(community.getIdentityPath())) {
+                throw new IllegalArgumentException("Community " + name + " cannot be moved into its own sub tree");
+            }
+            if (newParentPath.equals(originalPath)) {
+                throw new IllegalArgumentException("Community " + name + " already has that parent");
+            }
+
+            CommunityMove move = new CommunityMove(name, originalPath, newParentPath, community.getPathSegment());
+
+            return new LockedWrite<>(moveLineageNames(move), moveExclusiveNames(move), () -> {
+                checkNoMoveUnderway(move.getOriginalIdentityPath());
+                checkNoMoveUnderway(move.getNewIdentityPath());
+
+                move.setDescendantCount(repository.countByDepth(move.getOriginalIdentityPath()).values().stream().mapToLong(Long::longValue).sum());
+                move.setStartedAt(new Date());
+
+                // Stored before anything is moved, so the move can always be resumed or rolled back from it
+                repository.saveMove(move);
+
+                // Registered before the community is moved, so no tree read from then on is cached
+                unfinishedMoves.put(move.getId(), move);
+
+                try {
+                    placeCommunity(community, move);
+                } catch (RuntimeException e) {
+                    unfinishedMoves.remove(move.getId());
+                    move.setState(CommunityMove.State.ROLLED_BACK);
+                    move.setError(e.toString());
+                    repository.saveMove(move);
+                    throw e;
+                }
+
+                logger.info("Started move {} of {} from {} to {} with {} descendants", move.getId(), name, originalPath, newParentPath,
+                        move.getDescendantCount());
+
+                return move;
+            });
+        }));
+
+        runMove(started.getId());
+
+        return getMove(started.getId());
+    }
+
+    /**
+     * Rewrites the rest of the descendants of a batched move that stopped part way, in whichever direction it was going
+     *
+     * @return the checkpoint of the move
+     */
+    public CommunityMove resumeMove(String id) {
+
+        CommunityMove move = getExistingMove(id);
+
+        if (move.isFinished()) {
+            throw new IllegalArgumentException("Move " + id + " is already " + move.getState());
         }
 
-        Community community = this.getCommunity(name);
+        unfinishedMoves.putIfAbsent(id, move);
+        requestedRollBacks.remove(id);
+        if (!runMove(id)) {
+            throw new IllegalStateException("Move " + id + " is already running");
+        }
+
+        return getMove(id);
+    }
 
-        if(community == null) {
-            throw new IllegalArgumentException("Community " + name + " does not exist therefore cannot move");
+    /**
+     * Moves the community of a batched move back and rewrites the descendants already moved back after it. A move
+     * that is running turns round after the batch it is on, unless it finishes first.
+     *
+     * @return the checkpoint of the move
+     */
+    public CommunityMove rollBackMove(String id) {
+
+        CommunityMove move = getExistingMove(id);
+
+        if (move.getState() != CommunityMove.State.MOVING) {
+            throw new IllegalArgumentException("Move " + id + " is " + move.getState() + " therefore cannot roll back");
         }
 
-        String originalFullPathToCommunity = community.getIdentityPath();
+        unfinishedMoves.putIfAbsent(id, move);
+        requestedRollBacks.add(id);
+        runMove(id);
+
+        return getMove(id);
+    }
 
-        String newParentPath;
+    /**
+     * @return the checkpoint of the batched move, or null if there is none with that id
+     */
+    public CommunityMove getMove(String id) {
 
-        if(newParentName.equals("")) {
-            newParentPath = "/";
-        } else {
-            newParentPath = getParentPathForCommunity(newParentName);
+        CommunityMove move = repository.findMove(id);
+        if (move != null) {
+            move.setRunning(runningMoves.contains(id));
         }
+        return move;
+    }
 
-        community.setPath(newParentPath);
+    /**
+     * Reads the checkpoints of the batched moves left unfinished, by this or an earlier run, so no write overlapping
+     * their split sub trees is made until they are resumed or rolled back
+     *
+     * @return the unfinished moves
+     */
+    public List<CommunityMove> getUnfinishedMoves() {
+
+        List<CommunityMove> moves = repository.findUnfinishedMoves();
+        for (CommunityMove move : moves) {
+            unfinishedMoves.putIfAbsent(move.getId(), move);
+            move.setRunning(runningMoves.contains(move.getId()));
+        }
+        return moves;
+    }
 
-        String newFullPathToCommunity = community.getIdentityPath();
+    /**
+     * Whether a batched move known to this instance is unfinished, during which the stored tree changes with every
+     * batch while the change version stays where it was before the move
+     */
+    public boolean hasUnfinishedMoves() {
+        return !unfinishedMoves.isEmpty();
+    }
 
-        // Now we have to update any sub tree that has community as a parent
-        // Build a list of those communities in the sub tree
-        List<Community> subCommunities = getAllCommunities().stream().filter(c ->c.getPath().startsWith(originalFullPathToCommunity)).collect(Collectors.toList());
+    /**
+     * Stops the batched moves after the batch they are on, leaving them to be resumed, and the threads building the
+     * tree in parallel and the common ancestor index
+     */
+    @PreDestroy
+    public void shutdown() {
+        moveRunner.shutdownNow();
+        lcaIndexBuilder.shutdownNow();
+        if (parallelTreeBuilder != null) {
+            parallelTreeBuilder.shutdown();
+        }
+    }
 
-        logger.info("Sub communities of {}: {}", community, subCommunities);
+    private CommunityMove getExistingMove(String id) {
 
-        if(subCommunities.size() > 0) {
-            subCommunities.forEach(c -> {
+        CommunityMove move = repository.findMove(id);
 
-                c.setPath(c.getPath().replace(originalFullPathToCommunity, newFullPathToCommunity));
-            });
+        if (move == null) {
+            throw new IllegalArgumentException("Cannot find move with id: " + id);
+        }
+
+        return move;
+    }
+
+    /**
+     * Queues the batches of a move unless it is already running
+     *
+     * @return whether the move was queued
+     */
+    private boolean runMove(String id) {
+
+        if (!runningMoves.add(id)) {
+            return false;
+        }
 
-            repository.save(subCommunities);
+        try {
+            moveRunner.execute(() -> rewriteDescendants(id));
+        } catch (RuntimeException e) {
+            runningMoves.remove(id);
+            throw e;
         }
-        Community returnValue = repository.save(community);
+        return true;
+    }
+
+    private void rewriteDescendants(String id) {
+
+        CommunityMove move = null;
+        try {
+            move = repository.findMove(id);
+            move.setError(null);
+
+            boolean placed = false;
+            while (!move.isFinished()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    logger.info("Stopped move {} after rewriting {} of {} descendants", id, move.getRewrittenCount(), move.getDescendantCount());
+                    return;
+                }
 
-        return returnValue;
+                boolean placeCommunity = !placed;
+                CommunityMove batchMove = move;
+                metrics.time(CommunityMetrics.OPERATION_MOVE_BATCH, () -> lockedRetrying("batch of move " + id,
+                        () -> new LockedWrite<>(moveLineageNames(batchMove), moveExclusiveNames(batchMove), () -> {
+                            rewriteBatch(batchMove, placeCommunity);
+                            return null;
+                        })));
+                placed = true;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Move {} stopped, it can be resumed or rolled back", id, e);
+            if (move != null) {
+                move.setError(e.toString());
+                try {
+                    repository.saveMove(move);
+                } catch (RuntimeException saveFailure) {
+                    logger.warn("Cannot record why move {} stopped", id, saveFailure);
+                }
+            }
+        } finally {
+            runningMoves.remove(id);
+        }
+    }
+
+    /**
+     * Rewrites the next batch of descendants of a move under its locks, turning the move round first if a roll back
+     * was asked for and finishing it once there are none left
+     *
+     * @param placeCommunity whether to check the community itself was moved, as it may not have been if the move
+     *                       stopped just after turning round
+     */
+    private void rewriteBatch(CommunityMove move, boolean placeCommunity) {
+
+        if (move.getState() == CommunityMove.State.MOVING && requestedRollBacks.remove(move.getId())) {
+            logger.info("Rolling back move {} after rewriting {} of {} descendants", move.getId(), move.getRewrittenCount(), move.getDescendantCount());
+            move.setState(CommunityMove.State.ROLLING_BACK);
+            move.setRewrittenCount(0);
+            repository.saveMove(move);
+            placeCommunity = true;
+        }
+
+        if (placeCommunity) {
+            Community community = this.getCommunity(move.getName());
+            if (community != null) {
+                placeCommunity(community, move);
+            }
+        }
+
+        long rewritten = repository.replacePathPrefix(move.fromIdentityPath(), move.toIdentityPath(), ancestorsSchema, moveBatchSize);
+
+        if (rewritten > 0) {
+            advanceTreeStamp();
+            // Which descendants were in the batch is not known, so every one still cached at the old path is dropped
+            pathCache.invalidateSubTree(move.fromIdentityPath());
+            move.setRewrittenCount(move.getRewrittenCount() + rewritten);
+            repository.saveMove(move);
+            return;
+        }
+
+        boolean moved = move.getState() == CommunityMove.State.MOVING;
+        move.setState(moved ? CommunityMove.State.MOVED : CommunityMove.State.ROLLED_BACK);
+        repository.saveMove(move);
+
+        unfinishedMoves.remove(move.getId());
+        requestedRollBacks.remove(move.getId());
+
+        // Reloaded rather than patched, as it may have been loaded from the split sub tree while the move was running
+        treeCache.invalidate();
+
+        if (moved) {
+            metrics.subTreeMoved(move.getRewrittenCount());
+
+            Community community = this.getCommunity(move.getName());
+            if (community != null) {
+                changeFeed.moved(community, move.getOriginalPath(), move.getRewrittenCount());
+            }
+        }
+
+        logger.info("Move {} of {} is {} after rewriting {} descendants", move.getId(), move.getName(), move.getState(), move.getRewrittenCount());
+    }
+
+    /**
+     * Puts the community of a move under the parent it is going to, unless it is already there
+     */
+    private void placeCommunity(Community community, CommunityMove move) {
+
+        boolean rollingBack = move.getState() == CommunityMove.State.ROLLING_BACK;
+        String fromPath = rollingBack ? move.getNewPath() : move.getOriginalPath();
+        String toPath = rollingBack ? move.getOriginalPath() : move.getNewPath();
+
+        if (community.getPath().equals(fromPath)) {
+            community.setPath(toPath);
+            repository.save(withSchema(community));
+            advanceTreeStamp();
+            pathCache.invalidate(community.getName());
+        }
+    }
+
+    /**
+     * Batches take shared locks on both places the moved community has parents in and an exclusive lock on it, which
+     * excludes every write in its sub tree for the length of the batch
+     */
+    private static Collection<String> moveLineageNames(CommunityMove move) {
+
+        Set<String> lineageNames = new HashSet<>(CommunityPaths.names(move.getOriginalPath()));
+        lineageNames.addAll(CommunityPaths.names(move.getNewPath()));
+        return lineageNames;
+    }
+
+    private static Collection<String> moveExclusiveNames(CommunityMove move) {
+
+        List<String> segments = CommunityPaths.names(move.getOriginalIdentityPath());
+        return Arrays.asList(move.getName(), segments.get(segments.size() - 1));
+    }
+
+    /**
+     * Refuses a write to a community whose sub tree overlaps one split by an unfinished batched move, to be called
+     * while holding the locks of the write
+     */
+    private void checkNoMoveUnderway(String identityPath) {
+
+        for (CommunityMove move : unfinishedMoves.values()) {
+            if (move.overlaps(identityPath)) {
+                throw new IllegalStateException("Move " + move.getId() + " of " + move.getName() + " is under way in the sub tree at "
+                        + identityPath + ", it has to be resumed or rolled back first");
+            }
+        }
+    }
+
+    /**
+     * Runs a write under the locks it asks for. The reads that decide the write are made before locking, so they
+     * are repeated whenever one of the locked communities was written in the meantime. The repeat is made while
+     * still holding the earlier locks, so unless the communities involved have changed it is already covered by them.
+     */
+    private <T> T lockedRetrying(String description, Supplier<LockedWrite<T>> prepare) {
+
+        CommunityLocks.Lock lock = null;
+        try {
+            for (int attempt = 1; attempt <= MAX_LOCK_ATTEMPTS; attempt++) {
+                long sequence = locks.sequence();
+
+                LockedWrite<T> write = prepare.get();
+
+                if (lock != null) {
+                    if (lock.covers(write.sharedNames, write.exclusiveNames)) {
+                        return write.write.get();
+                    }
+                    lock.close();
+                    lock = null;
+                }
+
+                lock = locks.lock(write.sharedNames, write.exclusiveNames);
+                if (lock.isUnchangedSince(sequence)) {
+                    return write.write.get();
+                }
+
+                logger.debug("Retrying {} as communities it depends on changed while locking", description);
+            }
+        } finally {
+            if (lock != null) {
+                lock.close();
+            }
+        }
+
+        throw new OptimisticLockingFailureException("Gave up on the " + description + " after " + MAX_LOCK_ATTEMPTS
+                + " attempts as the communities it depends on kept changing");
+    }
+
+    private static final class LockedWrite<T> {
+
+        private final Collection<String> sharedNames;
+        private final Collection<String> exclusiveNames;
+        private final Supplier<T> write;
+
+        private LockedWrite(Collection<String> sharedNames, Collection<String> exclusiveNames, Supplier<T> write) {
+            this.sharedNames = sharedNames;
+            this.exclusiveNames = exclusiveNames;
+            this.write = write;
+        }
+    }
+
+    /**
+     * A new community, given a key made from the counter when paths are built from keys
+     */
+    private Community newCommunity(String name, String parentPath, long keyCounter) {
+
+        Community community = new Community(name, parentPath);
+
+        if (keysSchema) {
+            community.setKey(CommunityKeys.encode(keyCounter));
+        }
+
+        return withSchema(community);
+    }
+
+    /**
+     * Fills in the fields that are only stored by the enabled schema
+     */
+    private Community withSchema(Community community) {
+
+        if (ancestorsSchema) {
+            community.setAncestors(CommunityPaths.names(community.getPath()));
+        }
+
+        return community;
+    }
+
+    private Community getExistingCommunity(String name) {
+
+        Community community = this.getCommunity(name);
+
+        if (community == null) {
+            throw new IllegalArgumentException("Cannot find community with name: " + name);
+        }
+
+        return community;
+    }
+
+    /**
+     * The identity path of a community from the path cache, for the checks and placement of writes which are repeated
+     * under the locks should the community change in the meantime
+     *
+     * @return the identity path, or null if there is no community with that name
+     */
+    private String getIdentityPath(String name) {
+        return pathCache.getIdentityPath(name, repository::findOne);
     }
 
     private String getParentPathForCommunity(String parentName) {
@@ -106,12 +990,10 @@ public class CommunityService {
         String parentPath;
         if(parentName != null && parentName.length() > 0) {
 
-            Community parentCommunity = this.getCommunity(parentName);
+            parentPath = this.getIdentityPath(parentName);
 
-            if (parentCommunity == null) {
+            if (parentPath == null) {
                 throw new IllegalArgumentException("Cannot find parent community with name: " + parentName);
-            } else {
-                parentPath = new StringBuilder(parentCommunity.getPath()).append(parentCommunity.getName()).append(Community.PATH_SEPERATOR).toString();
             }
         } else {
             parentPath = Community.PATH_SEPERATOR;
@@ -120,66 +1002,379 @@ public class CommunityService {
     }
 
     public List<CommunityTreeNode> generateTree() {
+        return getTreeSnapshot().getRoots();
+    }
 
-        List<CommunityTreeNode> rootCommunityTreeNodes = new ArrayList<>();
+    /**
+     * The cached tree, loading it first if needed. Concurrent callers that find it not loaded share a single read of
+     * the repository, as long as no change has been reported since that read started.
+     */
+    public CommunityTreeSnapshot getTreeSnapshot() {
+        return metrics.time(CommunityMetrics.OPERATION_TREE, () -> {
+            checkForeignWrites();
+
+            CommunityTreeSnapshot snapshot = treeCache.getLoadedSnapshot();
+            if (snapshot != null) {
+                return snapshot;
+            }
 
-        List<Community> allCommunities = this.repository.findAllByOrderByPathAsc();
+            long changeCount = treeCache.getChangeCount();
+            return treeLoads.run(changeCount, () -> loadTree(changeCount));
+        });
+    }
 
-        logger.debug("All communities: {}", allCommunities);
+    private CommunityTreeSnapshot loadTree(long changeCount) {
 
-        // First we construct the nodes
-        final Map<String, CommunityTreeNode> allNodesByName = allCommunities.stream().map(community -> new CommunityTreeNode(community.getName(), community.getPath())).collect(Collectors.toMap(CommunityTreeNode::getName, Function.identity()));
+        List<CommunityTreeNode> tree = buildTree();
 
-        logger.debug("All nodes by name: {}", allNodesByName);
+        if (!unfinishedMoves.isEmpty()) {
+            // Descendants of an unfinished batched move may still be at their old path and missing from the tree, so it
+            // is only served until the move finishes
+            logger.info("Not caching the tree as {} batched moves are unfinished", unfinishedMoves.size());
+            return new CommunityTreeSnapshot(CommunityTreeSnapshot.UNCACHED_VERSION, tree);
+        }
 
-        // Now we loop over all the nodes and update their parent and children
-        allCommunities.forEach(community -> {
+        CommunityTreeSnapshot snapshot = treeCache.load(tree, changeCount);
+        if (snapshot == null) {
+            // The tree changed while it was read, so read it again with writers held off until it is loaded
+            logger.info("Tree changed while it was being loaded, loading it again");
+            snapshot = treeCache.getSnapshot(this::buildTree);
+        }
+        return snapshot;
+    }
 
-            CommunityTreeNode node =allNodesByName.get(community.getName());
+    /**
+     * Builds the top <code>depth</code> levels of the forest, the last level carries child counts so it can be expanded
+     */
+    public List<ExpandableCommunityTreeNode> generateTree(int depth) {
+        return metrics.time(CommunityMetrics.OPERATION_TREE_LEVELS, () -> {
+            checkDepth(depth);
 
-            Matcher rootParentMatcher = ROOT_PATH_PATTERN.matcher(community.getPath());
-            if(rootParentMatcher.matches()) {
-                rootCommunityTreeNodes.add(node);
-            } else {
+            return expandLevels(null, Community.PATH_SEPERATOR, 0, depth);
+        });
+    }
+
+    /**
+     * Builds the sub tree of a community down to <code>depth</code> levels below it
+     */
+    public ExpandableCommunityTreeNode generateTree(String name, int depth) {
+        return metrics.time(CommunityMetrics.OPERATION_TREE_LEVELS, () -> {
+            checkDepth(depth);
+
+            Community community = getExistingCommunity(name);
+
+            ExpandableCommunityTreeNode root = new ExpandableCommunityTreeNode(community.getName(), community.getKey(), community.getPath());
+            expandLevels(root, community.getIdentityPath(), CommunityPaths.depth(community.getPath()) + 1, depth);
 
-                logger.debug("Community path: {}", community.getPath());
-                Matcher immediateParentMatcher = IMMEDIATE_PARENT_PATTERN.matcher(community.getPath());
-                String extractedImmediateParent = null;
-                while(immediateParentMatcher.find()) {
-                    extractedImmediateParent = immediateParentMatcher.group(1);
-                    logger.debug("Extracted parent: {}", extractedImmediateParent);
+            return root;
+        });
+    }
+
+    private static void checkDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth cannot be negative: " + depth);
+        }
+    }
+
+    /**
+     * Loads the levels <code>firstDepth</code> to <code>firstDepth + levels - 1</code> below the path prefix and
+     * counts the children of the last of them, both with index bounded queries on the path prefix and depth.
+     *
+     * @param root the community owning the prefix, or null when expanding the whole forest
+     * @return the nodes of the first level
+     */
+    private List<ExpandableCommunityTreeNode> expandLevels(ExpandableCommunityTreeNode root, String pathPrefix, int firstDepth, int levels) {
+
+        List<Community> communities;
+        if (levels == 0) {
+            communities = Collections.emptyList();
+        } else {
+            List<Integer> depths = new ArrayList<>(levels);
+            for (int depth = firstDepth; depth < firstDepth + levels; depth++) {
+                depths.add(depth);
+            }
+            communities = new ArrayList<>(repository.findByPathRegexAndDepthIn(CommunityPaths.prefixRegex(pathPrefix), depths));
+            communities.sort(Comparator.comparing(Community::getIdentityPath));
+        }
+
+        Map<String, Long> truncatedChildCounts = repository.countChildrenByParentPath(pathPrefix, firstDepth + levels);
+
+        Map<String, ExpandableCommunityTreeNode> nodesByIdentityPath = new HashMap<>();
+        List<ExpandableCommunityTreeNode> firstLevel;
+        if (root == null) {
+            firstLevel = new ArrayList<>();
+        } else {
+            nodesByIdentityPath.put(pathPrefix, root);
+            firstLevel = root.getChildren();
+        }
+
+        // In tree order every parent is seen before its children
+        for (Community community : communities) {
+            ExpandableCommunityTreeNode node = new ExpandableCommunityTreeNode(community.getName(), community.getKey(), community.getPath());
+            nodesByIdentityPath.put(community.getIdentityPath(), node);
+
+            if (community.getDepth() == firstDepth) {
+                firstLevel.add(node);
+            } else {
+                ExpandableCommunityTreeNode parent = nodesByIdentityPath.get(community.getPath());
+                if (parent == null) {
+                    logger.warn("Skipping community {} as its parent path {} was not loaded", community.getName(), community.getPath());
+                    continue;
                 }
+                parent.getChildren().add(node);
+            }
+        }
 
-                CommunityTreeNode parentNode = allNodesByName.get(extractedImmediateParent);
+        nodesByIdentityPath.forEach((identityPath, node) ->
+                node.setChildCount(truncatedChildCounts.getOrDefault(identityPath, (long) node.getChildren().size())));
 
-                parentNode.getChildren().add(node);
+        return firstLevel;
+    }
+
+    /**
+     * The change version of the tree, which advances on every change made through this instance and once for the
+     * changes found to have been made through others. Take it before reading the tree to know which changes to replay
+     * over it.
+     */
+    public long getChangeVersion() {
+        checkForeignWrites();
+
+        return changeFeed.getVersion();
+    }
+
+    private void advanceTreeStamp() {
+        stampTracker.advance(repository::advanceTreeStamp);
+    }
+
+    /**
+     * Drops what is cached of the tree when the tree stamp shows another instance has written to it, and moves the
+     * change version on so clients holding a copy of the tree fetch it again
+     */
+    private void checkForeignWrites() {
+
+        if (!stampTracker.checkForeignAdvances()) {
+            return;
+        }
+
+        logger.info("Tree was changed through another instance, dropping the cached tree");
+        treeCache.invalidate();
+        pathCache.invalidateAll();
+        changeFeed.unseenChanges();
+    }
+
+    /**
+     * The change version as it is handed to clients, prefixed with the run of the application it belongs to
+     */
+    public String getChangePosition(long changeVersion) {
+        return changeFeed.toPosition(changeVersion);
+    }
+
+    /**
+     * Streams a page of community names in name order, the caller must close the iterator
+     *
+     * @param after the last name of the previous page, or null for the first page
+     * @param limit the most names in the page, 0 for every name after <code>after</code>
+     */
+    public CloseableIterator<String> streamCommunityNames(String after, int limit) {
+
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit cannot be negative: " + limit);
+        }
+
+        return repository.streamNames(after, limit);
+    }
+
+    /**
+     * Streams every community straight from the repository in tree order, the caller must close the iterator
+     */
+    public CloseableIterator<Community> streamCommunitiesInTreeOrder() {
+        return repository.streamAllInTreeOrder();
+    }
+
+    /**
+     * Writes a binary snapshot of the forest, read straight from the repository so it also holds the writes made by
+     * other instances. It is stamped with the tree stamp from before the read, so any write the snapshot may have
+     * missed leaves the stamp in the database ahead of it. Nothing is written while a batched move is unfinished, as
+     * the descendants still at their old path would be left out of the snapshot.
+     *
+     * @return the number of communities written, 0 when a batched move is unfinished
+     */
+    public int writeTreeSnapshot(Path file) throws IOException {
+
+        if (!getUnfinishedMoves().isEmpty()) {
+            logger.info("Not writing a snapshot to {} as batched moves are unfinished", file);
+            return 0;
+        }
+
+        long stamp = repository.getTreeStamp();
+
+        int count;
+        try (CloseableIterator<Community> communities = repository.streamAllInTreeOrder()) {
+            count = snapshotFormat.write(file, stamp, communities);
+        }
+
+        logger.info("Wrote snapshot of {} communities at stamp {} to {}", count, stamp, file);
+
+        return count;
+    }
 
-                logger.debug("ParentNode: {}", parentNode);
+    /**
+     * Fills the tree cache from a snapshot, as long as the tree stamp in the database shows nothing has been written
+     * since the snapshot was taken and no batched move is unfinished
+     *
+     * @return true if the cache was filled from the snapshot, false if it is missing or out of date
+     * @throws IOException when the snapshot cannot be read
+     */
+    public boolean loadTreeSnapshot(Path file) throws IOException {
+
+        if (!Files.exists(file)) {
+            logger.info("No snapshot at {} to load", file);
+            return false;
+        }
+
+        // A snapshot taken while a move is unfinished would be missing the descendants still at their old path
+        if (!getUnfinishedMoves().isEmpty()) {
+            logger.info("Not loading snapshot {} as batched moves are unfinished", file);
+            return false;
+        }
+
+        long stamp = repository.getTreeStamp();
+
+        List<CommunityTreeNode> tree = snapshotFormat.read(file, stamp);
+        if (tree == null) {
+            return false;
+        }
+
+        treeCache.getSnapshot(() -> tree);
+
+        // Writes advance the stamp before patching the cache, so one that was not patched in is caught here
+        if (repository.getTreeStamp() != stamp) {
+            logger.info("Dropping snapshot loaded from {} as the tree was written while loading it", file);
+            treeCache.invalidate();
+            return false;
+        }
+
+        logger.info("Loaded snapshot at stamp {} from {}", stamp, file);
+
+        return true;
+    }
+
+    private List<CommunityTreeNode> buildTree() {
+
+        List<CommunityTreeNode> tree;
+        if (parallelTreeBuilder != null) {
+            tree = parallelTreeBuilder.build();
+        } else {
+            try (CloseableIterator<Community> communities = repository.streamAllInTreeOrder()) {
+                tree = treeAssembler.assemble(communities);
             }
-        });
+        }
 
-        return rootCommunityTreeNodes;
+        metrics.treeBuilt(countNodes(tree));
 
+        return tree;
     }
 
+    private static long countNodes(List<CommunityTreeNode> tree) {
+
+        long count = 0;
+        Deque<CommunityTreeNode> pending = new ArrayDeque<>(tree);
+        while (!pending.isEmpty()) {
+            count++;
+            pending.pop().getChildren().forEach(pending::push);
+        }
+        return count;
+    }
+
+    /**
+     * Answered from the common ancestor index of the cached tree when it is up to date. Otherwise the two communities
+     * are looked up and their paths compared, while the index is rebuilt in the background.
+     */
     public int distanceToCommonAncestor(String from, String to) {
+        return metrics.time(CommunityMetrics.OPERATION_DISTANCE, () -> {
+            logger.debug("Calculating distance to common ancestor from {} to {}", from, to);
+
+            CommunityLcaIndex index = getCurrentLcaIndex();
+            if (index != null) {
+                return index.distanceToCommonAncestor(from, to);
+            }
 
-        logger.info("Calculating distance to common ancestor from {} to {}", from, to);
+            return distanceToCommonAncestor(getExistingCommunity(from), getExistingCommunity(to));
+        });
+    }
+
+    public int[] distancesToCommonAncestor(List<DistanceQuery> queries) {
+        return metrics.time(CommunityMetrics.OPERATION_DISTANCE, () -> {
+            CommunityLcaIndex index = getCurrentLcaIndex();
+            Map<String, Community> communities = new HashMap<>();
+
+            int[] distances = new int[queries.size()];
+            for (int i = 0; i < distances.length; i++) {
+                DistanceQuery query = queries.get(i);
+                distances[i] = index != null
+                        ? index.distanceToCommonAncestor(query.getFrom(), query.getTo())
+                        : distanceToCommonAncestor(communities.computeIfAbsent(query.getFrom(), this::getExistingCommunity),
+                                communities.computeIfAbsent(query.getTo(), this::getExistingCommunity));
+            }
+
+            return distances;
+        });
+    }
+
+    /**
+     * The common ancestor index, as long as it was built from the tree cache as it is now
+     *
+     * @return the index, or null when it is out of date and a rebuild has been queued
+     */
+    private CommunityLcaIndex getCurrentLcaIndex() {
 
-        Community fromCommunity = repository.findOne(from);
+        CommunityLcaIndex index = lcaIndex;
+        if (index != null && index.getVersion() == treeCache.getVersion()) {
+            return index;
+        }
 
-        if (fromCommunity == null) {
-            throw new IllegalArgumentException("Cannont find community with name: " + from);
+        // Only one rebuild is queued at a time, however many queries find the index out of date
+        if (lcaIndexBuildQueued.compareAndSet(false, true)) {
+            try {
+                lcaIndexBuilder.execute(this::buildLcaIndex);
+            } catch (RejectedExecutionException e) {
+                lcaIndexBuildQueued.set(false);
+            }
         }
+        return null;
+    }
+
+    private void buildLcaIndex() {
 
-        Community toCommunity = repository.findOne(to);
+        // Cleared before reading the tree, so a change made during the build queues another one
+        lcaIndexBuildQueued.set(false);
 
-        if (toCommunity == null) {
-            throw new IllegalArgumentException("Cannot find to community with name: " + to);
+        CommunityLcaIndex current = lcaIndex;
+        if ((current != null && current.getVersion() == treeCache.getVersion()) || hasUnfinishedMoves()) {
+            // Up to date already, or the tree read now would be split by a move and not cached
+            return;
         }
 
-        return distanceToCommonAncestor(fromCommunity, toCommunity);
+        try {
+            CommunityTreeSnapshot snapshot = getTreeSnapshot();
+            if (!snapshot.isCached()) {
+                return;
+            }
+
+            CommunityLcaIndex index = new CommunityLcaIndex(snapshot);
+            lcaIndex = index;
+            logger.debug("Built common ancestor index of {} communities at version {}", index.size(), index.getVersion());
+        } catch (RuntimeException e) {
+            logger.warn("Cannot build the common ancestor index, distances are found from paths until it is", e);
+        }
+    }
 
+    /**
+     * Whether the common ancestor index was built from the tree cache as it is now
+     */
+    boolean isLcaIndexCurrent() {
+        CommunityLcaIndex index = lcaIndex;
+        return index != null && index.getVersion() == treeCache.getVersion();
     }
 
     public int distanceToCommonAncestor(Community from, Community to) {
@@ -189,32 +1384,35 @@ public class CommunityService {
             return 0;
         }
 
-        String[] fromPath = from.getPath().split(Community.PATH_SEPERATOR);
+        List<String> fromAncestors = ancestorsOf(from);
 
-        logger.debug("From Path: {}", Arrays.asList(fromPath));
+        logger.debug("From ancestors: {}", fromAncestors);
 
-        List<String> toPath = asList(to.getPath().split(Community.PATH_SEPERATOR));
+        if (fromAncestors.isEmpty()) {
+            return 0;
+        }
 
-        logger.debug("To Path: {}", toPath);
+        Set<String> toAncestors = new HashSet<>(ancestorsOf(to));
 
-        int ancestorCount = 0;
+        logger.debug("To ancestors: {}", toAncestors);
 
-        String parent = null;
-        // The distance of the common ancestor
-        for(int i = fromPath.length - 1; i >= 0; i--) {
+        // Walk up from the parent until reaching an ancestor the two have in common, counting the virtual root when
+        // they share none
+        int ancestorCount = 0;
+        for(int i = fromAncestors.size() - 1; i >= 0; i--) {
             ancestorCount++;
-            parent = fromPath[i];
-            if(toPath.contains(parent)) {
-                logger.debug("Found ancestor parent: {}", parent);
-                break;
+            if(toAncestors.contains(fromAncestors.get(i))) {
+                logger.debug("Found ancestor parent: {}", fromAncestors.get(i));
+                return ancestorCount;
             }
         }
 
-        logger.info("Distance to common ancestor: {}", ancestorCount);
-
-        return ancestorCount;
+        logger.debug("Distance to common ancestor: {}", ancestorCount + 1);
 
+        return ancestorCount + 1;
     }
 
-
+    private static List<String> ancestorsOf(Community community) {
+        return community.getAncestors() != null ? community.getAncestors() : CommunityPaths.names(community.getPath());
+    }
 }
@@ -0,0 +1,78 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import uk.codersparks.communitytreematerializedpath.model.CommunityStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the stats of the most recently used communities, each along with the change version it was computed at. Any
+ * change to the forest moves the version on, so a cached entry is only served while nothing has changed since.
+ */
+public class CommunityStatsCache {
+
+    private final Map<String, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CommunityStatsCache(int capacity) {
+
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative: " + capacity);
+        }
+
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the stats cached for the community at the version, or null when they have to be computed
+     */
+    public synchronized CommunityStats get(String name, long version) {
+
+        Entry entry = entries.get(name);
+        if (entry == null || entry.version != version) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return entry.stats;
+    }
+
+    /**
+     * Caches stats computed at the version, unless stats at a later version are already cached
+     */
+    public synchronized void put(String name, long version, CommunityStats stats) {
+
+        Entry entry = entries.get(name);
+        if (entry == null || entry.version <= version) {
+            entries.put(name, new Entry(version, stats));
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private static final class Entry {
+
+        private final long version;
+        private final CommunityStats stats;
+
+        private Entry(long version, CommunityStats stats) {
+            this.version = version;
+            this.stats = stats;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Builds the {@link CommunityTreeNode} forest in a single pass over communities supplied in tree order (each
+ * community directly followed by its sub tree). The parent of each community is always on a stack of the currently
+ * open ancestors, so no lookup by name is needed and only one node is created per community.
+ */
+public class CommunityTreeAssembler {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityTreeAssembler.class);
+
+    public List<CommunityTreeNode> assemble(Iterator<Community> communitiesInTreeOrder) {
+
+        List<CommunityTreeNode> roots = new ArrayList<>();
+        assemble(communitiesInTreeOrder, roots, new ArrayDeque<>());
+        return roots;
+    }
+
+    /**
+     * Builds the sub tree of a node already assembled from its descendants, so sub trees can be assembled separately
+     * and give the same result as assembling the whole forest at once
+     */
+    public void assembleBelow(CommunityTreeNode parent, Iterator<Community> descendantsInTreeOrder) {
+
+        Deque<CommunityTreeNode> openAncestors = new ArrayDeque<>();
+        openAncestors.push(parent);
+        assemble(descendantsInTreeOrder, new ArrayList<>(), openAncestors);
+    }
+
+    /**
+     * A community is only kept when its whole line of ancestors was kept before it. Ancestors stay open for as long
+     * as the communities are in their sub tree, so a community whose parent is missing is skipped on its own rather
+     * than closing its ancestors on the communities that follow it.
+     */
+    private static void assemble(Iterator<Community> communitiesInTreeOrder, List<CommunityTreeNode> roots, Deque<CommunityTreeNode> openAncestors) {
+
+        while (communitiesInTreeOrder.hasNext()) {
+            Community community = communitiesInTreeOrder.next();
+            String path = community.getPath();
+
+            while (!openAncestors.isEmpty() && !isInSubTree(openAncestors.peek(), path)) {
+                openAncestors.pop();
+            }
+
+            CommunityTreeNode node = new CommunityTreeNode(community.getName(), community.getKey(), path);
+
+            if (!openAncestors.isEmpty() && isParent(openAncestors.peek(), path)) {
+                openAncestors.peek().getChildren().add(node);
+            } else if (openAncestors.isEmpty() && path.equals(Community.PATH_SEPERATOR)) {
+                roots.add(node);
+            } else {
+                logger.warn("Skipping community {} as its parent was not found before it", community);
+                continue;
+            }
+
+            openAncestors.push(node);
+        }
+    }
+
+    private static boolean isInSubTree(CommunityTreeNode candidate, String path) {
+        return CommunityPaths.isInSubTree(path, candidate.getPath(), candidate.getPathSegment());
+    }
+
+    private static boolean isParent(CommunityTreeNode candidate, String path) {
+        return CommunityPaths.isChildPath(path, candidate.getPath(), candidate.getPathSegment());
+    }
+}
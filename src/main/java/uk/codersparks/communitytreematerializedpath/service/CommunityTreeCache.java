@@ -0,0 +1,429 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Read-through, in-memory copy of the community forest.
+ *
+ * The forest is loaded once and then patched as communities are created, moved, renamed and deleted. Nodes only hold a pointer to
+ * their parent, so a move re-parents a single node no matter how large its sub tree is. Readers are given an
+ * immutable {@link CommunityTreeSnapshot} which is only re-materialized after the tree has changed. Whenever a
+ * patch does not line up with what is cached the cache is dropped and the next read rebuilds it from the database,
+ * which can be read without holding up writers as long as none of them report a change before it is loaded.
+ */
+@Component
+public class CommunityTreeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityTreeCache.class);
+
+    private final Map<String, CachedNode> nodesBySegment = new HashMap<>();
+    private final List<CachedNode> roots = new ArrayList<>();
+
+    private boolean loaded;
+    private long version;
+
+    private volatile CommunityTreeSnapshot snapshot;
+
+    /**
+     * Counts every change reported, including those ignored while the tree is not loaded
+     */
+    private volatile long changeCount;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CommunityTreeSnapshot getSnapshot(Supplier<List<CommunityTreeNode>> loader) {
+
+        CommunityTreeSnapshot current = snapshot;
+        if (current != null) {
+            hits.increment();
+            return current;
+        }
+
+        synchronized (this) {
+            if (snapshot != null || loaded) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+            if (snapshot == null) {
+                if (loaded) {
+                    snapshot = new CommunityTreeSnapshot(version, materialize());
+                } else {
+                    load(loader.get());
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * The current snapshot, materialized from the cached tree if it has changed since the last one, without ever
+     * going to the repository
+     *
+     * @return the snapshot, or null when the tree has to be loaded first
+     */
+    public CommunityTreeSnapshot getLoadedSnapshot() {
+
+        CommunityTreeSnapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (!loaded) {
+                    return null;
+                }
+                if (snapshot == null) {
+                    snapshot = new CommunityTreeSnapshot(version, materialize());
+                }
+                current = snapshot;
+            }
+        }
+
+        hits.increment();
+        return current;
+    }
+
+    /**
+     * Loads a tree read from the repository without holding up writers during the read. As changes made during the
+     * read may be missing from it, the tree is only loaded when no change has been reported since the read started.
+     *
+     * @param changeCountBeforeRead the change count taken before the read started
+     * @return the snapshot, or null when a change was reported during the read and the tree has to be read again
+     */
+    public synchronized CommunityTreeSnapshot load(List<CommunityTreeNode> tree, long changeCountBeforeRead) {
+
+        misses.increment();
+
+        if (!loaded) {
+            if (changeCount != changeCountBeforeRead) {
+                return null;
+            }
+            load(tree);
+        } else if (snapshot == null) {
+            snapshot = new CommunityTreeSnapshot(version, materialize());
+        }
+        return snapshot;
+    }
+
+    public long getChangeCount() {
+        return changeCount;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized void onCreated(Community community) {
+
+        changeCount++;
+
+        if (!loaded) {
+            return;
+        }
+
+        CachedNode existing = nodesBySegment.get(community.getPathSegment());
+        if (existing != null) {
+            if (!pathOf(existing).equals(community.getPath()) || !existing.name.equals(community.getName())) {
+                invalidate("created community " + community.getName() + " is already cached elsewhere");
+            }
+            return;
+        }
+
+        CachedNode node = new CachedNode(community.getName(), community.getKey());
+        if (!attach(node, community.getPath())) {
+            invalidate("cannot find cached parent for created community " + community.getName());
+            return;
+        }
+
+        nodesBySegment.put(node.segment(), node);
+        changed();
+    }
+
+    public synchronized void onMoved(Community community, String originalPath) {
+
+        changeCount++;
+
+        if (!loaded) {
+            return;
+        }
+
+        CachedNode node = nodesBySegment.get(community.getPathSegment());
+        if (node == null) {
+            invalidate("moved community " + community.getName() + " is not cached");
+            return;
+        }
+
+        String cachedPath = pathOf(node);
+        if (cachedPath.equals(community.getPath())) {
+            return;
+        }
+        if (!cachedPath.equals(originalPath)) {
+            invalidate("cached path " + cachedPath + " of " + community.getName() + " does not match " + originalPath);
+            return;
+        }
+
+        CachedNode originalParent = node.parent;
+        detach(node);
+
+        if (!attach(node, community.getPath())) {
+            // Put the node back so the invalidation below leaves nothing half moved behind
+            node.parent = originalParent;
+            siblingsOf(originalParent).add(node);
+            invalidate("cannot find cached parent for moved community " + community.getName());
+            return;
+        }
+
+        changed();
+    }
+
+    /**
+     * Renames a cached community. Only its own node changes, the paths of its descendants are derived from their
+     * ancestors so they follow along when they are built from names.
+     */
+    public synchronized void onRenamed(Community community, String oldName) {
+
+        changeCount++;
+
+        if (!loaded) {
+            return;
+        }
+
+        CachedNode renamed = nodesBySegment.get(community.getPathSegment());
+        if (renamed != null && renamed.name.equals(community.getName())) {
+            return;
+        }
+
+        String oldSegment = community.getKey() != null ? community.getKey() : oldName;
+
+        CachedNode node = nodesBySegment.get(oldSegment);
+        if (node == null) {
+            invalidate("renamed community " + oldName + " is not cached");
+            return;
+        }
+        if (!node.name.equals(oldName) || !pathOf(node).equals(community.getPath())) {
+            invalidate("cached community " + node.name + " does not match renamed community " + oldName);
+            return;
+        }
+
+        nodesBySegment.remove(oldSegment);
+        node.name = community.getName();
+        nodesBySegment.put(node.segment(), node);
+        changed();
+    }
+
+    /**
+     * Removes a cached community along with its sub tree
+     */
+    public synchronized void onDeleted(Community community) {
+
+        changeCount++;
+
+        if (!loaded) {
+            return;
+        }
+
+        CachedNode node = nodesBySegment.get(community.getPathSegment());
+        if (node == null) {
+            return;
+        }
+        if (!node.name.equals(community.getName()) || !pathOf(node).equals(community.getPath())) {
+            invalidate("cached community " + node.name + " does not match deleted community " + community.getName());
+            return;
+        }
+
+        detach(node);
+
+        Deque<CachedNode> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            CachedNode deleted = pending.pop();
+            nodesBySegment.remove(deleted.segment());
+            deleted.children.forEach(pending::push);
+        }
+
+        changed();
+    }
+
+    /**
+     * Drops the cached tree when the caller knows it is out of date, such as after a bulk write
+     */
+    public synchronized void invalidate() {
+        changeCount++;
+        logger.debug("Dropping cached community tree as it was explicitly invalidated");
+        drop();
+    }
+
+    /**
+     * Drops the cached tree when a change does not line up with it, which means it had gone out of date unnoticed
+     */
+    private void invalidate(String reason) {
+        logger.warn("Dropping cached community tree, {}", reason);
+        drop();
+    }
+
+    private void drop() {
+
+        nodesBySegment.clear();
+        roots.clear();
+        loaded = false;
+        changed();
+    }
+
+    private void changed() {
+        version++;
+        snapshot = null;
+    }
+
+    private void load(List<CommunityTreeNode> tree) {
+
+        nodesBySegment.clear();
+        roots.clear();
+
+        Deque<CommunityTreeNode> pending = new ArrayDeque<>();
+        Deque<CachedNode> pendingParents = new ArrayDeque<>();
+
+        for (CommunityTreeNode root : tree) {
+            CachedNode node = new CachedNode(root.getName(), root.getKey());
+            roots.add(node);
+            nodesBySegment.put(node.segment(), node);
+            pending.push(root);
+            pendingParents.push(node);
+        }
+
+        while (!pending.isEmpty()) {
+            CommunityTreeNode treeNode = pending.pop();
+            CachedNode parent = pendingParents.pop();
+            for (CommunityTreeNode child : treeNode.getChildren()) {
+                CachedNode node = new CachedNode(child.getName(), child.getKey());
+                node.parent = parent;
+                parent.children.add(node);
+                nodesBySegment.put(node.segment(), node);
+                pending.push(child);
+                pendingParents.push(node);
+            }
+        }
+
+        loaded = true;
+        version++;
+        snapshot = new CommunityTreeSnapshot(version, tree);
+
+        logger.info("Loaded {} communities into the tree cache at version {}", nodesBySegment.size(), version);
+    }
+
+    private List<CommunityTreeNode> materialize() {
+
+        List<CommunityTreeNode> tree = new ArrayList<>(roots.size());
+
+        Deque<CachedNode> pending = new ArrayDeque<>();
+        Deque<CommunityTreeNode> pendingTreeNodes = new ArrayDeque<>();
+
+        for (CachedNode root : roots) {
+            CommunityTreeNode treeNode = new CommunityTreeNode(root.name, root.key, Community.PATH_SEPERATOR);
+            tree.add(treeNode);
+            pending.push(root);
+            pendingTreeNodes.push(treeNode);
+        }
+
+        while (!pending.isEmpty()) {
+            CachedNode node = pending.pop();
+            CommunityTreeNode treeNode = pendingTreeNodes.pop();
+            String childPath = treeNode.getPath() + node.segment() + Community.PATH_SEPERATOR;
+            for (CachedNode child : node.children) {
+                CommunityTreeNode childTreeNode = new CommunityTreeNode(child.name, child.key, childPath);
+                treeNode.getChildren().add(childTreeNode);
+                pending.push(child);
+                pendingTreeNodes.push(childTreeNode);
+            }
+        }
+
+        return tree;
+    }
+
+    private boolean attach(CachedNode node, String path) {
+
+        String parentSegment = CommunityPaths.parentName(path);
+
+        CachedNode parent = null;
+        if (parentSegment != null) {
+            parent = nodesBySegment.get(parentSegment);
+            if (parent == null || isInSubTree(parent, node) || !(pathOf(parent) + parentSegment + Community.PATH_SEPERATOR).equals(path)) {
+                return false;
+            }
+        }
+
+        node.parent = parent;
+        siblingsOf(parent).add(node);
+        return true;
+    }
+
+    private void detach(CachedNode node) {
+        siblingsOf(node.parent).remove(node);
+        node.parent = null;
+    }
+
+    private List<CachedNode> siblingsOf(CachedNode parent) {
+        return parent == null ? roots : parent.children;
+    }
+
+    private static boolean isInSubTree(CachedNode candidate, CachedNode subTreeRoot) {
+        for (CachedNode node = candidate; node != null; node = node.parent) {
+            if (node == subTreeRoot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String pathOf(CachedNode node) {
+
+        Deque<String> segments = new ArrayDeque<>();
+        for (CachedNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+            segments.push(ancestor.segment());
+        }
+
+        StringBuilder path = new StringBuilder(Community.PATH_SEPERATOR);
+        for (String segment : segments) {
+            path.append(segment).append(Community.PATH_SEPERATOR);
+        }
+        return path.toString();
+    }
+
+    private static final class CachedNode {
+
+        private String name;
+        private final String key;
+        private final List<CachedNode> children = new ArrayList<>();
+        private CachedNode parent;
+
+        private CachedNode(String name, String key) {
+            this.name = name;
+            this.key = key;
+        }
+
+        private String segment() {
+            return key != null ? key : name;
+        }
+    }
+}
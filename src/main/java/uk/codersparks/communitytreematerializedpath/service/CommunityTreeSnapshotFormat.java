@@ -0,0 +1,272 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Binary snapshot of the community forest that loads without rebuilding any paths from the database.
+ *
+ * The file holds a header (magic, format, stamp, community count and name and key table lengths), then the index of
+ * each community's parent in tree order (-1 for roots), then the end offsets of each name and key in their tables,
+ * then the name and key tables themselves as UTF-8. Communities without a key have an empty one. Every name and key
+ * is stored once and paths are rebuilt from the parent indices, so the file is a few bytes per community plus its
+ * name and key. Parents always come before their children, which lets the forest be rebuilt in a single pass over the
+ * memory mapped arrays.
+ */
+public class CommunityTreeSnapshotFormat {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityTreeSnapshotFormat.class);
+
+    static final int MAGIC = 0x43545346;
+    static final int FORMAT = 2;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4;
+
+    /**
+     * Writes communities supplied in tree order to the file, replacing it atomically so a reader never sees a partly
+     * written snapshot
+     *
+     * @param stamp identifies the state of the database the communities were read from
+     * @return the number of communities written
+     */
+    public int write(Path file, long stamp, Iterator<Community> communitiesInTreeOrder) throws IOException {
+
+        int count = 0;
+        int[] parents = new int[1024];
+        int[] nameEnds = new int[1024];
+        int[] keyEnds = new int[1024];
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+
+        Deque<OpenAncestor> openAncestors = new ArrayDeque<>();
+
+        while (communitiesInTreeOrder.hasNext()) {
+            Community community = communitiesInTreeOrder.next();
+            String path = community.getPath();
+
+            while (!openAncestors.isEmpty() && !openAncestors.peek().isParentOf(path)) {
+                openAncestors.pop();
+            }
+
+            int parent;
+            if (!openAncestors.isEmpty()) {
+                parent = openAncestors.peek().index;
+            } else if (path.equals(Community.PATH_SEPERATOR)) {
+                parent = -1;
+            } else {
+                logger.warn("Skipping community {} as its parent was not found before it", community);
+                continue;
+            }
+
+            if (count == parents.length) {
+                parents = Arrays.copyOf(parents, count * 2);
+                nameEnds = Arrays.copyOf(nameEnds, count * 2);
+                keyEnds = Arrays.copyOf(keyEnds, count * 2);
+            }
+
+            byte[] name = community.getName().getBytes(StandardCharsets.UTF_8);
+            names.write(name, 0, name.length);
+
+            if (community.getKey() != null) {
+                byte[] key = community.getKey().getBytes(StandardCharsets.UTF_8);
+                keys.write(key, 0, key.length);
+            }
+
+            parents[count] = parent;
+            nameEnds[count] = names.size();
+            keyEnds[count] = keys.size();
+
+            openAncestors.push(new OpenAncestor(count, community.getPathSegment(), path));
+            count++;
+        }
+
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(stamp);
+                out.writeInt(count);
+                out.writeInt(names.size());
+                out.writeInt(keys.size());
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(parents[i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(nameEnds[i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(keyEnds[i]);
+                }
+                names.writeTo(out);
+                keys.writeTo(out);
+            }
+
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        return count;
+    }
+
+    /**
+     * Memory maps the file and rebuilds the forest from it, as long as it was written at the expected stamp
+     *
+     * @return the roots of the forest, or null when the snapshot was written at a different stamp
+     * @throws IOException when the file cannot be read or is not a valid snapshot
+     */
+    public List<CommunityTreeNode> read(Path file, long expectedStamp) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Snapshot " + file + " is too short to have a header");
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a community tree snapshot");
+            }
+            int format = buffer.getInt();
+            if (format != FORMAT) {
+                throw new IOException("Snapshot " + file + " has unsupported format " + format);
+            }
+
+            long stamp = buffer.getLong();
+            if (stamp != expectedStamp) {
+                logger.info("Ignoring snapshot {} as it was written at stamp {} rather than {}", file, stamp, expectedStamp);
+                return null;
+            }
+
+            int count = buffer.getInt();
+            int namesLength = buffer.getInt();
+            int keysLength = buffer.getInt();
+            if (count < 0 || namesLength < 0 || keysLength < 0 || size != HEADER_BYTES + 12L * count + namesLength + keysLength) {
+                throw new IOException("Snapshot " + file + " is truncated or corrupt");
+            }
+
+            IntBuffer parents = buffer.asIntBuffer();
+            buffer.position(buffer.position() + 4 * count);
+            IntBuffer nameEnds = buffer.asIntBuffer();
+            buffer.position(buffer.position() + 4 * count);
+            IntBuffer keyEnds = buffer.asIntBuffer();
+            buffer.position(buffer.position() + 4 * count);
+
+            byte[] names = new byte[namesLength];
+            buffer.get(names);
+            byte[] keys = new byte[keysLength];
+            buffer.get(keys);
+
+            return assemble(file, count, parents, new StringTable(nameEnds, names), new StringTable(keyEnds, keys));
+        }
+    }
+
+    private static List<CommunityTreeNode> assemble(Path file, int count, IntBuffer parents, StringTable names, StringTable keys) throws IOException {
+
+        List<CommunityTreeNode> roots = new ArrayList<>();
+        CommunityTreeNode[] nodes = new CommunityTreeNode[count];
+
+        // The path of the children of each node, built once and shared between all of them
+        String[] childPaths = new String[count];
+
+        for (int i = 0; i < count; i++) {
+            int parent = parents.get(i);
+            String name = names.next();
+            String key = keys.next();
+            if (parent < -1 || parent >= i || name == null || key == null) {
+                throw new IOException("Snapshot " + file + " is corrupt at community " + i);
+            }
+
+            if (key.isEmpty()) {
+                key = null;
+            }
+
+            if (parent == -1) {
+                nodes[i] = new CommunityTreeNode(name, key, Community.PATH_SEPERATOR);
+                roots.add(nodes[i]);
+            } else {
+                if (childPaths[parent] == null) {
+                    childPaths[parent] = nodes[parent].getPath() + nodes[parent].getPathSegment() + Community.PATH_SEPERATOR;
+                }
+                nodes[i] = new CommunityTreeNode(name, key, childPaths[parent]);
+                nodes[parent].getChildren().add(nodes[i]);
+            }
+        }
+
+        return roots;
+    }
+
+    /**
+     * Reads the strings of a table in order
+     */
+    private static final class StringTable {
+
+        private final IntBuffer ends;
+        private final byte[] bytes;
+        private int start;
+
+        private StringTable(IntBuffer ends, byte[] bytes) {
+            this.ends = ends;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the next string, or null when its end offset is out of bounds
+         */
+        private String next() {
+
+            int end = ends.get();
+            if (end < start || end > bytes.length) {
+                return null;
+            }
+
+            String string = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            start = end;
+            return string;
+        }
+    }
+
+    private static final class OpenAncestor {
+
+        private final int index;
+        private final String segment;
+        private final String path;
+
+        private OpenAncestor(int index, String segment, String path) {
+            this.index = index;
+            this.segment = segment;
+            this.path = path;
+        }
+
+        private boolean isParentOf(String childPath) {
+            return CommunityPaths.isChildPath(childPath, path, segment);
+        }
+    }
+}
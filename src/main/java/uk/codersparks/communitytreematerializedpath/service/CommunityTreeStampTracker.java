@@ -0,0 +1,103 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Tells whether the tree has been written to other than through this instance, using the tree stamp every write
+ * advances. The advances made through this instance are counted, so a stamp that has moved further than they account
+ * for was also advanced by another instance.
+ *
+ * The stamp is read at most once per check interval, by whichever caller finds it due, so a write made through another
+ * instance can go unseen for up to the interval. An advance made through this instance while the stamp is read can
+ * delay a foreign one being reported until the next check, or have one reported that was not made, which only costs
+ * a needless reload.
+ */
+public class CommunityTreeStampTracker {
+
+    private final LongSupplier stampReader;
+    private final long checkIntervalNanos;
+    private final LongSupplier nanoClock;
+
+    private final AtomicLong localAdvances = new AtomicLong();
+    private final AtomicLong nextCheckAt;
+
+    /**
+     * The stamp less the local advances as of the last check, which only moves when another instance writes
+     */
+    private long foreignStamp;
+    private boolean checked;
+
+    /**
+     * @param checkInterval how often to read the stamp, 0 to never read it
+     */
+    public CommunityTreeStampTracker(LongSupplier stampReader, long checkInterval, TimeUnit unit) {
+        this(stampReader, checkInterval, unit, System::nanoTime);
+    }
+
+    CommunityTreeStampTracker(LongSupplier stampReader, long checkInterval, TimeUnit unit, LongSupplier nanoClock) {
+
+        if (checkInterval < 0) {
+            throw new IllegalArgumentException("Check interval cannot be negative: " + checkInterval);
+        }
+
+        this.stampReader = stampReader;
+        this.checkIntervalNanos = unit.toNanos(checkInterval);
+        this.nanoClock = nanoClock;
+        this.nextCheckAt = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    /**
+     * Advances the stamp through this instance
+     *
+     * @return the advanced stamp
+     */
+    public long advance(LongSupplier advancer) {
+
+        localAdvances.incrementAndGet();
+        try {
+            return advancer.getAsLong();
+        } catch (RuntimeException e) {
+            localAdvances.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the stamp if a check is due
+     *
+     * @return true when the stamp has been advanced by another instance since the last check, the first check only
+     * takes note of the stamp
+     */
+    public boolean checkForeignAdvances() {
+
+        if (checkIntervalNanos == 0) {
+            return false;
+        }
+
+        long now = nanoClock.getAsLong();
+        long checkAt = nextCheckAt.get();
+        if (now - checkAt < 0 || !nextCheckAt.compareAndSet(checkAt, now + checkIntervalNanos)) {
+            return false;
+        }
+
+        // Counted first, so an advance landing between the two reads is counted without being in the stamp
+        long advances = localAdvances.get();
+        long stamp = stampReader.getAsLong();
+
+        synchronized (this) {
+            long current = stamp - advances;
+            if (!checked) {
+                checked = true;
+                foreignStamp = current;
+                return false;
+            }
+            if (current <= foreignStamp) {
+                return false;
+            }
+            foreignStamp = current;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs a call once for every caller that asks for it while it is in flight. The first caller runs it and the rest wait
+ * for and share its result, or its failure.
+ *
+ * Each call is made at a generation, and callers only wait for a call made at the generation they ask for. A caller
+ * that has seen a later generation, such as a change made since the call started, starts a call of its own rather
+ * than sharing a result that may be older than what it has already seen.
+ */
+public class SingleFlight<T> {
+
+    private final AtomicReference<Flight<T>> inFlight = new AtomicReference<>();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public T run(long generation, Supplier<T> call) {
+
+        while (true) {
+            Flight<T> current = inFlight.get();
+            if (current != null && current.generation == generation) {
+                coalesced.increment();
+                return current.await();
+            }
+
+            Flight<T> flight = new Flight<>(generation);
+            if (inFlight.compareAndSet(current, flight)) {
+                calls.increment();
+                try {
+                    T result = call.get();
+                    flight.result.complete(result);
+                    return result;
+                } catch (RuntimeException | Error e) {
+                    flight.result.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.compareAndSet(flight, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of calls actually made
+     */
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    /**
+     * The number of callers that shared a call made for another caller
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    private static final class Flight<T> {
+
+        private final long generation;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Flight(long generation) {
+            this.generation = generation;
+        }
+
+        private T await() {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                // The caller that ran the call has already seen the failure as it was thrown, rethrow it as is
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
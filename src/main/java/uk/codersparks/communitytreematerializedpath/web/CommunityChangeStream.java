@@ -0,0 +1,143 @@
+package uk.codersparks.communitytreematerializedpath.web;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import uk.codersparks.communitytreematerializedpath.model.CommunityChangeEvent;
+import uk.codersparks.communitytreematerializedpath.service.CommunityChangeFeed;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams the change feed to Server-Sent Events subscribers. Each event is named after the change type and carries
+ * the change version, prefixed with the feed's epoch, as its id, so a reconnecting client resumes from its
+ * Last-Event-ID. A client that has fallen further behind than the feed buffers, that has missed changes made through
+ * another instance, or that resumes from a version of an earlier run of the application, is sent a <code>resync</code>
+ * event with the current version, it should fetch the tree again and keep applying the events that follow.
+ *
+ * Every send happens on one dispatcher thread, which keeps each subscriber's events in order without locking and
+ * keeps slow clients off the threads making the changes.
+ */
+@Component
+public class CommunityChangeStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityChangeStream.class);
+
+    static final String RESYNC_EVENT = "resync";
+
+    private final CommunityChangeFeed changeFeed;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "community-change-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Runnable listener = () -> dispatcher.execute(this::dispatch);
+
+    public CommunityChangeStream(CommunityChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+
+        changeFeed.addListener(listener);
+    }
+
+    /**
+     * Subscribes to the changes made after the given position, or to new changes only when no position is given
+     *
+     * @param since a change version as handed out by {@link CommunityChangeFeed#toPosition(long)}
+     */
+    public SseEmitter subscribe(String since) {
+
+        SseEmitter emitter = new SseEmitter();
+        // A position the feed cannot read back leaves the subscriber without a version, so it is sent a resync
+        Subscriber subscriber = new Subscriber(emitter, since != null ? changeFeed.versionOf(since) : Long.valueOf(changeFeed.getVersion()));
+
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+
+        subscribers.add(subscriber);
+        dispatcher.execute(subscriber::catchUp);
+
+        logger.debug("Subscribed to changes after version {}, {} subscribers", subscriber.version, subscribers.size());
+
+        return emitter;
+    }
+
+    private void dispatch() {
+        subscribers.forEach(Subscriber::catchUp);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        changeFeed.removeListener(listener);
+        dispatcher.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    private class Subscriber {
+
+        private final SseEmitter emitter;
+
+        /**
+         * The version of the last change sent, null until a resync when the subscriber's version is unknown
+         */
+        private Long version;
+
+        private Subscriber(SseEmitter emitter, Long version) {
+            this.emitter = emitter;
+            this.version = version;
+        }
+
+        private void catchUp() {
+
+            if (!subscribers.contains(this)) {
+                return;
+            }
+
+            List<CommunityChangeEvent> events = version != null ? changeFeed.since(version) : null;
+            try {
+                if (events == null) {
+                    long currentVersion = changeFeed.getVersion();
+                    logger.debug("Subscriber at version {} has to resync at version {}", version, currentVersion);
+
+                    String position = changeFeed.toPosition(currentVersion);
+                    emitter.send(SseEmitter.event().name(RESYNC_EVENT).id(position).data(position));
+                    version = currentVersion;
+                    return;
+                }
+
+                for (CommunityChangeEvent event : events) {
+                    emitter.send(SseEmitter.event()
+                            .name(event.getType().name().toLowerCase(Locale.ROOT))
+                            .id(changeFeed.toPosition(event.getVersion()))
+                            .data(event));
+                    version = event.getVersion();
+                }
+            } catch (IOException | IllegalStateException e) {
+                // The client has gone away or the emitter already completed
+                logger.debug("Dropping change subscriber at version {}: {}", version, e.getMessage());
+                drop();
+            } catch (RuntimeException e) {
+                logger.warn("Dropping change subscriber at version {}", version, e);
+                drop();
+            }
+        }
+
+        private void drop() {
+
+            subscribers.remove(this);
+            try {
+                emitter.complete();
+            } catch (RuntimeException e) {
+                logger.debug("Could not complete the emitter of a dropped change subscriber: {}", e.getMessage());
+            }
+        }
+    }
+}
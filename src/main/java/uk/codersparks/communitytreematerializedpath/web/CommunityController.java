@@ -1,16 +1,27 @@
 package uk.codersparks.communitytreematerializedpath.web;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import uk.codersparks.communitytreematerializedpath.model.Community;
-import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.CommunityMove;
+import uk.codersparks.communitytreematerializedpath.model.CommunityStats;
+import uk.codersparks.communitytreematerializedpath.model.DistanceQuery;
+import uk.codersparks.communitytreematerializedpath.model.ExpandableCommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.NewCommunity;
 import uk.codersparks.communitytreematerializedpath.service.CommunityService;
 
+import java.net.URI;
 import java.util.List;
-import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/api/community")
@@ -18,21 +29,206 @@ public class CommunityController {
 
     private static final Logger logger = LoggerFactory.getLogger(CommunityController.class);
 
+    /**
+     * The change version a full tree response contains every change up to, prefixed with the epoch like the ETag,
+     * changes after it can be streamed from <code>/changes</code>
+     */
+    static final String CHANGE_VERSION_HEADER = "X-Change-Version";
+
     private final CommunityService communityService;
+    private final ObjectMapper objectMapper;
+    private final CommunityChangeStream changeStream;
+    private final CommunityTreeJsonWriter treeJsonWriter = new CommunityTreeJsonWriter();
+    private final VersionedResponseCache treeResponse;
 
-    public CommunityController(CommunityService communityService) {
+    public CommunityController(CommunityService communityService, ObjectMapper objectMapper, CommunityChangeStream changeStream) {
         this.communityService = communityService;
+        this.objectMapper = objectMapper;
+        this.changeStream = changeStream;
+        this.treeResponse = new VersionedResponseCache(objectMapper);
+    }
+
+    /**
+     * A strong ETag for the tree at a change version, the epoch keeps versions from before a restart from matching
+     */
+    private String eTag(long changeVersion) {
+        return "\"" + this.communityService.getChangePosition(changeVersion) + "\"";
+    }
+
+    private static boolean matches(String ifNoneMatch, String eTag) {
+
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
+    /**
+     * Lists community names in name order as they are read from the name index. A page starts after the name given
+     * by <code>after</code>, so the next page starts after the last name of this one, and holds at most
+     * <code>limit</code> names, all of them when it is 0.
+     */
     @GetMapping(path = "/")
-    public ResponseEntity<List<String>> getCommunities() {
-        return ResponseEntity.ok(communityService.getAllCommunities().stream().map(Community::getName).collect(Collectors.toList()));
+    public ResponseEntity<StreamingResponseBody> getCommunities(
+            @RequestHeader(name="If-None-Match", required=false) String ifNoneMatch,
+            @RequestParam(name="after", required=false) String after,
+            @RequestParam(name="limit", defaultValue="0") int limit
+    ) {
+
+        long changeVersion = this.communityService.getChangeVersion();
+        String eTag = eTag(changeVersion);
+
+        if (matches(ifNoneMatch, eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+
+        // Opened before responding so an invalid page fails the request rather than the stream
+        CloseableIterator<String> names = this.communityService.streamCommunityNames(after, limit);
+
+        StreamingResponseBody body = outputStream -> {
+            try (CloseableIterator<String> namesToWrite = names;
+                 JsonGenerator generator = this.objectMapper.getFactory().createGenerator(outputStream)) {
+
+                generator.writeStartArray();
+                while (namesToWrite.hasNext()) {
+                    generator.writeString(namesToWrite.next());
+                }
+                generator.writeEndArray();
+            }
+        };
+
+        return ResponseEntity.ok().eTag(eTag).contentType(MediaType.APPLICATION_JSON_UTF8).body(body);
+    }
+
+    @PostMapping(path = "/")
+    public ResponseEntity<List<Community>> createCommunities(@RequestBody List<NewCommunity> newCommunities) {
+
+        logger.info("Creating {} communities", newCommunities.size());
+
+        return ResponseEntity.status(HttpStatus.CREATED).body(this.communityService.createCommunities(newCommunities));
     }
 
     @GetMapping(path = "/tree")
-    public ResponseEntity<List<CommunityTreeNode>> getTree() {
+    public ResponseEntity<byte[]> getTree(
+            @RequestHeader(name="If-None-Match", required=false) String ifNoneMatch
+    ) throws JsonProcessingException {
+
+        long changeVersion = this.communityService.getChangeVersion();
+
+        if (this.communityService.hasUnfinishedMoves()) {
+            // The tree changes with every batch of the move without the change version moving, so it is neither
+            // tagged nor cached until the move finishes
+            return ResponseEntity.ok()
+                    .header(CHANGE_VERSION_HEADER, this.communityService.getChangePosition(changeVersion))
+                    .contentType(MediaType.APPLICATION_JSON_UTF8)
+                    .body(this.objectMapper.writeValueAsBytes(this.communityService.generateTree()));
+        }
+
+        String eTag = eTag(changeVersion);
+
+        if (matches(ifNoneMatch, eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).header(CHANGE_VERSION_HEADER, this.communityService.getChangePosition(changeVersion)).build();
+        }
+
+        byte[] body = this.treeResponse.get(changeVersion, this.communityService::getTreeSnapshot);
+
+        return ResponseEntity.ok()
+                .eTag(eTag)
+                .header(CHANGE_VERSION_HEADER, this.communityService.getChangePosition(changeVersion))
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(body);
+    }
+
+    @GetMapping(path = "/tree", params = "depth")
+    public ResponseEntity<List<ExpandableCommunityTreeNode>> getTree(@RequestParam(name="depth") int depth) {
+
+        return ResponseEntity.ok(this.communityService.generateTree(depth));
+    }
+
+    @GetMapping(path = "/tree/{id}")
+    public ResponseEntity<ExpandableCommunityTreeNode> getTree(
+            @PathVariable(name="id") String id,
+            @RequestParam(name="depth", defaultValue="1") int depth
+    ) {
+
+        return ResponseEntity.ok(this.communityService.generateTree(id, depth));
+    }
+
+    @GetMapping(path = "/tree", params = "stream=true")
+    public ResponseEntity<StreamingResponseBody> streamTree() {
+
+        long changeVersion = this.communityService.getChangeVersion();
+
+        StreamingResponseBody body = outputStream -> {
+            try (CloseableIterator<Community> communities = this.communityService.streamCommunitiesInTreeOrder();
+                 JsonGenerator generator = this.objectMapper.getFactory().createGenerator(outputStream)) {
+
+                long written = this.treeJsonWriter.write(communities, generator);
+
+                logger.debug("Streamed {} communities", written);
+            }
+        };
+
+        return ResponseEntity.ok()
+                .header(CHANGE_VERSION_HEADER, this.communityService.getChangePosition(changeVersion))
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(body);
+    }
+
+    @GetMapping(path = "/changes")
+    public SseEmitter streamChanges(
+            @RequestParam(name="since", required=false) String since,
+            @RequestHeader(name="Last-Event-ID", required=false) String lastEventId
+    ) {
+
+        // A reconnecting EventSource repeats the original URL, the id of the last event it saw takes precedence
+        return this.changeStream.subscribe(lastEventId != null ? lastEventId : since);
+    }
+
+    @GetMapping(path = "/tree/{id}/descendants")
+    public ResponseEntity<List<Community>> getDescendants(@PathVariable(name="id") String id) {
+
+        return ResponseEntity.ok(this.communityService.getDescendants(id));
+    }
+
+    @GetMapping(path = "/tree/{id}/stats")
+    public ResponseEntity<CommunityStats> getStats(@PathVariable(name="id") String id) {
+
+        return ResponseEntity.ok(this.communityService.getStats(id));
+    }
+
+    @GetMapping(path = "/tree/{id}/children")
+    public ResponseEntity<List<Community>> getChildren(@PathVariable(name="id") String id) {
+
+        return ResponseEntity.ok(this.communityService.getChildren(id));
+    }
+
+    @GetMapping(path = "/tree/{id}/ancestors")
+    public ResponseEntity<List<Community>> getAncestors(@PathVariable(name="id") String id) {
 
-        return ResponseEntity.ok(this.communityService.generateTree());
+        return ResponseEntity.ok(this.communityService.getAncestors(id));
+    }
+
+    @GetMapping(path = "/tree/{id}/distance/{to}")
+    public ResponseEntity<Integer> distanceToCommonAncestor(
+            @PathVariable(name="id") String id,
+            @PathVariable(name="to") String to
+    ) {
+
+        return ResponseEntity.ok(this.communityService.distanceToCommonAncestor(id, to));
+    }
+
+    @PostMapping(path = "/tree/distance")
+    public ResponseEntity<int[]> distancesToCommonAncestor(@RequestBody List<DistanceQuery> queries) {
+
+        return ResponseEntity.ok(this.communityService.distancesToCommonAncestor(queries));
     }
 
     @PostMapping(path="/tree/{id}/parent/")
@@ -59,4 +255,92 @@ public class CommunityController {
 
         return ResponseEntity.noContent().build();
     }
+
+    /**
+     * Deletes a community, which must not have children unless <code>cascade</code> is set to delete its whole sub tree
+     */
+    @DeleteMapping(path="/tree/{id}")
+    public ResponseEntity<Void> deleteCommunity(
+            @PathVariable(name="id") String id,
+            @RequestParam(name="cascade", defaultValue="false") boolean cascade
+    ) {
+
+        logger.info("Deleting community: {}{}", id, cascade ? " and its sub tree" : "");
+
+        this.communityService.deleteCommunity(id, cascade);
+
+        return ResponseEntity.noContent().build();
+    }
+
+    @PostMapping(path="/tree/{id}/parent/", params = "batched=true")
+    public ResponseEntity<CommunityMove> startMove(
+            @PathVariable(name="id") String id
+    ) {
+
+        logger.info("Starting batched move of community: {} to root", id);
+
+        return accepted(this.communityService.startMove(id, ""));
+    }
+
+    /**
+     * Moves the community and returns straight away, leaving its descendants to be rewritten in batches. The progress
+     * of the move can be followed at the location returned.
+     */
+    @PostMapping(path="/tree/{id}/parent/{parent}", params = "batched=true")
+    public ResponseEntity<CommunityMove> startMove(
+            @PathVariable(name="id") String id,
+            @PathVariable(name="parent") String parent
+    ) {
+
+        logger.info("Starting batched move of community: {} to parent: {}", id, parent);
+
+        return accepted(this.communityService.startMove(id, parent));
+    }
+
+    @GetMapping(path="/moves")
+    public ResponseEntity<List<CommunityMove>> getUnfinishedMoves() {
+
+        return ResponseEntity.ok(this.communityService.getUnfinishedMoves());
+    }
+
+    @GetMapping(path="/moves/{moveId}")
+    public ResponseEntity<CommunityMove> getMove(@PathVariable(name="moveId") String moveId) {
+
+        CommunityMove move = this.communityService.getMove(moveId);
+
+        return move == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(move);
+    }
+
+    @PostMapping(path="/moves/{moveId}/resume")
+    public ResponseEntity<CommunityMove> resumeMove(@PathVariable(name="moveId") String moveId) {
+
+        logger.info("Resuming move: {}", moveId);
+
+        return accepted(this.communityService.resumeMove(moveId));
+    }
+
+    @PostMapping(path="/moves/{moveId}/rollback")
+    public ResponseEntity<CommunityMove> rollBackMove(@PathVariable(name="moveId") String moveId) {
+
+        logger.info("Rolling back move: {}", moveId);
+
+        return accepted(this.communityService.rollBackMove(moveId));
+    }
+
+    private static ResponseEntity<CommunityMove> accepted(CommunityMove move) {
+        return ResponseEntity.accepted().location(URI.create("/api/community/moves/" + move.getId())).body(move);
+    }
+
+    @PostMapping(path="/tree/{id}/name/{name}")
+    public ResponseEntity<Void> renameCommunity(
+            @PathVariable(name="id") String id,
+            @PathVariable(name="name") String name
+    ) {
+
+        logger.info("Renaming community: {} to: {}", id, name);
+
+        this.communityService.renameCommunity(id, name);
+
+        return ResponseEntity.noContent().build();
+    }
 }
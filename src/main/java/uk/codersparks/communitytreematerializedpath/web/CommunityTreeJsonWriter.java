@@ -0,0 +1,70 @@
+package uk.codersparks.communitytreematerializedpath.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Writes communities supplied in tree order (each community directly followed by its sub tree) as the same nested
+ * JSON that serializing the {@link uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode} forest
+ * produces. Only the identity paths of the currently open ancestors are held, so memory is bounded by the depth of
+ * the tree rather than its size.
+ */
+public class CommunityTreeJsonWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommunityTreeJsonWriter.class);
+
+    public long write(Iterator<Community> communitiesInTreeOrder, JsonGenerator generator) throws IOException {
+
+        Deque<String> openIdentityPaths = new ArrayDeque<>();
+        long written = 0;
+
+        generator.writeStartArray();
+
+        while (communitiesInTreeOrder.hasNext()) {
+            Community community = communitiesInTreeOrder.next();
+
+            // Close every open community that is not the parent of this one
+            while (!openIdentityPaths.isEmpty() && !openIdentityPaths.peek().equals(community.getPath())) {
+                closeNode(generator);
+                openIdentityPaths.pop();
+            }
+
+            if (openIdentityPaths.isEmpty() && !community.getPath().equals(Community.PATH_SEPERATOR)) {
+                logger.warn("Skipping community {} as its parent was not found before it", community);
+                continue;
+            }
+
+            generator.writeStartObject();
+            generator.writeStringField("name", community.getName());
+            if (community.getKey() != null) {
+                generator.writeStringField("key", community.getKey());
+            }
+            generator.writeStringField("path", community.getPath());
+            generator.writeArrayFieldStart("children");
+            openIdentityPaths.push(community.getIdentityPath());
+            written++;
+        }
+
+        while (!openIdentityPaths.isEmpty()) {
+            closeNode(generator);
+            openIdentityPaths.pop();
+        }
+
+        generator.writeEndArray();
+        generator.flush();
+
+        return written;
+    }
+
+    private static void closeNode(JsonGenerator generator) throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,54 @@
+package uk.codersparks.communitytreematerializedpath.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+
+import java.util.function.Supplier;
+
+/**
+ * Holds the serialized body of one response at the latest tree version it was asked for, so repeated reads of an
+ * unchanged tree are neither rebuilt nor serialized again. Trees that were not cached themselves are serialized every
+ * time, as they may be missing part of the forest.
+ */
+class VersionedResponseCache {
+
+    private final ObjectMapper objectMapper;
+
+    private volatile Entry latest;
+
+    VersionedResponseCache(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Gets the serialized roots of the tree for the version, which must have been taken before the tree is read
+     */
+    byte[] get(long version, Supplier<CommunityTreeSnapshot> tree) throws JsonProcessingException {
+
+        Entry entry = latest;
+        if (entry != null && entry.version == version) {
+            return entry.bytes;
+        }
+
+        CommunityTreeSnapshot snapshot = tree.get();
+        byte[] bytes = objectMapper.writeValueAsBytes(snapshot.getRoots());
+
+        if (snapshot.isCached() && (entry == null || entry.version < version)) {
+            latest = new Entry(version, bytes);
+        }
+
+        return bytes;
+    }
+
+    private static class Entry {
+
+        private final long version;
+        private final byte[] bytes;
+
+        private Entry(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package uk.codersparks.communitytreematerializedpath.repository;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Example;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.util.CloseableIterator;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityMove;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link CommunityRepository} stand-in that keeps the forest in memory so benchmarks measure the service rather
+ * than MongoDB. Communities are indexed by name and by identity path, the latter giving the same tree order and
+ * prefix range scans that the indexed path field gives in MongoDB. Copies are handed out and stored, as they would
+ * be when going through a database, so callers mutating a returned community cannot corrupt the indexes.
+ *
+ * Like MongoDB each call is atomic but a sequence of calls is not, and saves honour the version field, so it can
+ * also stand in for the database when testing concurrent tree writes.
+ */
+public class InMemoryCommunityRepository implements CommunityRepository {
+
+    private static final char MAX_CHAR = Character.MAX_VALUE;
+
+    private final Map<String, Community> byName = new HashMap<>();
+    private final NavigableMap<String, Community> byIdentityPath = new TreeMap<>();
+    private final Map<String, CommunityMove> moves = new HashMap<>();
+
+    private long treeStamp;
+    private long keyCounter;
+
+    @Override
+    public synchronized List<Community> findAllByOrderByPathAsc() {
+        return byIdentityPath.values().stream()
+                .sorted(Comparator.comparing(Community::getPath))
+                .map(InMemoryCommunityRepository::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized List<Community> findByPathRegexOrderByPathAsc(String pathRegex) {
+
+        String prefix = prefixOf(pathRegex);
+
+        return withPrefix(prefix).stream()
+                .filter(community -> community.getPath().startsWith(prefix))
+                .sorted(Comparator.comparing(Community::getPath))
+                .map(InMemoryCommunityRepository::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized List<Community> findByAncestorsOrderByPathAsc(String ancestorSegment) {
+        throw new UnsupportedOperationException("Only the path schema is supported in memory");
+    }
+
+    @Override
+    public synchronized List<Community> findByPathOrderByNameAsc(String path) {
+        return withPrefix(path).stream()
+                .filter(community -> community.getPath().equals(path))
+                .sorted(Comparator.comparing(Community::getName))
+                .map(InMemoryCommunityRepository::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized List<Community> findByNameIn(Collection<String> names) {
+        return names.stream()
+                .map(byName::get)
+                .filter(Objects::nonNull)
+                .map(InMemoryCommunityRepository::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized List<Community> findByKeyIn(Collection<String> keys) {
+        return byName.values().stream()
+                .filter(community -> keys.contains(community.getKey()))
+                .map(InMemoryCommunityRepository::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized long countByKeyExists(boolean exists) {
+        return byName.values().stream().filter(community -> (community.getKey() != null) == exists).count();
+    }
+
+    @Override
+    public synchronized List<Community> findByPathRegexAndDepthIn(String pathRegex, Collection<Integer> depths) {
+
+        String prefix = prefixOf(pathRegex);
+
+        return withPrefix(prefix).stream()
+                .filter(community -> community.getPath().startsWith(prefix) && depths.contains(community.getDepth()))
+                .map(InMemoryCommunityRepository::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized Map<String, Long> countChildrenByParentPath(String pathPrefix, int depth) {
+        return withPrefix(pathPrefix).stream()
+                .filter(community -> community.getPath().startsWith(pathPrefix) && community.getDepth() == depth)
+                .collect(Collectors.groupingBy(Community::getPath, Collectors.counting()));
+    }
+
+    @Override
+    public synchronized SortedMap<Integer, Long> countByDepth(String pathPrefix) {
+        return withPrefix(pathPrefix).stream()
+                .filter(community -> community.getPath().startsWith(pathPrefix))
+                .collect(Collectors.groupingBy(Community::getDepth, TreeMap::new, Collectors.counting()));
+    }
+
+    @Override
+    public synchronized long backfillDepth() {
+        // Depths are always derived from the path in memory
+        return 0;
+    }
+
+    @Override
+    public synchronized long backfillVersion() {
+        // Versions are always started by save and bulkInsert in memory
+        return 0;
+    }
+
+    @Override
+    public synchronized long backfillAncestors() {
+        throw new UnsupportedOperationException("Only the path schema is supported in memory");
+    }
+
+    @Override
+    public synchronized long removeAncestors() {
+        return 0;
+    }
+
+    @Override
+    public synchronized long replacePathPrefix(String oldPrefix, String newPrefix) {
+
+        List<Community> subTree = withPrefix(oldPrefix).stream()
+                .filter(community -> community.getPath().startsWith(oldPrefix))
+                .collect(Collectors.toList());
+
+        subTree.forEach(this::remove);
+        subTree.forEach(community -> {
+            community.setPath(newPrefix + community.getPath().substring(oldPrefix.length()));
+            community.setVersion(community.getVersion() + 1);
+            put(community);
+        });
+
+        return subTree.size();
+    }
+
+    @Override
+    public synchronized long replacePathPrefix(String oldPrefix, String newPrefix, boolean withAncestors, int limit) {
+
+        if (withAncestors) {
+            throw new UnsupportedOperationException("Only the path schema is supported in memory");
+        }
+
+        List<Community> batch = withPrefix(oldPrefix).stream()
+                .filter(community -> community.getPath().startsWith(oldPrefix))
+                .sorted(Comparator.comparing(Community::getPath))
+                .limit(limit)
+                .collect(Collectors.toList());
+
+        batch.forEach(this::remove);
+        batch.forEach(community -> {
+            community.setPath(newPrefix + community.getPath().substring(oldPrefix.length()));
+            community.setVersion(community.getVersion() + 1);
+            put(community);
+        });
+
+        return batch.size();
+    }
+
+    @Override
+    public synchronized boolean existsByPath(String path) {
+        return withPrefix(path).stream().anyMatch(community -> community.getPath().equals(path));
+    }
+
+    @Override
+    public synchronized long deleteSubTree(String name, String identityPath) {
+
+        List<Community> subTree = withPrefix(identityPath).stream()
+                .filter(community -> community.getPath().startsWith(identityPath))
+                .collect(Collectors.toList());
+        Community community = byName.get(name);
+        if (community != null) {
+            subTree.add(community);
+        }
+
+        subTree.forEach(this::remove);
+
+        return subTree.size();
+    }
+
+    @Override
+    public synchronized long replaceAncestorPath(String ancestorSegment, String oldPrefix, String newPrefix) {
+        throw new UnsupportedOperationException("Only the path schema is supported in memory");
+    }
+
+    @Override
+    public synchronized void rename(Community community, String newName) {
+
+        Community existing = byName.get(community.getName());
+        if (existing == null || !existing.getVersion().equals(community.getVersion())) {
+            throw new OptimisticLockingFailureException("Community " + community.getName() + " is not at version " + community.getVersion());
+        }
+        if (byName.containsKey(newName)) {
+            throw new DuplicateKeyException("Community " + newName + " already exists");
+        }
+
+        remove(existing);
+        community.setName(newName);
+        community.setVersion(community.getVersion() + 1);
+        put(copy(community));
+    }
+
+    @Override
+    public synchronized long allocateKeys(int count) {
+        long first = keyCounter;
+        keyCounter += count;
+        return first;
+    }
+
+    @Override
+    public synchronized long rewritePaths(boolean withKeys) {
+        throw new UnsupportedOperationException("Paths are not rewritten in memory");
+    }
+
+    @Override
+    public synchronized CloseableIterator<Community> streamAllInTreeOrder() {
+
+        Iterator<Community> iterator = new ArrayList<>(byIdentityPath.values()).iterator();
+
+        return new CloseableIterator<Community>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Community next() {
+                return copy(iterator.next());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public synchronized CloseableIterator<Community> streamSubTreeInTreeOrder(String identityPath) {
+
+        Iterator<Community> iterator = withPrefix(identityPath).stream()
+                .filter(community -> community.getPath().startsWith(identityPath))
+                .iterator();
+
+        return new CloseableIterator<Community>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Community next() {
+                return copy(iterator.next());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public synchronized CloseableIterator<String> streamNames(String after, int limit) {
+
+        Iterator<String> iterator = byName.keySet().stream()
+                .filter(name -> after == null || name.compareTo(after) > 0)
+                .sorted()
+                .limit(limit == 0 ? Long.MAX_VALUE : limit)
+                .collect(Collectors.toList())
+                .iterator();
+
+        return new CloseableIterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public synchronized void bulkInsert(List<Community> communities) {
+        for (Community community : communities) {
+            if (byName.containsKey(community.getName())) {
+                throw new DuplicateKeyException("Community " + community.getName() + " already exists");
+            }
+            if (community.getVersion() == null) {
+                community.setVersion(0L);
+            }
+            put(copy(community));
+        }
+    }
+
+    @Override
+    public synchronized void saveMove(CommunityMove move) {
+        if (move.getId() == null) {
+            move.setId(UUID.randomUUID().toString());
+        }
+        move.setUpdatedAt(new Date());
+        moves.put(move.getId(), copy(move));
+    }
+
+    @Override
+    public synchronized CommunityMove findMove(String id) {
+        CommunityMove move = moves.get(id);
+        return move == null ? null : copy(move);
+    }
+
+    @Override
+    public synchronized List<CommunityMove> findUnfinishedMoves() {
+        return moves.values().stream()
+                .filter(move -> !move.isFinished())
+                .map(InMemoryCommunityRepository::copy)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized long getTreeStamp() {
+        return treeStamp;
+    }
+
+    @Override
+    public synchronized long advanceTreeStamp() {
+        return ++treeStamp;
+    }
+
+    @Override
+    public synchronized <S extends Community> S save(S entity) {
+        Community existing = byName.get(entity.getName());
+        if (entity.getVersion() == null) {
+            if (existing != null) {
+                throw new DuplicateKeyException("Community " + entity.getName() + " already exists");
+            }
+            entity.setVersion(0L);
+        } else {
+            if (existing == null || !entity.getVersion().equals(existing.getVersion())) {
+                throw new OptimisticLockingFailureException("Community " + entity.getName() + " is not at version " + entity.getVersion());
+            }
+            remove(existing);
+            entity.setVersion(entity.getVersion() + 1);
+        }
+        put(copy(entity));
+        return entity;
+    }
+
+    @Override
+    public synchronized <S extends Community> List<S> save(Iterable<S> entities) {
+        List<S> saved = new ArrayList<>();
+        entities.forEach(entity -> saved.add(save(entity)));
+        return saved;
+    }
+
+    @Override
+    public synchronized <S extends Community> S insert(S entity) {
+        return save(entity);
+    }
+
+    @Override
+    public synchronized <S extends Community> List<S> insert(Iterable<S> entities) {
+        return save(entities);
+    }
+
+    @Override
+    public synchronized Community findOne(String name) {
+        Community community = byName.get(name);
+        return community == null ? null : copy(community);
+    }
+
+    @Override
+    public synchronized boolean exists(String name) {
+        return byName.containsKey(name);
+    }
+
+    @Override
+    public synchronized List<Community> findAll() {
+        return byIdentityPath.values().stream().map(InMemoryCommunityRepository::copy).collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized Iterable<Community> findAll(Iterable<String> names) {
+        List<Community> found = new ArrayList<>();
+        names.forEach(name -> {
+            Community community = findOne(name);
+            if (community != null) {
+                found.add(community);
+            }
+        });
+        return found;
+    }
+
+    @Override
+    public synchronized long count() {
+        return byName.size();
+    }
+
+    @Override
+    public synchronized void delete(String name) {
+        Community community = byName.get(name);
+        if (community != null) {
+            remove(community);
+        }
+    }
+
+    @Override
+    public synchronized void delete(Community entity) {
+        delete(entity.getName());
+    }
+
+    @Override
+    public synchronized void delete(Iterable<? extends Community> entities) {
+        entities.forEach(this::delete);
+    }
+
+    @Override
+    public synchronized void deleteAll() {
+        byName.clear();
+        byIdentityPath.clear();
+    }
+
+    @Override
+    public synchronized List<Community> findAll(Sort sort) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized Page<Community> findAll(Pageable pageable) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized <S extends Community> S findOne(Example<S> example) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized <S extends Community> List<S> findAll(Example<S> example) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized <S extends Community> List<S> findAll(Example<S> example, Sort sort) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized <S extends Community> Page<S> findAll(Example<S> example, Pageable pageable) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized <S extends Community> long count(Example<S> example) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized <S extends Community> boolean exists(Example<S> example) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Only the escaped, anchored prefixes built by CommunityPaths.prefixRegex are supported
+     */
+    private static String prefixOf(String pathRegex) {
+        return pathRegex.substring(1).replaceAll("\\\\(.)", "$1");
+    }
+
+    private List<Community> withPrefix(String identityPathPrefix) {
+        return new ArrayList<>(byIdentityPath.subMap(identityPathPrefix, true, identityPathPrefix + MAX_CHAR, false).values());
+    }
+
+    private void put(Community community) {
+        byName.put(community.getName(), community);
+        byIdentityPath.put(community.getIdentityPath(), community);
+    }
+
+    private void remove(Community community) {
+        byName.remove(community.getName());
+        byIdentityPath.remove(community.getIdentityPath());
+    }
+
+    private static CommunityMove copy(CommunityMove move) {
+        CommunityMove copy = new CommunityMove();
+        copy.setId(move.getId());
+        copy.setName(move.getName());
+        copy.setOriginalPath(move.getOriginalPath());
+        copy.setNewPath(move.getNewPath());
+        copy.setOriginalIdentityPath(move.getOriginalIdentityPath());
+        copy.setNewIdentityPath(move.getNewIdentityPath());
+        copy.setState(move.getState());
+        copy.setDescendantCount(move.getDescendantCount());
+        copy.setRewrittenCount(move.getRewrittenCount());
+        copy.setError(move.getError());
+        copy.setStartedAt(move.getStartedAt());
+        copy.setUpdatedAt(move.getUpdatedAt());
+        return copy;
+    }
+
+    private static Community copy(Community community) {
+        Community copy = new Community(community.getName(), community.getPath());
+        copy.setKey(community.getKey());
+        copy.setVersion(community.getVersion());
+        return copy;
+    }
+}
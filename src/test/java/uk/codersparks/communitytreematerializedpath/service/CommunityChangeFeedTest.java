@@ -0,0 +1,113 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityChangeEvent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityChangeFeedTest {
+
+    private CommunityChangeFeed changeFeed;
+
+    @Before
+    public void setup() {
+
+        CommunityProperties properties = new CommunityProperties();
+        properties.getFeed().setCapacity(4);
+
+        changeFeed = new CommunityChangeFeed(properties);
+    }
+
+    @Test
+    public void since_returnsBufferedChangesInOrder() {
+
+        for (int i = 1; i <= 6; i++) {
+            changeFeed.created(new Community("com" + i, "/"));
+        }
+
+        assertThat(changeFeed.getVersion()).isEqualTo(6);
+        assertThat(changeFeed.since(2).stream().map(CommunityChangeEvent::getName).collect(Collectors.toList()))
+                .containsExactly("com3", "com4", "com5", "com6");
+        assertThat(changeFeed.since(5).stream().map(CommunityChangeEvent::getVersion).collect(Collectors.toList()))
+                .containsExactly(6L);
+        assertThat(changeFeed.since(6)).isEmpty();
+    }
+
+    @Test
+    public void since_tooFarBehindOrAhead_requiresResync() {
+
+        for (int i = 1; i <= 6; i++) {
+            changeFeed.created(new Community("com" + i, "/"));
+        }
+
+        assertThat(changeFeed.since(1)).isNull();
+        assertThat(changeFeed.since(7)).isNull();
+    }
+
+    @Test
+    public void since_acrossUnseenChanges_requiresResync() {
+
+        changeFeed.created(new Community("com1", "/"));
+        changeFeed.unseenChanges();
+        changeFeed.created(new Community("com2", "/"));
+
+        assertThat(changeFeed.getVersion()).isEqualTo(3);
+        assertThat(changeFeed.since(0)).isNull();
+        assertThat(changeFeed.since(1)).isNull();
+        assertThat(changeFeed.since(2).stream().map(CommunityChangeEvent::getName).collect(Collectors.toList()))
+                .containsExactly("com2");
+    }
+
+    @Test
+    public void since_negative_requiresResync() {
+
+        for (int i = 1; i <= 3; i++) {
+            changeFeed.created(new Community("com" + i, "/"));
+        }
+
+        assertThat(changeFeed.since(-1)).isNull();
+        assertThat(changeFeed.since(-5)).isNull();
+        assertThat(changeFeed.versionOf(changeFeed.getEpoch() + "--5")).isNull();
+    }
+
+    @Test
+    public void versionOf_readsBackPositionsOfThisRunOnly() {
+
+        assertThat(changeFeed.versionOf(changeFeed.toPosition(42))).isEqualTo(42L);
+
+        assertThat(changeFeed.versionOf("42")).isNull();
+        assertThat(changeFeed.versionOf("earlier-42")).isNull();
+        assertThat(changeFeed.versionOf(changeFeed.getEpoch() + "-latest")).isNull();
+    }
+
+    @Test
+    public void moved_recordsBothPathsAndSubTreeSize() {
+
+        CommunityChangeEvent event = changeFeed.moved(new Community("com3", "/com1/"), "/com2/", 3);
+
+        assertThat(event.getType()).isEqualTo(CommunityChangeEvent.Type.MOVED);
+        assertThat(event.getOldPath()).isEqualTo("/com2/");
+        assertThat(event.getPath()).isEqualTo("/com1/");
+        assertThat(event.getSubTreeSize()).isEqualTo(4);
+    }
+
+    @Test
+    public void listeners_runAfterEachChange() {
+
+        AtomicInteger notified = new AtomicInteger();
+        Runnable listener = notified::incrementAndGet;
+
+        changeFeed.addListener(listener);
+        changeFeed.created(new Community("com1", "/"));
+        changeFeed.removeListener(listener);
+        changeFeed.created(new Community("com2", "/"));
+
+        assertThat(notified.get()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,111 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityForestGeneratorTest {
+
+    @Test
+    public void generate() {
+
+        CommunityProperties.Seed settings = settings();
+        List<Community> communities = generate(settings);
+
+        assertThat(communities).hasSize(10_000);
+
+        Set<String> names = new HashSet<>();
+        for (Community community : communities) {
+            assertThat(names.add(community.getName())).isTrue();
+            assertThat(community.getName().length()).isBetween(4, 12);
+            assertThat(community.getDepth()).isLessThanOrEqualTo(5);
+        }
+
+        // Every community is placed below its parent, so assembling the tree in the order generated loses none
+        List<CommunityTreeNode> roots = new CommunityTreeAssembler().assemble(communities.iterator());
+        assertThat(roots).hasSize(3);
+
+        long count = 0;
+        Deque<CommunityTreeNode> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            CommunityTreeNode node = pending.pop();
+            count++;
+            assertThat(node.getChildren().size()).isLessThanOrEqualTo(settings.getMaxFanOut());
+            pending.addAll(node.getChildren());
+        }
+        assertThat(count).isEqualTo(10_000);
+    }
+
+    @Test
+    public void generate_sameSeedSameForest() {
+        assertThat(generate(settings())).isEqualTo(generate(settings()));
+    }
+
+    @Test
+    public void generate_cappedByDepthAndFanOut() {
+
+        CommunityProperties.Seed settings = settings();
+        settings.setRoots(2);
+        settings.setMaxDepth(2);
+        settings.setMaxFanOut(3);
+
+        CommunityForestGenerator generator = new CommunityForestGenerator(settings);
+
+        assertThat(generator.size()).isEqualTo(2 * (1 + 3 + 9));
+        assertThat(generate(settings)).hasSize(26);
+    }
+
+    @Test
+    public void generate_uniformFanOut() {
+
+        CommunityProperties.Seed settings = settings();
+        settings.setCommunities(1_000_000);
+        settings.setMinFanOut(4);
+        settings.setMaxFanOut(4);
+        settings.setFanOutSkew(0);
+
+        // A full forest of 3 roots with 4 children each down to depth 5
+        assertThat(new CommunityForestGenerator(settings).size()).isEqualTo(3 * 1365);
+        assertThat(generate(settings).stream().filter(community -> community.getDepth() == 5).count()).isEqualTo(3 * 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generate_invalidFanOut() {
+
+        CommunityProperties.Seed settings = settings();
+        settings.setMinFanOut(5);
+        settings.setMaxFanOut(4);
+
+        new CommunityForestGenerator(settings);
+    }
+
+    private static CommunityProperties.Seed settings() {
+
+        CommunityProperties.Seed settings = new CommunityProperties.Seed();
+        settings.setCommunities(10_000);
+        settings.setRoots(3);
+        settings.setMaxDepth(5);
+        settings.setMinFanOut(1);
+        settings.setMaxFanOut(12);
+        settings.setMinNameLength(4);
+        settings.setMaxNameLength(12);
+        return settings;
+    }
+
+    private static List<Community> generate(CommunityProperties.Seed settings) {
+
+        List<Community> communities = new ArrayList<>();
+        new CommunityForestGenerator(settings).generate().forEachRemaining(communities::add);
+        return communities;
+    }
+}
@@ -0,0 +1,88 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+import uk.codersparks.communitytreematerializedpath.repository.CommunityRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class CommunityLcaIndexTest {
+
+    private final CommunityService communityService = new CommunityService(mock(CommunityRepository.class), new CommunityTreeCache(), new CommunityChangeFeed(new CommunityProperties()), new CommunityMetrics(new SimpleMeterRegistry()), new CommunityProperties());
+
+    private final CommunityTreeAssembler assembler = new CommunityTreeAssembler();
+
+    @Test
+    public void distanceToCommonAncestor_matchesPathComparison() {
+
+        // Hierachy
+        //  root
+        //      com1
+        //          com7
+        //      com2
+        //          com3
+        //              com4
+        //                  com5
+        //                  com6
+        assertMatchesPathComparison(Arrays.asList(
+                new Community("com1", "/"),
+                new Community("com7", "/com1/"),
+                new Community("com2", "/"),
+                new Community("com3", "/com2/"),
+                new Community("com4", "/com2/com3/"),
+                new Community("com5", "/com2/com3/com4/"),
+                new Community("com6", "/com2/com3/com4/")
+        ));
+    }
+
+    @Test
+    public void distanceToCommonAncestor_matchesPathComparisonOnRandomForest() {
+
+        Random random = new Random(7);
+        List<Community> communities = new ArrayList<>();
+
+        for (int i = 0; i < 300; i++) {
+            String path = communities.isEmpty() || random.nextInt(10) == 0
+                    ? Community.PATH_SEPERATOR
+                    : communities.get(random.nextInt(communities.size())).getIdentityPath();
+            communities.add(new Community("c" + i, path));
+        }
+
+        communities.sort((a, b) -> a.getIdentityPath().compareTo(b.getIdentityPath()));
+
+        assertMatchesPathComparison(communities);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void distanceToCommonAncestor_unknownCommunity() {
+
+        CommunityLcaIndex index = new CommunityLcaIndex(new CommunityTreeSnapshot(1, assembler.assemble(
+                Arrays.asList(new Community("com1", "/")).iterator())));
+
+        index.distanceToCommonAncestor("com1", "unknown");
+    }
+
+    private void assertMatchesPathComparison(List<Community> communitiesInTreeOrder) {
+
+        CommunityLcaIndex index = new CommunityLcaIndex(new CommunityTreeSnapshot(1, assembler.assemble(communitiesInTreeOrder.iterator())));
+
+        assertThat(index.size()).isEqualTo(communitiesInTreeOrder.size());
+
+        for (Community from : communitiesInTreeOrder) {
+            for (Community to : communitiesInTreeOrder) {
+                assertThat(index.distanceToCommonAncestor(from.getName(), to.getName()))
+                        .as("%s to %s", from, to)
+                        .isEqualTo(communityService.distanceToCommonAncestor(from, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityLocksTest {
+
+    private final CommunityLocks locks = new CommunityLocks(1024);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void disjointLocks_doNotBlock() throws Exception {
+
+        try (CommunityLocks.Lock ignored = locks.lock(Collections.singleton("com1"), Collections.singleton("com2"))) {
+
+            Future<?> other = executor.submit(() -> locks.lock(Collections.singleton("com1"), Collections.singleton("com3")).close());
+
+            other.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void sharedLock_blocksExclusiveLock() throws Exception {
+
+        Future<?> other;
+        try (CommunityLocks.Lock ignored = locks.lock(Collections.singleton("com1"), Collections.singleton("com2"))) {
+
+            other = executor.submit(() -> locks.lock(Collections.emptySet(), Collections.singleton("com1")).close());
+
+            try {
+                other.get(200, TimeUnit.MILLISECONDS);
+                throw new AssertionError("Exclusive lock was granted while a shared lock was held");
+            } catch (TimeoutException expected) {
+                // still waiting
+            }
+        }
+
+        other.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void sharedAndExclusiveOnOneStripe_takenExclusively() throws Exception {
+
+        CommunityLocks singleStripe = new CommunityLocks(1);
+
+        singleStripe.lock(Arrays.asList("com1", "com2"), Collections.singleton("com3")).close();
+    }
+
+    @Test
+    public void isUnchangedSince_detectsExclusiveRelease() {
+
+        long sequence = locks.sequence();
+
+        locks.lock(Collections.emptySet(), Collections.singleton("com1")).close();
+
+        try (CommunityLocks.Lock lock = locks.lock(Collections.singleton("com1"), Collections.emptySet())) {
+            assertThat(lock.isUnchangedSince(sequence)).isFalse();
+        }
+
+        try (CommunityLocks.Lock lock = locks.lock(Collections.singleton("com2"), Collections.emptySet())) {
+            assertThat(lock.isUnchangedSince(sequence)).isTrue();
+        }
+
+        try (CommunityLocks.Lock lock = locks.lock(Collections.singleton("com1"), Collections.emptySet())) {
+            assertThat(lock.isUnchangedSince(locks.sequence())).isTrue();
+        }
+    }
+
+    @Test
+    public void covers_requiresExclusiveModeForExclusiveNames() {
+
+        try (CommunityLocks.Lock lock = locks.lock(Collections.singleton("com1"), Collections.singleton("com2"))) {
+            assertThat(lock.covers(Collections.singleton("com1"), Collections.singleton("com2"))).isTrue();
+            assertThat(lock.covers(Collections.singleton("com2"), Collections.emptySet())).isTrue();
+            assertThat(lock.covers(Collections.emptySet(), Collections.singleton("com1"))).isFalse();
+            assertThat(lock.covers(Collections.singleton("com3"), Collections.emptySet())).isFalse();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.data.util.CloseableIterator;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityKeys;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.repository.CommunityRepository;
+import uk.codersparks.communitytreematerializedpath.repository.InMemoryCommunityRepository;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityParallelTreeBuilderTest {
+
+    private final InMemoryCommunityRepository repository = new InMemoryCommunityRepository();
+
+    private final CommunityTreeAssembler assembler = new CommunityTreeAssembler();
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final CommunityMetrics metrics = new CommunityMetrics(meterRegistry);
+
+    @Test
+    public void build_matchesSequentialBuild() {
+
+        insert(generator().generate());
+
+        for (int parallelism : new int[]{2, 8, 64, 5000}) {
+            assertThat(flatten(new CommunityParallelTreeBuilder(repository, assembler, metrics, parallelism).build()))
+                    .as("parallelism %d", parallelism)
+                    .containsExactlyElementsOf(flatten(buildSequentially()));
+        }
+    }
+
+    @Test
+    public void build_keys() {
+
+        insert(generator().generate(CommunityKeys::encode));
+
+        List<CommunityTreeNode> tree = new CommunityParallelTreeBuilder(repository, assembler, metrics, 16).build();
+
+        assertThat(flatten(tree)).hasSize(5000).containsExactlyElementsOf(flatten(buildSequentially()));
+        assertThat(tree.get(0).getKey()).isNotNull();
+    }
+
+    @Test
+    public void build_skipsOrphansLikeSequentialBuild() {
+
+        insert(generator().generate());
+        List<CommunityTreeNode> roots = buildSequentially();
+        CommunityTreeNode root = roots.get(0);
+        CommunityTreeNode child = root.getChildren().get(0);
+
+        repository.bulkInsert(Arrays.asList(
+                new Community("orphan1", "/missing/"),
+                new Community("orphan2", root.getPath() + root.getName() + "/missing/"),
+                new Community("orphan3", child.getPath() + child.getName() + "/missing/deeper/")
+        ));
+
+        List<String> sequential = flatten(buildSequentially());
+        assertThat(sequential).hasSize(5000);
+
+        for (int parallelism : new int[]{2, 64}) {
+            assertThat(flatten(new CommunityParallelTreeBuilder(repository, assembler, metrics, parallelism).build()))
+                    .containsExactlyElementsOf(sequential);
+        }
+    }
+
+    @Test
+    public void build_countsSubTreeReadsAgainstOperation() {
+
+        insert(generator().generate());
+        CommunityRepository instrumented = metrics.instrument(repository);
+
+        metrics.time(CommunityMetrics.OPERATION_TREE, () -> new CommunityParallelTreeBuilder(instrumented, assembler, metrics, 8).build());
+
+        Counter subTreeReads = meterRegistry.find("community.repository.calls")
+                .tags("operation", CommunityMetrics.OPERATION_TREE, "method", "streamSubTreeInTreeOrder").counter();
+        assertThat(subTreeReads).isNotNull();
+        assertThat(subTreeReads.count()).isGreaterThanOrEqualTo(8);
+        assertThat(meterRegistry.find("community.repository.calls").tags("operation", "none").counter()).isNull();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void build_afterShutdown() {
+
+        insert(generator().generate());
+
+        CommunityParallelTreeBuilder builder = new CommunityParallelTreeBuilder(repository, assembler, metrics, 4);
+        builder.shutdown();
+        builder.build();
+    }
+
+    @Test
+    public void build_emptyForest() {
+        assertThat(new CommunityParallelTreeBuilder(repository, assembler, metrics, 4).build()).isEmpty();
+    }
+
+    private CommunityForestGenerator generator() {
+
+        CommunityProperties.Seed settings = new CommunityProperties.Seed();
+        settings.setCommunities(5000);
+        settings.setRoots(3);
+        settings.setMaxDepth(6);
+        settings.setMaxFanOut(6);
+        settings.setMinNameLength(4);
+        settings.setMaxNameLength(8);
+        return new CommunityForestGenerator(settings);
+    }
+
+    private void insert(Iterator<Community> communities) {
+
+        List<Community> batch = new ArrayList<>();
+        communities.forEachRemaining(batch::add);
+        repository.bulkInsert(batch);
+    }
+
+    private List<CommunityTreeNode> buildSequentially() {
+        try (CloseableIterator<Community> communities = repository.streamAllInTreeOrder()) {
+            return assembler.assemble(communities);
+        }
+    }
+
+    /**
+     * Every node in tree order along with its number of children, so two forests are only equal when they have the
+     * same shape
+     */
+    private static List<String> flatten(List<CommunityTreeNode> roots) {
+
+        List<String> nodes = new ArrayList<>();
+        Deque<CommunityTreeNode> pending = new ArrayDeque<>();
+        for (int i = roots.size() - 1; i >= 0; i--) {
+            pending.push(roots.get(i));
+        }
+
+        while (!pending.isEmpty()) {
+            CommunityTreeNode node = pending.pop();
+            nodes.add(node.getPath() + node.getName() + " " + node.getKey() + " " + node.getChildren().size());
+            for (int i = node.getChildren().size() - 1; i >= 0; i--) {
+                pending.push(node.getChildren().get(i));
+            }
+        }
+        return nodes;
+    }
+}
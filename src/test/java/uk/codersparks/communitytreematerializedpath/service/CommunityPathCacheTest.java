@@ -0,0 +1,122 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityPathCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final Map<String, Community> communities = new HashMap<>();
+    private final List<String> loads = new ArrayList<>();
+
+    // Hierachy
+    //  root
+    //      com1
+    //          com2
+    //              com3
+    //      com4
+    private final Function<String, Community> loader = name -> {
+        loads.add(name);
+        return communities.get(name);
+    };
+
+    {
+        communities.put("com1", new Community("com1", "/"));
+        communities.put("com2", new Community("com2", "/com1/"));
+        communities.put("com3", new Community("com3", "/com1/com2/"));
+        communities.put("com4", new Community("com4", "/"));
+    }
+
+    private CommunityPathCache cache(int capacity) {
+        return new CommunityPathCache(capacity, 10, TimeUnit.SECONDS, now::get);
+    }
+
+    @Test
+    public void getIdentityPath_loadsOnce() {
+
+        CommunityPathCache cache = cache(2);
+
+        assertThat(cache.getIdentityPath("com2", loader)).isEqualTo("/com1/com2/");
+        assertThat(cache.getIdentityPath("com2", loader)).isEqualTo("/com1/com2/");
+        assertThat(cache.getIdentityPath("missing", loader)).isNull();
+        assertThat(cache.getIdentityPath("missing", loader)).isNull();
+
+        assertThat(loads).containsExactly("com2", "missing", "missing");
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void getIdentityPath_reloadsAfterTimeToLive() {
+
+        CommunityPathCache cache = cache(2);
+        cache.getIdentityPath("com1", loader);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        cache.getIdentityPath("com1", loader);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        cache.getIdentityPath("com1", loader);
+
+        assertThat(loads).containsExactly("com1", "com1");
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+
+        CommunityPathCache cache = cache(2);
+        cache.getIdentityPath("com1", loader);
+        cache.getIdentityPath("com2", loader);
+        cache.getIdentityPath("com1", loader);
+        cache.getIdentityPath("com3", loader);
+
+        assertThat(cache.size()).isEqualTo(2);
+
+        loads.clear();
+        cache.getIdentityPath("com1", loader);
+        cache.getIdentityPath("com3", loader);
+        cache.getIdentityPath("com2", loader);
+
+        assertThat(loads).containsExactly("com2");
+    }
+
+    @Test
+    public void invalidateSubTree_dropsCachedDescendants() {
+
+        CommunityPathCache cache = cache(10);
+        communities.keySet().forEach(name -> cache.getIdentityPath(name, loader));
+
+        cache.invalidateSubTree("/com1/com2/");
+
+        loads.clear();
+        communities.keySet().forEach(name -> cache.getIdentityPath(name, loader));
+
+        assertThat(loads).containsExactlyInAnyOrder("com2", "com3");
+    }
+
+    @Test
+    public void getIdentityPath_notCachedWhenInvalidatedDuringLoad() {
+
+        CommunityPathCache cache = cache(10);
+
+        // The move lands between the repository read and caching what it read
+        assertThat(cache.getIdentityPath("com3", name -> {
+            Community before = loader.apply(name);
+            communities.put("com3", new Community("com3", "/com4/"));
+            cache.invalidateSubTree("/com1/com2/com3/");
+            return before;
+        })).isEqualTo("/com1/com2/com3/");
+
+        assertThat(cache.getIdentityPath("com3", loader)).isEqualTo("/com4/com3/");
+    }
+}
@@ -0,0 +1,162 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.util.CloseableIterator;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityPaths;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.NewCommunity;
+import uk.codersparks.communitytreematerializedpath.repository.InMemoryCommunityRepository;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Hammers one service with random creates and moves from several threads and then checks the stored forest and the
+ * cached tree are both still consistent
+ */
+public class CommunityServiceConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 500;
+
+    private final InMemoryCommunityRepository repository = new InMemoryCommunityRepository();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentMovesAndCreates_keepTreeConsistent() throws Exception {
+
+        CommunityProperties properties = new CommunityProperties();
+        // Few stripes so unrelated names also contend
+        properties.getLocks().setStripes(64);
+
+        CommunityService communityService = new CommunityService(repository, new CommunityTreeCache(), new CommunityChangeFeed(new CommunityProperties()), new CommunityMetrics(new SimpleMeterRegistry()), properties);
+
+        List<NewCommunity> seed = new ArrayList<>();
+        for (int root = 0; root < THREADS; root++) {
+            seedSubTree(seed, "r" + root, null, 3);
+        }
+        communityService.createCommunities(seed);
+
+        List<String> names = new CopyOnWriteArrayList<>(seed.stream().map(NewCommunity::getName).collect(Collectors.toList()));
+
+        // Load the cache so it is patched by every write rather than rebuilt at the end
+        communityService.generateTree();
+
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger moved = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int threadId = thread;
+            workers.add(executor.submit(() -> {
+                Random random = new Random(threadId);
+                start.await();
+
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    String parentName = random.nextInt(10) == 0 ? "" : names.get(random.nextInt(names.size()));
+                    try {
+                        if (random.nextInt(5) == 0) {
+                            String name = "t" + threadId + "_" + i;
+                            communityService.createCommunity(name, parentName);
+                            names.add(name);
+                            created.incrementAndGet();
+                        } else {
+                            communityService.moveCommunity(names.get(random.nextInt(names.size())), parentName);
+                            moved.incrementAndGet();
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // Moves into their own sub tree or onto themselves
+                        rejected.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(2, TimeUnit.MINUTES);
+        }
+
+        assertThat(moved.get()).isGreaterThan(0);
+        assertThat(rejected.get()).isGreaterThan(0);
+
+        Map<String, Community> stored = repository.findAll().stream().collect(Collectors.toMap(Community::getName, Function.identity()));
+
+        assertThat(stored).hasSize(seed.size() + created.get());
+
+        for (Community community : stored.values()) {
+            assertThat(community.getDepth()).isEqualTo(CommunityPaths.depth(community.getPath()));
+
+            String parentName = CommunityPaths.parentName(community.getPath());
+            if (parentName != null) {
+                Community parent = stored.get(parentName);
+                assertThat(parent).as("parent of %s", community.getName()).isNotNull();
+                // Identity paths are strictly longer than the path of the parent, so this also rules out cycles
+                assertThat(parent.getIdentityPath()).as("path of %s", community.getName()).isEqualTo(community.getPath());
+            }
+        }
+
+        List<CommunityTreeNode> rebuilt;
+        try (CloseableIterator<Community> communities = repository.streamAllInTreeOrder()) {
+            rebuilt = new CommunityTreeAssembler().assemble(communities);
+        }
+
+        assertThat(describe(communityService.generateTree())).isEqualTo(describe(rebuilt)).hasSize(stored.size());
+    }
+
+    private static void seedSubTree(List<NewCommunity> seed, String name, String parentName, int levels) {
+
+        seed.add(new NewCommunity(name, parentName));
+
+        if (levels > 0) {
+            for (int child = 0; child < 3; child++) {
+                seedSubTree(seed, name + "_" + child, name, levels - 1);
+            }
+        }
+    }
+
+    /**
+     * Describes every node by its path, name and the names of its children, independent of sibling order
+     */
+    private static Set<String> describe(List<CommunityTreeNode> roots) {
+
+        Set<String> nodes = new HashSet<>();
+        Deque<CommunityTreeNode> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            CommunityTreeNode node = pending.pop();
+            nodes.add(node.getPath() + node.getName() + " " + node.getChildren().stream().map(CommunityTreeNode::getName).sorted().collect(Collectors.toList()));
+            node.getChildren().forEach(pending::push);
+        }
+        return nodes;
+    }
+}
@@ -1,24 +1,44 @@
 package uk.codersparks.communitytreematerializedpath.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
 import org.mockito.MockitoAnnotations;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import uk.codersparks.communitytreematerializedpath.config.CommunityProperties;
 import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityChangeEvent;
+import uk.codersparks.communitytreematerializedpath.model.CommunityMove;
+import uk.codersparks.communitytreematerializedpath.model.CommunityStats;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+import uk.codersparks.communitytreematerializedpath.model.DistanceQuery;
+import uk.codersparks.communitytreematerializedpath.model.ExpandableCommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.NewCommunity;
 import uk.codersparks.communitytreematerializedpath.repository.CommunityRepository;
+import uk.codersparks.communitytreematerializedpath.repository.InMemoryCommunityRepository;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -29,11 +49,15 @@ public class CommunityServiceTest {
     @MockBean
     private CommunityRepository repository;
 
-    @Captor
-    private ArgumentCaptor<List<Community>> communityListCaptor;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     private CommunityService communityService;
 
+    private SimpleMeterRegistry meterRegistry;
+
+    private CommunityChangeFeed changeFeed;
+
     private String com1 = "com1";
     private String com2 = "com2";
     private String com3 = "com3";
@@ -69,7 +93,15 @@ public class CommunityServiceTest {
 
         MockitoAnnotations.initMocks(this);
 
-        communityService = new CommunityService(repository);
+        meterRegistry = new SimpleMeterRegistry();
+
+        changeFeed = new CommunityChangeFeed(new CommunityProperties());
+
+        // The tree stamp is only read by the tests of foreign writes, so it does not show up among the other interactions
+        CommunityProperties properties = new CommunityProperties();
+        properties.getTree().setStampCheckIntervalMillis(0);
+
+        communityService = new CommunityService(repository, new CommunityTreeCache(), changeFeed, new CommunityMetrics(meterRegistry), properties);
 
         c1 = new Community(com1, com1Parent);
         c2 = new Community(com2, com2Parent);
@@ -82,7 +114,24 @@ public class CommunityServiceTest {
 
         given(repository.save(any(Community.class))).willAnswer(i -> i.getArguments()[0]);
         given(repository.findAllByOrderByPathAsc()).willReturn(new ArrayList<>(Arrays.asList(c1,c2,c3,c4,c5,c6,c7)));
+        given(repository.streamAllInTreeOrder()).willAnswer(i -> closeableIterator(c1,c7,c2,c3,c4,c5,c6));
+
+    }
+
+    private CommunityService ancestorsSchemaService() {
+
+        CommunityProperties properties = new CommunityProperties();
+        properties.getSchema().setAncestors(true);
+
+        return new CommunityService(repository, new CommunityTreeCache(), new CommunityChangeFeed(new CommunityProperties()), new CommunityMetrics(new SimpleMeterRegistry()), properties);
+    }
+
+    private CommunityService keysSchemaService(CommunityRepository repository, CommunityChangeFeed changeFeed) {
 
+        CommunityProperties properties = new CommunityProperties();
+        properties.getSchema().setKeys(true);
+
+        return new CommunityService(repository, new CommunityTreeCache(), changeFeed, new CommunityMetrics(new SimpleMeterRegistry()), properties);
     }
 
     @Test
@@ -95,6 +144,7 @@ public class CommunityServiceTest {
 
         verify(repository).findOne(com1);
         verify(repository).save(any(Community.class));
+        verify(repository).advanceTreeStamp();
         verifyNoMoreInteractions(repository);
     }
 
@@ -108,6 +158,7 @@ public class CommunityServiceTest {
 
         verify(repository).findOne(com1);
         verify(repository).save(any(Community.class));
+        verify(repository).advanceTreeStamp();
         verifyNoMoreInteractions(repository);
     }
 
@@ -125,9 +176,60 @@ public class CommunityServiceTest {
         verify(repository).findOne(com1);
         verify(repository).findOne(com2);
         verify(repository).save(any(Community.class));
+        verify(repository).advanceTreeStamp();
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void createCommunities_parentsInBatchAndExisting() {
+
+        given(repository.findByNameIn(any())).willReturn(Collections.singletonList(c2));
+
+        List<Community> created = communityService.createCommunities(Arrays.asList(
+                new NewCommunity("new2", "new1"),
+                new NewCommunity("new1", com2),
+                new NewCommunity("new3", null)
+        ));
+
+        assertThat(created).containsExactly(
+                new Community("new1", "/com2/"),
+                new Community("new3", "/"),
+                new Community("new2", "/com2/new1/")
+        );
+
+        verify(repository).findByNameIn(new HashSet<>(Arrays.asList("new1", "new2", "new3", com2)));
+        verify(repository).bulkInsert(created);
+        verify(repository).advanceTreeStamp();
         verifyNoMoreInteractions(repository);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void createCommunities_existingName() {
+
+        given(repository.findByNameIn(any())).willReturn(Collections.singletonList(c1));
+
+        communityService.createCommunities(Collections.singletonList(new NewCommunity(com1, null)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createCommunities_missingParent() {
+
+        given(repository.findByNameIn(any())).willReturn(Collections.emptyList());
+
+        communityService.createCommunities(Collections.singletonList(new NewCommunity("new1", "missing")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void createCommunities_cycle() {
+
+        given(repository.findByNameIn(any())).willReturn(Collections.emptyList());
+
+        communityService.createCommunities(Arrays.asList(
+                new NewCommunity("new1", "new2"),
+                new NewCommunity("new2", "new1")
+        ));
+    }
+
     @Test
     public void moveCommunity_noSubTree() {
 
@@ -141,8 +243,9 @@ public class CommunityServiceTest {
 
         verify(repository).findOne(com7);
         verify(repository).findOne(com2);
-        verify(repository).findAllByOrderByPathAsc();
+        verify(repository).replacePathPrefix("/com1/com7/", "/com2/com7/");
         verify(repository).save(any(Community.class));
+        verify(repository).advanceTreeStamp();
         verifyNoMoreInteractions(repository);
     }
 
@@ -151,6 +254,7 @@ public class CommunityServiceTest {
 
         given(repository.findOne(com3)).willReturn(c3);
         given(repository.findOne(com1)).willReturn(c1);
+        given(repository.replacePathPrefix(any(String.class), any(String.class))).willReturn(3L);
 
         Community movedCommunity = communityService.moveCommunity(com3, com1);
 
@@ -159,53 +263,296 @@ public class CommunityServiceTest {
 
         verify(repository).findOne(com3);
         verify(repository).findOne(com1);
-        verify(repository).findAllByOrderByPathAsc();
-        verify(repository).save(communityListCaptor.capture());
+        verify(repository).replacePathPrefix("/com2/com3/", "/com1/com3/");
         verify(repository).save(c3);
+        verify(repository).advanceTreeStamp();
         verifyNoMoreInteractions(repository);
+    }
 
-        List<Community> modifiedCommunities = communityListCaptor.getValue();
 
-        assertThat(modifiedCommunities).hasSize(3);
+    @Test
+    public void moveCommunity_withSubTree_moveToRoot() {
 
-        assertThat(modifiedCommunities.stream().map(Community::getName).collect(Collectors.toList())).containsExactlyInAnyOrder(com4,com5,com6);
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findOne(com1)).willReturn(c1);
+        given(repository.replacePathPrefix(any(String.class), any(String.class))).willReturn(3L);
 
-        modifiedCommunities.stream().forEach(c -> {
-            assertThat(c.getPath().startsWith(c3.getIdentityPath()));
-        });
+        Community movedCommunity = communityService.moveCommunity(com3, "");
 
+        assertThat(movedCommunity.getName()).isEqualTo(com3);
+        assertThat(movedCommunity.getPath()).isEqualTo("/");
 
+        verify(repository).findOne(com3);
+        verify(repository).replacePathPrefix("/com2/com3/", "/com3/");
+        verify(repository).save(c3);
+        verify(repository).advanceTreeStamp();
+        verifyNoMoreInteractions(repository);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void moveCommunity_intoOwnSubTree() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findOne(com5)).willReturn(c5);
+
+        communityService.moveCommunity(com3, com5);
+    }
 
     @Test
-    public void moveCommunity_withSubTree_moveToRoot() {
+    public void createAndMove_publishChanges() {
 
         given(repository.findOne(com3)).willReturn(c3);
         given(repository.findOne(com1)).willReturn(c1);
+        given(repository.replacePathPrefix("/com2/com3/", "/com1/com3/")).willReturn(3L);
 
-        Community movedCommunity = communityService.moveCommunity(com3, "");
+        communityService.createCommunity(com7, com1);
+        communityService.moveCommunity(com3, com1);
 
-        assertThat(movedCommunity.getName()).isEqualTo(com3);
-        assertThat(movedCommunity.getPath()).isEqualTo("/");
+        List<CommunityChangeEvent> changes = changeFeed.since(0);
+
+        assertThat(changes).hasSize(2);
+
+        assertThat(changes.get(0).getVersion()).isEqualTo(1);
+        assertThat(changes.get(0).getType()).isEqualTo(CommunityChangeEvent.Type.CREATED);
+        assertThat(changes.get(0).getPath()).isEqualTo(com7Parent);
+
+        assertThat(changes.get(1).getVersion()).isEqualTo(2);
+        assertThat(changes.get(1).getType()).isEqualTo(CommunityChangeEvent.Type.MOVED);
+        assertThat(changes.get(1).getName()).isEqualTo(com3);
+        assertThat(changes.get(1).getOldPath()).isEqualTo(com3Parent);
+        assertThat(changes.get(1).getPath()).isEqualTo("/com1/");
+        assertThat(changes.get(1).getSubTreeSize()).isEqualTo(4);
+
+        assertThat(communityService.getChangeVersion()).isEqualTo(2);
+    }
+
+    @Test
+    public void getDescendants() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findByPathRegexOrderByPathAsc("^/com2/com3/")).willReturn(Arrays.asList(c4, c5, c6));
+
+        List<Community> descendants = communityService.getDescendants(com3);
+
+        assertThat(descendants).containsExactly(c4, c5, c6);
 
         verify(repository).findOne(com3);
-        verify(repository).findAllByOrderByPathAsc();
-        verify(repository).save(communityListCaptor.capture());
+        verify(repository).findByPathRegexOrderByPathAsc("^/com2/com3/");
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void getDescendants_ancestorsSchema() {
+
+        communityService = ancestorsSchemaService();
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findByAncestorsOrderByPathAsc(com3)).willReturn(Arrays.asList(c4, c5, c6));
+
+        List<Community> descendants = communityService.getDescendants(com3);
+
+        assertThat(descendants).containsExactly(c4, c5, c6);
+
+        verify(repository).findOne(com3);
+        verify(repository).findByAncestorsOrderByPathAsc(com3);
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void createCommunity_ancestorsSchema() {
+
+        communityService = ancestorsSchemaService();
+
+        given(repository.findOne(com4)).willReturn(c4);
+
+        Community community = communityService.createCommunity(com5, com4);
+
+        assertThat(community.getAncestors()).containsExactly(com2, com3, com4);
+        assertThat(community.getDepth()).isEqualTo(3);
+    }
+
+    @Test
+    public void moveCommunity_ancestorsSchema() {
+
+        communityService = ancestorsSchemaService();
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findOne(com1)).willReturn(c1);
+
+        Community community = communityService.moveCommunity(com3, com1);
+
+        assertThat(community.getAncestors()).containsExactly(com1);
+
+        verify(repository).findOne(com3);
+        verify(repository).findOne(com1);
+        verify(repository).replaceAncestorPath(com3, "/com2/com3/", "/com1/com3/");
         verify(repository).save(c3);
+        verify(repository).advanceTreeStamp();
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void getChildren() {
+
+        given(repository.findOne(com4)).willReturn(c4);
+        given(repository.findByPathOrderByNameAsc("/com2/com3/com4/")).willReturn(Arrays.asList(c5, c6));
+
+        List<Community> children = communityService.getChildren(com4);
+
+        assertThat(children).containsExactly(c5, c6);
+
+        verify(repository).findOne(com4);
+        verify(repository).findByPathOrderByNameAsc("/com2/com3/com4/");
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void getAncestors() {
+
+        given(repository.findOne(com5)).willReturn(c5);
+
+        List<Community> ancestors = communityService.getAncestors(com5);
+
+        assertThat(ancestors).containsExactly(c2, c3, c4);
+
+        verify(repository).findOne(com5);
         verifyNoMoreInteractions(repository);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getAncestors_unknownCommunity() {
+
+        communityService.getAncestors("unknown");
+    }
+
+    @Test
+    public void generateTree() {
+
+        List<CommunityTreeNode> tree = communityService.generateTree();
+
+        assertThat(tree.stream().map(CommunityTreeNode::getName).collect(Collectors.toList())).containsExactly(com1, com2);
+
+        CommunityTreeNode node4 = tree.get(1).getChildren().get(0).getChildren().get(0);
 
-        List<Community> modifiedCommunities = communityListCaptor.getValue();
+        assertThat(node4.getName()).isEqualTo(com4);
+        assertThat(node4.getPath()).isEqualTo(com4Parent);
+        assertThat(node4.getChildren().stream().map(CommunityTreeNode::getName).collect(Collectors.toList())).containsExactly(com5, com6);
+    }
+
+    @Test
+    public void generateTree_servedFromCacheAfterMove() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findOne(com1)).willReturn(c1);
+
+        communityService.generateTree();
+
+        communityService.moveCommunity(com3, com1);
+
+        List<CommunityTreeNode> tree = communityService.generateTree();
+
+        verify(repository, times(1)).streamAllInTreeOrder();
+
+        assertThat(tree.get(1).getChildren()).isEmpty();
+
+        CommunityTreeNode node3 = tree.get(0).getChildren().get(1);
 
-        assertThat(modifiedCommunities).hasSize(3);
+        assertThat(node3.getName()).isEqualTo(com3);
+        assertThat(node3.getPath()).isEqualTo(c1.getIdentityPath());
+        assertThat(node3.getChildren().get(0).getPath()).isEqualTo("/com1/com3/");
+    }
+
+    @Test
+    public void generateTree_depthLimited() {
 
-        assertThat(modifiedCommunities.stream().map(Community::getName).collect(Collectors.toList())).containsExactlyInAnyOrder(com4,com5,com6);
+        given(repository.findByPathRegexAndDepthIn("^/", Arrays.asList(0, 1))).willReturn(Arrays.asList(c3, c7, c2, c1));
+        given(repository.countChildrenByParentPath("/", 2)).willReturn(Collections.singletonMap(c3.getIdentityPath(), 1L));
 
-        modifiedCommunities.stream().forEach(c -> {
-            assertThat(c.getPath().startsWith(c.getIdentityPath()));
-        });
+        List<ExpandableCommunityTreeNode> tree = communityService.generateTree(2);
 
+        assertThat(tree.stream().map(ExpandableCommunityTreeNode::getName).collect(Collectors.toList())).containsExactly(com1, com2);
+        assertThat(tree.get(0).getChildCount()).isEqualTo(1);
+        assertThat(tree.get(0).getChildren().get(0).getName()).isEqualTo(com7);
+        assertThat(tree.get(0).getChildren().get(0).getChildCount()).isEqualTo(0);
 
+        ExpandableCommunityTreeNode node3 = tree.get(1).getChildren().get(0);
+
+        assertThat(node3.getName()).isEqualTo(com3);
+        assertThat(node3.getChildCount()).isEqualTo(1);
+        assertThat(node3.getChildren()).isEmpty();
+
+        verify(repository).findByPathRegexAndDepthIn("^/", Arrays.asList(0, 1));
+        verify(repository).countChildrenByParentPath("/", 2);
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void generateTree_subTreeDepthLimited() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findByPathRegexAndDepthIn("^/com2/com3/", Collections.singletonList(2))).willReturn(Collections.singletonList(c4));
+        given(repository.countChildrenByParentPath("/com2/com3/", 3)).willReturn(Collections.singletonMap(c4.getIdentityPath(), 2L));
+
+        ExpandableCommunityTreeNode node3 = communityService.generateTree(com3, 1);
+
+        assertThat(node3.getName()).isEqualTo(com3);
+        assertThat(node3.getPath()).isEqualTo(com3Parent);
+        assertThat(node3.getChildCount()).isEqualTo(1);
+
+        ExpandableCommunityTreeNode node4 = node3.getChildren().get(0);
+
+        assertThat(node4.getName()).isEqualTo(com4);
+        assertThat(node4.getChildCount()).isEqualTo(2);
+        assertThat(node4.getChildren()).isEmpty();
+    }
+
+    @Test
+    public void generateTree_subTreeDepthZero() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.countChildrenByParentPath("/com2/com3/", 2)).willReturn(Collections.singletonMap(c3.getIdentityPath(), 1L));
+
+        ExpandableCommunityTreeNode node3 = communityService.generateTree(com3, 0);
+
+        assertThat(node3.getChildCount()).isEqualTo(1);
+        assertThat(node3.getChildren()).isEmpty();
+
+        verify(repository).findOne(com3);
+        verify(repository).countChildrenByParentPath("/com2/com3/", 2);
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generateTree_negativeDepth() {
+
+        communityService.generateTree(-1);
+    }
+
+    @Test
+    public void moveCommunity_recordsMetrics() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findOne(com1)).willReturn(c1);
+        given(repository.replacePathPrefix(any(String.class), any(String.class))).willReturn(3L);
+
+        communityService.moveCommunity(com3, com1);
+
+        assertThat(meterRegistry.get("community.operation").tag("operation", "move").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("community.repository.calls").tags("operation", "move", "method", "findOne").counter().count()).isEqualTo(2);
+        assertThat(meterRegistry.get("community.repository.calls").tags("operation", "move", "method", "replacePathPrefix").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("community.move.subtree.size").summary().totalAmount()).isEqualTo(3);
+    }
+
+    @Test
+    public void generateTree_recordsMetrics() {
+
+        communityService.generateTree();
+        communityService.generateTree();
+
+        assertThat(meterRegistry.get("community.tree.build.nodes").summary().totalAmount()).isEqualTo(7);
+        assertThat(meterRegistry.get("community.tree.cache.hits").functionCounter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("community.tree.cache.misses").functionCounter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("community.tree.cache.hit.ratio").gauge().value()).isEqualTo(0.5);
     }
 
     @Test
@@ -238,6 +585,615 @@ public class CommunityServiceTest {
         assertThat(c6Toc5).isEqualTo(1);
     }
 
+    private static void awaitLcaIndex(CommunityService service) throws InterruptedException {
+
+        for (int i = 0; i < 1000; i++) {
+            if (service.isLcaIndexCurrent()) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Common ancestor index was not built");
+    }
+
+    @Test
+    public void distanceToCommonAncestor_byName() throws Exception {
+
+        given(repository.findOne(com6)).willReturn(c6);
+        given(repository.findOne(com7)).willReturn(c7);
+
+        // Answered from the paths until the index has been built in the background
+        assertThat(communityService.distanceToCommonAncestor(com6, com7)).isEqualTo(4);
+        awaitLcaIndex(communityService);
+
+        int[] distances = communityService.distancesToCommonAncestor(Arrays.asList(
+                new DistanceQuery(com1, com1),
+                new DistanceQuery(com7, com6),
+                new DistanceQuery(com6, com5)
+        ));
+
+        assertThat(distances).containsExactly(0, 2, 1);
+
+        verify(repository).findOne(com6);
+        verify(repository).findOne(com7);
+        verify(repository, times(1)).streamAllInTreeOrder();
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void distancesToCommonAncestor_sameFromPathsAsFromIndex() throws Exception {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityService service = new CommunityService(inMemory, new CommunityTreeCache(), changeFeed, new CommunityMetrics(new SimpleMeterRegistry()), new CommunityProperties());
+
+        List<DistanceQuery> queries = new ArrayList<>();
+        List<Integer> fromPaths = new ArrayList<>();
+        for (Community from : Arrays.asList(c1, c2, c3, c4, c5, c6, c7)) {
+            for (Community to : Arrays.asList(c1, c2, c3, c4, c5, c6, c7)) {
+                queries.add(new DistanceQuery(from.getName(), to.getName()));
+                fromPaths.add(service.distanceToCommonAncestor(from, to));
+            }
+        }
+
+        service.distancesToCommonAncestor(queries);
+        awaitLcaIndex(service);
+
+        assertThat(service.distancesToCommonAncestor(queries)).containsExactly(fromPaths.stream().mapToInt(Integer::intValue).toArray());
+
+        // A change leaves the index out of date, and the next query is answered from the paths of the communities
+        service.createCommunity("com8", com5);
+        assertThat(service.distanceToCommonAncestor("com8", com6)).isEqualTo(2);
+        awaitLcaIndex(service);
+        assertThat(service.distanceToCommonAncestor("com8", com6)).isEqualTo(2);
+    }
+
+    @Test
+    public void treeSnapshot_loadedWhenStampMatches() throws Exception {
+
+        given(repository.getTreeStamp()).willReturn(5L);
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+        assertThat(communityService.writeTreeSnapshot(file)).isEqualTo(7);
+
+        CommunityService restarted = new CommunityService(repository, new CommunityTreeCache(), changeFeed, new CommunityMetrics(meterRegistry), new CommunityProperties());
+        assertThat(restarted.loadTreeSnapshot(file)).isTrue();
+
+        List<CommunityTreeNode> tree = restarted.generateTree();
+        assertThat(tree).containsExactly(new CommunityTreeNode(com1, com1Parent), new CommunityTreeNode(com2, com2Parent));
+        assertThat(tree.get(1).getChildren().get(0).getChildren().get(0).getChildren())
+                .containsExactly(new CommunityTreeNode(com5, com5Parent), new CommunityTreeNode(com6, com6Parent));
+
+        verify(repository, times(1)).streamAllInTreeOrder();
+        // Also read by the restarted instance checking for foreign writes before serving the tree
+        verify(repository, times(4)).getTreeStamp();
+        verify(repository, times(2)).findUnfinishedMoves();
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void treeSnapshot_ignoredWhenTreeWrittenSince() throws Exception {
+
+        given(repository.getTreeStamp()).willReturn(5L, 6L);
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+        communityService.writeTreeSnapshot(file);
+
+        CommunityService restarted = new CommunityService(repository, new CommunityTreeCache(), changeFeed, new CommunityMetrics(meterRegistry), new CommunityProperties());
+        assertThat(restarted.loadTreeSnapshot(file)).isFalse();
+
+        restarted.generateTree();
+
+        verify(repository, times(2)).streamAllInTreeOrder();
+    }
+
+    @Test
+    public void treeSnapshot_neitherWrittenNorLoadedWhileMoveUnfinished() throws Exception {
+
+        AtomicInteger batchesLeft = new AtomicInteger(1);
+        InMemoryCommunityRepository inMemory = failingAfterBatches(batchesLeft);
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityService service = batchedMoveService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+
+        awaitStopped(service, service.startMove(com3, com1).getId());
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+        assertThat(service.writeTreeSnapshot(file)).isEqualTo(0);
+        assertThat(file.toFile()).doesNotExist();
+
+        // Even a snapshot of the split tree at the current stamp, as an earlier version would have written, is refused
+        try (CloseableIterator<Community> communities = inMemory.streamAllInTreeOrder()) {
+            new CommunityTreeSnapshotFormat().write(file, inMemory.getTreeStamp(), communities);
+        }
+
+        CommunityService restarted = batchedMoveService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+        assertThat(restarted.loadTreeSnapshot(file)).isFalse();
+        assertThat(restarted.hasUnfinishedMoves()).isTrue();
+        assertThat(restarted.getTreeSnapshot().isCached()).isFalse();
+    }
+
+    @Test
+    public void foreignWrite_dropsCachedTreeAndMovesChangeVersion() throws Exception {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+
+        CommunityProperties properties = new CommunityProperties();
+        properties.getTree().setStampCheckIntervalMillis(1);
+        CommunityChangeFeed feed = new CommunityChangeFeed(properties);
+        CommunityService service = new CommunityService(inMemory, new CommunityTreeCache(), feed, new CommunityMetrics(new SimpleMeterRegistry()), properties);
+
+        assertThat(service.generateTree()).hasSize(2);
+        service.createCommunity("local", null);
+        Thread.sleep(5);
+
+        long version = service.getChangeVersion();
+        assertThat(version).isEqualTo(1);
+        assertThat(service.generateTree()).hasSize(3);
+
+        // Another instance creates a root community
+        inMemory.save(new Community("foreign", "/"));
+        inMemory.advanceTreeStamp();
+        Thread.sleep(5);
+
+        assertThat(service.getChangeVersion()).isEqualTo(version + 1);
+        assertThat(feed.since(version)).isNull();
+        assertThat(service.generateTree()).extracting(CommunityTreeNode::getName).contains("foreign");
+    }
+
+    @Test
+    public void treeSnapshot_missing() throws Exception {
+
+        assertThat(communityService.loadTreeSnapshot(folder.getRoot().toPath().resolve("tree.snapshot"))).isFalse();
+
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void importCommunities() {
+
+        communityService.generateTree();
+
+        long imported = communityService.importCommunities(Arrays.asList(new Community("new1", "/"), new Community("new2", "/new1/")).iterator());
+
+        assertThat(imported).isEqualTo(2);
+
+        verify(repository).bulkInsert(Arrays.asList(new Community("new1", "/"), new Community("new2", "/new1/")));
+        verify(repository).advanceTreeStamp();
+
+        // The tree is read again rather than patched
+        communityService.generateTree();
+        verify(repository, times(2)).streamAllInTreeOrder();
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test
+    public void getStats() {
+
+        given(repository.findOne(com2)).willReturn(c2);
+        TreeMap<Integer, Long> countsByDepth = new TreeMap<>();
+        countsByDepth.put(1, 1L);
+        countsByDepth.put(2, 1L);
+        countsByDepth.put(3, 2L);
+        given(repository.countByDepth("/com2/")).willReturn(countsByDepth);
+
+        CommunityStats stats = communityService.getStats(com2);
+
+        assertThat(stats.getDepth()).isEqualTo(0);
+        assertThat(stats.getDescendantCount()).isEqualTo(4);
+        assertThat(stats.getMaxDepth()).isEqualTo(3);
+        assertThat(stats.getLevelCounts()).containsExactly(1L, 1L, 2L);
+
+        // Served from the cache until the forest changes
+        assertThat(communityService.getStats(com2)).isEqualTo(stats);
+
+        verify(repository).findOne(com2);
+        verify(repository).countByDepth("/com2/");
+        verifyNoMoreInteractions(repository);
+
+        communityService.createCommunity("new1", null);
+        communityService.getStats(com2);
+
+        verify(repository, times(2)).countByDepth("/com2/");
+    }
+
+    @Test
+    public void getStats_leaf() {
+
+        given(repository.findOne(com5)).willReturn(c5);
+        given(repository.countByDepth("/com2/com3/com4/com5/")).willReturn(new TreeMap<>());
+
+        CommunityStats stats = communityService.getStats(com5);
+
+        assertThat(stats.getDescendantCount()).isEqualTo(0);
+        assertThat(stats.getMaxDepth()).isEqualTo(3);
+        assertThat(stats.getLevelCounts()).isEmpty();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getStats_missingCommunity() {
+        communityService.getStats("missing");
+    }
+
+    private static CloseableIterator<Community> closeableIterator(Community... communities) {
+
+        Iterator<Community> iterator = Arrays.asList(communities).iterator();
+
+        return new CloseableIterator<Community>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Community next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Test
+    public void renameCommunity_rewritesDescendantPaths() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.replacePathPrefix(any(String.class), any(String.class))).willReturn(3L);
+        willAnswer(i -> {
+            i.getArgumentAt(0, Community.class).setName(i.getArgumentAt(1, String.class));
+            return null;
+        }).given(repository).rename(any(Community.class), any(String.class));
+
+        Community renamed = communityService.renameCommunity(com3, "com3b");
+
+        assertThat(renamed.getName()).isEqualTo("com3b");
+        assertThat(changeFeed.since(0).get(0).getType()).isEqualTo(CommunityChangeEvent.Type.RENAMED);
+
+        verify(repository).findOne(com3);
+        verify(repository).findOne("com3b");
+        verify(repository).rename(c3, "com3b");
+        verify(repository).replacePathPrefix("/com2/com3/", "/com2/com3b/");
+        verify(repository).advanceTreeStamp();
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void renameCommunity_nameTaken() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.findOne(com4)).willReturn(c4);
+
+        communityService.renameCommunity(com3, com4);
+    }
+
+    @Test
+    public void keysSchema_pathsBuiltFromKeys() {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        CommunityService keysService = keysSchemaService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+
+        keysService.createCommunity(com1, null);
+        keysService.createCommunities(Arrays.asList(new NewCommunity(com2, com1), new NewCommunity(com3, com2)));
+        Community moved = keysService.moveCommunity(com3, com1);
+
+        assertThat(inMemory.findOne(com1).getKey()).isEqualTo("000000");
+        assertThat(inMemory.findOne(com2).getPath()).isEqualTo("/000000/");
+        assertThat(moved.getPath()).isEqualTo("/000000/");
+        assertThat(keysService.getAncestors(com3).stream().map(Community::getName).collect(Collectors.toList())).containsExactly(com1);
+
+        List<CommunityTreeNode> tree = keysService.generateTree();
+        assertThat(tree).containsExactly(new CommunityTreeNode(com1, "000000", "/"));
+        assertThat(tree.get(0).getChildren()).extracting(CommunityTreeNode::getName).containsExactly(com2, com3);
+    }
+
+    @Test
+    public void keysSchema_renameLeavesDescendantsUntouched() {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        CommunityChangeFeed keysChangeFeed = new CommunityChangeFeed(new CommunityProperties());
+        CommunityService keysService = keysSchemaService(inMemory, keysChangeFeed);
+
+        keysService.createCommunities(Arrays.asList(new NewCommunity(com1, null), new NewCommunity(com2, com1), new NewCommunity(com3, com2)));
+        keysService.generateTree();
+        Community before = inMemory.findOne(com3);
+
+        keysService.renameCommunity(com2, "com2b");
+
+        assertThat(inMemory.findOne(com2)).isNull();
+        assertThat(inMemory.findOne(com3)).isEqualTo(before);
+        assertThat(keysService.getAncestors(com3).stream().map(Community::getName).collect(Collectors.toList())).containsExactly(com1, "com2b");
+        assertThat(keysChangeFeed.since(0)).extracting(CommunityChangeEvent::getSubTreeSize).endsWith(1L);
+
+        ExpandableCommunityTreeNode root = keysService.generateTree(com1, 2);
+        assertThat(root.getChildren()).extracting(ExpandableCommunityTreeNode::getName).containsExactly("com2b");
+        assertThat(keysService.generateTree().get(0).getChildren().get(0).getName()).isEqualTo("com2b");
+    }
+
+    @Test
+    public void streamCommunityNames_pages() {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        inMemory.bulkInsert(Arrays.asList(c2, c1, c3, c7, c4));
+        CommunityService service = new CommunityService(inMemory, new CommunityTreeCache(), changeFeed, new CommunityMetrics(meterRegistry), new CommunityProperties());
+
+        List<List<String>> pages = new ArrayList<>();
+        String after = null;
+        do {
+            List<String> page = new ArrayList<>();
+            try (CloseableIterator<String> names = service.streamCommunityNames(after, 2)) {
+                names.forEachRemaining(page::add);
+            }
+            pages.add(page);
+            after = page.isEmpty() ? null : page.get(page.size() - 1);
+        } while (after != null);
+
+        assertThat(pages).containsExactly(Arrays.asList(com1, com2), Arrays.asList(com3, com4), Collections.singletonList(com7), Collections.emptyList());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void streamCommunityNames_negativeLimit() {
+        communityService.streamCommunityNames(null, -1);
+    }
+
+    private CommunityService batchedMoveService(CommunityRepository repository, CommunityChangeFeed changeFeed) {
+
+        CommunityProperties properties = new CommunityProperties();
+        properties.getMoves().setBatchSize(2);
+
+        return new CommunityService(repository, new CommunityTreeCache(), changeFeed, new CommunityMetrics(new SimpleMeterRegistry()), properties);
+    }
+
+    /**
+     * An in-memory repository whose batched rewrites fail once the given number of them have been made
+     */
+    private static InMemoryCommunityRepository failingAfterBatches(AtomicInteger batchesLeft) {
+
+        return new InMemoryCommunityRepository() {
+            @Override
+            public synchronized long replacePathPrefix(String oldPrefix, String newPrefix, boolean withAncestors, int limit) {
+                if (batchesLeft.getAndDecrement() <= 0) {
+                    throw new IllegalStateException("database unavailable");
+                }
+                return super.replacePathPrefix(oldPrefix, newPrefix, withAncestors, limit);
+            }
+        };
+    }
+
+    private static CommunityMove awaitStopped(CommunityService service, String id) throws InterruptedException {
+
+        for (int i = 0; i < 1000; i++) {
+            CommunityMove move = service.getMove(id);
+            if (!move.isRunning()) {
+                return move;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Move " + id + " did not stop");
+    }
+
+    @Test
+    public void startMove_rewritesDescendantsInBatches() throws Exception {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityChangeFeed batchedChangeFeed = new CommunityChangeFeed(new CommunityProperties());
+        CommunityService service = batchedMoveService(inMemory, batchedChangeFeed);
+        service.generateTree();
+
+        CommunityMove started = service.startMove(com3, com1);
+
+        assertThat(started.getDescendantCount()).isEqualTo(3);
+        assertThat(inMemory.findOne(com3).getPath()).isEqualTo("/com1/");
+
+        CommunityMove move = awaitStopped(service, started.getId());
+
+        assertThat(move.getState()).isEqualTo(CommunityMove.State.MOVED);
+        assertThat(move.getRewrittenCount()).isEqualTo(3);
+        assertThat(move.getError()).isNull();
+        assertThat(inMemory.findOne(com4).getPath()).isEqualTo("/com1/com3/");
+        assertThat(inMemory.findOne(com6).getPath()).isEqualTo("/com1/com3/com4/");
+        assertThat(batchedChangeFeed.since(0)).extracting(CommunityChangeEvent::getType).containsExactly(CommunityChangeEvent.Type.MOVED);
+        assertThat(service.getUnfinishedMoves()).isEmpty();
+        assertThat(service.generateTree().get(0).getChildren()).extracting(CommunityTreeNode::getName).containsExactly(com3, com7);
+    }
+
+    @Test
+    public void rollBackMove_restoresStoppedMove() throws Exception {
+
+        AtomicInteger batchesLeft = new AtomicInteger(1);
+        InMemoryCommunityRepository inMemory = failingAfterBatches(batchesLeft);
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        List<Community> before = inMemory.findAllByOrderByPathAsc();
+        CommunityService service = batchedMoveService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+
+        CommunityMove stopped = awaitStopped(service, service.startMove(com3, com1).getId());
+
+        assertThat(stopped.getState()).isEqualTo(CommunityMove.State.MOVING);
+        assertThat(stopped.getRewrittenCount()).isEqualTo(2);
+        assertThat(stopped.getError()).contains("database unavailable");
+        assertThat(service.getUnfinishedMoves()).extracting(CommunityMove::getId).containsExactly(stopped.getId());
 
+        batchesLeft.set(Integer.MAX_VALUE);
+        CommunityMove rolledBack = awaitStopped(service, service.rollBackMove(stopped.getId()).getId());
 
-}
\ No newline at end of file
+        assertThat(rolledBack.getState()).isEqualTo(CommunityMove.State.ROLLED_BACK);
+        assertThat(rolledBack.getRewrittenCount()).isEqualTo(2);
+        assertThat(inMemory.findAllByOrderByPathAsc()).usingElementComparatorOnFields("name", "path").containsExactlyElementsOf(before);
+    }
+
+    @Test
+    public void resumeMove_finishesStoppedMove() throws Exception {
+
+        AtomicInteger batchesLeft = new AtomicInteger(1);
+        InMemoryCommunityRepository inMemory = failingAfterBatches(batchesLeft);
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityService service = batchedMoveService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+
+        CommunityMove stopped = awaitStopped(service, service.startMove(com3, com1).getId());
+
+        // The sub tree is split until the move is finished, so nothing overlapping it can move
+        for (List<String> refused : Arrays.asList(Arrays.asList(com2, com7), Arrays.asList(com4, com7), Arrays.asList(com1, com2))) {
+            try {
+                service.moveCommunity(refused.get(0), refused.get(1));
+                throw new AssertionError("Expected the move of " + refused.get(0) + " to be refused");
+            } catch (IllegalStateException e) {
+                assertThat(e).hasMessageContaining(stopped.getId());
+            }
+        }
+        service.createCommunity("com8", com6);
+
+        batchesLeft.set(Integer.MAX_VALUE);
+        CommunityMove resumed = awaitStopped(service, service.resumeMove(stopped.getId()).getId());
+
+        assertThat(resumed.getState()).isEqualTo(CommunityMove.State.MOVED);
+        assertThat(resumed.getRewrittenCount()).isEqualTo(4);
+        assertThat(resumed.getError()).isNull();
+        assertThat(inMemory.findOne("com8").getPath()).isEqualTo("/com1/com3/com4/com6/");
+        assertThat(inMemory.findByPathRegexOrderByPathAsc("^/com2/com3/")).isEmpty();
+
+        service.moveCommunity(com4, com7);
+        assertThat(inMemory.findOne(com5).getPath()).isEqualTo("/com1/com7/com4/");
+    }
+
+    @Test
+    public void getTreeSnapshot_notCachedWhileMoveUnfinished() throws Exception {
+
+        AtomicInteger batchesLeft = new AtomicInteger(1);
+        InMemoryCommunityRepository inMemory = failingAfterBatches(batchesLeft);
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityService service = batchedMoveService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+
+        CommunityMove stopped = awaitStopped(service, service.startMove(com3, com1).getId());
+
+        // Part of the sub tree is still at its old path, so the tree read is missing it and must not be kept
+        CommunityTreeSnapshot split = service.getTreeSnapshot();
+        assertThat(split.isCached()).isFalse();
+        assertThat(service.getTreeSnapshot()).isNotSameAs(split);
+
+        batchesLeft.set(Integer.MAX_VALUE);
+        awaitStopped(service, service.resumeMove(stopped.getId()).getId());
+
+        CommunityTreeSnapshot moved = service.getTreeSnapshot();
+        assertThat(moved.isCached()).isTrue();
+        assertThat(service.getTreeSnapshot()).isSameAs(moved);
+        assertThat(moved.getRoots().get(0).getChildren()).extracting(CommunityTreeNode::getName).containsExactly(com3, com7);
+        assertThat(moved.getRoots().get(0).getChildren().get(0).getChildren()).extracting(CommunityTreeNode::getName).containsExactly(com4);
+    }
+
+    @Test
+    public void getStats_notCachedWhileMoveUnfinished() throws Exception {
+
+        AtomicInteger batchesLeft = new AtomicInteger(1);
+        InMemoryCommunityRepository inMemory = failingAfterBatches(batchesLeft);
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityService service = batchedMoveService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+
+        CommunityMove stopped = awaitStopped(service, service.startMove(com3, com1).getId());
+
+        assertThat(service.hasUnfinishedMoves()).isTrue();
+        assertThat(service.getStats(com1).getDescendantCount()).isGreaterThan(1);
+
+        // A roll back leaves the change version where it was, so nothing counted from the split tree may be served
+        batchesLeft.set(Integer.MAX_VALUE);
+        awaitStopped(service, service.rollBackMove(stopped.getId()).getId());
+
+        assertThat(service.hasUnfinishedMoves()).isFalse();
+        assertThat(service.getStats(com1).getLevelCounts()).containsExactly(1L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resumeMove_alreadyMoved() throws Exception {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityService service = batchedMoveService(inMemory, new CommunityChangeFeed(new CommunityProperties()));
+
+        CommunityMove moved = awaitStopped(service, service.startMove(com3, null).getId());
+
+        service.resumeMove(moved.getId());
+    }
+
+    @Test
+    public void deleteCommunity_cascadeRemovesSubTree() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.deleteSubTree(com3, "/com2/com3/")).willReturn(4L);
+
+        assertThat(communityService.deleteCommunity(com3, true)).isEqualTo(4);
+
+        List<CommunityChangeEvent> changes = changeFeed.since(0);
+        assertThat(changes).hasSize(1);
+        assertThat(changes.get(0).getType()).isEqualTo(CommunityChangeEvent.Type.DELETED);
+        assertThat(changes.get(0).getOldPath()).isEqualTo(com3Parent);
+        assertThat(changes.get(0).getPath()).isNull();
+        assertThat(changes.get(0).getSubTreeSize()).isEqualTo(4);
+
+        verify(repository).findOne(com3);
+        verify(repository).deleteSubTree(com3, "/com2/com3/");
+        verify(repository).advanceTreeStamp();
+        verifyNoMoreInteractions(repository);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deleteCommunity_withChildrenNeedsCascade() {
+
+        given(repository.findOne(com3)).willReturn(c3);
+        given(repository.existsByPath("/com2/com3/")).willReturn(true);
+
+        communityService.deleteCommunity(com3, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deleteCommunity_missing() {
+        communityService.deleteCommunity(com3, true);
+    }
+
+    @Test
+    public void deleteCommunity_updatesCachedTree() {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        CommunityService service = new CommunityService(inMemory, new CommunityTreeCache(), changeFeed, new CommunityMetrics(meterRegistry), new CommunityProperties());
+
+        service.generateTree();
+
+        assertThat(service.deleteCommunity(com7, false)).isEqualTo(1);
+        assertThat(service.deleteCommunity(com4, true)).isEqualTo(3);
+
+        assertThat(inMemory.count()).isEqualTo(3);
+
+        List<CommunityTreeNode> tree = service.generateTree();
+        assertThat(tree).extracting(CommunityTreeNode::getName).containsExactly(com1, com2);
+        assertThat(tree.get(0).getChildren()).isEmpty();
+        assertThat(tree.get(1).getChildren()).extracting(CommunityTreeNode::getName).containsExactly(com3);
+        assertThat(tree.get(1).getChildren().get(0).getChildren()).isEmpty();
+
+        // The names of deleted communities can be used again
+        service.createCommunity(com4, com1);
+        assertThat(service.generateTree().get(0).getChildren()).extracting(CommunityTreeNode::getName).containsExactly(com4);
+    }
+
+    @Test
+    public void createCommunity_parentPathCachedUntilMoved() {
+
+        InMemoryCommunityRepository inMemory = new InMemoryCommunityRepository();
+        inMemory.bulkInsert(Arrays.asList(c1, c2, c3, c4, c5, c6, c7));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CommunityService service = new CommunityService(inMemory, new CommunityTreeCache(), changeFeed, new CommunityMetrics(registry), new CommunityProperties());
+
+        service.createCommunity("com8", com4);
+        service.createCommunity("com9", com4);
+
+        // Only the names being created were looked up the second time
+        assertThat(registry.get("community.repository.calls").tags("operation", "create", "method", "findOne").counter().count()).isEqualTo(3);
+        assertThat(registry.get("community.path.cache.hits").functionCounter().count()).isEqualTo(1);
+
+        // Moving an ancestor drops the cached path of com4 along with it
+        service.moveCommunity(com3, com1);
+
+        assertThat(service.createCommunity("com10", com4).getPath()).isEqualTo("/com1/com3/com4/");
+        assertThat(service.createCommunity("com11", "com8").getPath()).isEqualTo("/com1/com3/com4/com8/");
+    }
+}
@@ -0,0 +1,53 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.model.CommunityStats;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityStatsCacheTest {
+
+    private final CommunityStats com1Stats = new CommunityStats("com1", 0, Arrays.asList(2L, 3L));
+    private final CommunityStats com2Stats = new CommunityStats("com2", 0, Arrays.asList(1L));
+    private final CommunityStats com3Stats = new CommunityStats("com3", 1, Arrays.asList(4L));
+
+    @Test
+    public void get_onlyAtTheCachedVersion() {
+
+        CommunityStatsCache cache = new CommunityStatsCache(2);
+        cache.put("com1", 3, com1Stats);
+
+        assertThat(cache.get("com1", 3)).isSameAs(com1Stats);
+        assertThat(cache.get("com1", 4)).isNull();
+        assertThat(cache.get("com2", 3)).isNull();
+
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void put_keepsLaterVersion() {
+
+        CommunityStatsCache cache = new CommunityStatsCache(2);
+        cache.put("com1", 4, com1Stats);
+        cache.put("com1", 3, new CommunityStats("com1", 0, Arrays.asList(1L)));
+
+        assertThat(cache.get("com1", 4)).isSameAs(com1Stats);
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+
+        CommunityStatsCache cache = new CommunityStatsCache(2);
+        cache.put("com1", 1, com1Stats);
+        cache.put("com2", 1, com2Stats);
+        cache.get("com1", 1);
+        cache.put("com3", 1, com3Stats);
+
+        assertThat(cache.get("com1", 1)).isSameAs(com1Stats);
+        assertThat(cache.get("com2", 1)).isNull();
+        assertThat(cache.get("com3", 1)).isSameAs(com3Stats);
+    }
+}
@@ -0,0 +1,127 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityTreeAssemblerTest {
+
+    private final CommunityTreeAssembler assembler = new CommunityTreeAssembler();
+
+    @Test
+    public void assemble() {
+
+        List<CommunityTreeNode> roots = assembler.assemble(Arrays.asList(
+                new Community("com1", "/"),
+                new Community("com7", "/com1/"),
+                new Community("com2", "/"),
+                new Community("com3", "/com2/"),
+                new Community("com4", "/com2/com3/"),
+                new Community("com5", "/com2/com3/com4/"),
+                new Community("com6", "/com2/com3/com4/"),
+                new Community("com8", "/com2/")
+        ).iterator());
+
+        assertThat(names(roots)).containsExactly("com1", "com2");
+        assertThat(names(roots.get(0).getChildren())).containsExactly("com7");
+        assertThat(names(roots.get(1).getChildren())).containsExactly("com3", "com8");
+
+        CommunityTreeNode com4 = roots.get(1).getChildren().get(0).getChildren().get(0);
+        assertThat(com4.getPath()).isEqualTo("/com2/com3/");
+        assertThat(names(com4.getChildren())).containsExactly("com5", "com6");
+    }
+
+    @Test
+    public void assemble_namesSharingAPrefix() {
+
+        List<CommunityTreeNode> roots = assembler.assemble(Arrays.asList(
+                new Community("com1", "/"),
+                new Community("com1", "/com1/"),
+                new Community("com11", "/com1/com1/"),
+                new Community("com12", "/com1/")
+        ).iterator());
+
+        assertThat(names(roots)).containsExactly("com1");
+        assertThat(names(roots.get(0).getChildren())).containsExactly("com1", "com12");
+        assertThat(names(roots.get(0).getChildren().get(0).getChildren())).containsExactly("com11");
+    }
+
+    @Test
+    public void assemble_skipsOrphans() {
+
+        List<CommunityTreeNode> roots = assembler.assemble(Arrays.asList(
+                new Community("com1", "/"),
+                new Community("com9", "/missing/"),
+                new Community("com2", "/")
+        ).iterator());
+
+        assertThat(names(roots)).containsExactly("com1", "com2");
+        assertThat(roots.get(0).getChildren()).isEmpty();
+    }
+
+    @Test
+    public void assemble_skipsOrphansWithoutClosingTheirAncestors() {
+
+        List<CommunityTreeNode> roots = assembler.assemble(Arrays.asList(
+                new Community("com1", "/"),
+                new Community("com2", "/com1/"),
+                new Community("com9", "/com1/missing/"),
+                new Community("com10", "/com1/missing/com9/"),
+                new Community("com3", "/com1/"),
+                new Community("com4", "/com1/com3/")
+        ).iterator());
+
+        assertThat(names(roots)).containsExactly("com1");
+        assertThat(names(roots.get(0).getChildren())).containsExactly("com2", "com3");
+        assertThat(names(roots.get(0).getChildren().get(1).getChildren())).containsExactly("com4");
+    }
+
+    @Test
+    public void assembleBelow() {
+
+        CommunityTreeNode com2 = new CommunityTreeNode("com2", "/com1/");
+
+        assembler.assembleBelow(com2, Arrays.asList(
+                new Community("com3", "/com1/com2/"),
+                new Community("com4", "/com1/com2/com3/"),
+                new Community("com5", "/com1/com2/")
+        ).iterator());
+
+        assertThat(names(com2.getChildren())).containsExactly("com3", "com5");
+        assertThat(names(com2.getChildren().get(0).getChildren())).containsExactly("com4");
+    }
+
+    @Test
+    public void assemble_deepChain() {
+
+        int depth = 10000;
+        List<Community> chain = new ArrayList<>(depth);
+        StringBuilder path = new StringBuilder("/");
+        for (int i = 0; i < depth; i++) {
+            String name = "c" + i;
+            chain.add(new Community(name, path.toString()));
+            path.append(name).append('/');
+        }
+
+        List<CommunityTreeNode> roots = assembler.assemble(chain.iterator());
+
+        CommunityTreeNode node = roots.get(0);
+        int count = 1;
+        while (!node.getChildren().isEmpty()) {
+            node = node.getChildren().get(0);
+            count++;
+        }
+        assertThat(count).isEqualTo(depth);
+    }
+
+    private static List<String> names(List<CommunityTreeNode> nodes) {
+        return nodes.stream().map(CommunityTreeNode::getName).collect(Collectors.toList());
+    }
+}
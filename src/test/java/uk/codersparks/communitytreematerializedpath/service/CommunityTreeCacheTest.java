@@ -0,0 +1,211 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CommunityTreeCacheTest {
+
+    private CommunityTreeCache treeCache;
+
+    private int loads;
+
+    // Hierachy
+    //  root
+    //      com1
+    //      com2
+    //          com3
+    //              com4
+    private final Supplier<List<CommunityTreeNode>> loader = () -> {
+        loads++;
+
+        CommunityTreeNode com1 = new CommunityTreeNode("com1", "/");
+        CommunityTreeNode com2 = new CommunityTreeNode("com2", "/");
+        CommunityTreeNode com3 = new CommunityTreeNode("com3", "/com2/");
+        CommunityTreeNode com4 = new CommunityTreeNode("com4", "/com2/com3/");
+        com2.getChildren().add(com3);
+        com3.getChildren().add(com4);
+
+        List<CommunityTreeNode> roots = new ArrayList<>();
+        roots.add(com1);
+        roots.add(com2);
+        return roots;
+    };
+
+    @Before
+    public void setup() {
+        treeCache = new CommunityTreeCache();
+        loads = 0;
+    }
+
+    @Test
+    public void getSnapshot_loadsOnce() {
+
+        CommunityTreeSnapshot first = treeCache.getSnapshot(loader);
+        CommunityTreeSnapshot second = treeCache.getSnapshot(loader);
+
+        assertThat(second).isSameAs(first);
+        assertThat(loads).isEqualTo(1);
+        assertThat(names(first.getRoots())).containsExactly("com1", "com2");
+    }
+
+    @Test
+    public void getSnapshot_childrenCannotBeChanged() {
+
+        treeCache.getSnapshot(loader);
+        treeCache.onCreated(new Community("com5", "/"));
+
+        for (CommunityTreeSnapshot snapshot : Arrays.asList(treeCache.getSnapshot(loader), new CommunityTreeCache().getSnapshot(loader))) {
+            CommunityTreeNode com2 = snapshot.getRoots().get(1);
+
+            assertThatThrownBy(() -> com2.getChildren().add(new CommunityTreeNode("com6", "/com2/")))
+                    .isInstanceOf(UnsupportedOperationException.class);
+            assertThatThrownBy(() -> com2.getChildren().get(0).getChildren().clear())
+                    .isInstanceOf(UnsupportedOperationException.class);
+        }
+    }
+
+    @Test
+    public void onCreated_attachesNode() {
+
+        long version = treeCache.getSnapshot(loader).getVersion();
+
+        treeCache.onCreated(new Community("com5", "/com2/com3/"));
+
+        CommunityTreeSnapshot snapshot = treeCache.getSnapshot(loader);
+
+        assertThat(loads).isEqualTo(1);
+        assertThat(snapshot.getVersion()).isGreaterThan(version);
+
+        CommunityTreeNode com3 = snapshot.getRoots().get(1).getChildren().get(0);
+        assertThat(names(com3.getChildren())).containsExactly("com4", "com5");
+        assertThat(com3.getChildren().get(1).getPath()).isEqualTo("/com2/com3/");
+    }
+
+    @Test
+    public void onMoved_reparentsSubTree() {
+
+        treeCache.getSnapshot(loader);
+
+        treeCache.onMoved(new Community("com3", "/com1/"), "/com2/");
+
+        CommunityTreeSnapshot snapshot = treeCache.getSnapshot(loader);
+
+        assertThat(loads).isEqualTo(1);
+        assertThat(snapshot.getRoots().get(1).getChildren()).isEmpty();
+
+        CommunityTreeNode com3 = snapshot.getRoots().get(0).getChildren().get(0);
+        assertThat(com3.getName()).isEqualTo("com3");
+        assertThat(com3.getPath()).isEqualTo("/com1/");
+        assertThat(com3.getChildren().get(0).getPath()).isEqualTo("/com1/com3/");
+    }
+
+    @Test
+    public void onMoved_mismatchedPathRebuildsFromLoader() {
+
+        treeCache.getSnapshot(loader);
+
+        treeCache.onMoved(new Community("com4", "/com1/"), "/com2/");
+
+        CommunityTreeSnapshot snapshot = treeCache.getSnapshot(loader);
+
+        assertThat(loads).isEqualTo(2);
+        assertThat(names(snapshot.getRoots())).containsExactly("com1", "com2");
+    }
+
+    @Test
+    public void onCreated_unknownParentRebuildsFromLoader() {
+
+        treeCache.getSnapshot(loader);
+
+        treeCache.onCreated(new Community("com6", "/unknown/"));
+
+        treeCache.getSnapshot(loader);
+
+        assertThat(loads).isEqualTo(2);
+    }
+
+    @Test
+    public void onMoved_intoOwnSubTreeRebuildsFromLoader() {
+
+        treeCache.getSnapshot(loader);
+
+        treeCache.onMoved(new Community("com2", "/com2/com3/com4/"), "/");
+
+        treeCache.getSnapshot(loader);
+
+        assertThat(loads).isEqualTo(2);
+    }
+
+    private static List<String> names(List<CommunityTreeNode> nodes) {
+        return nodes.stream().map(CommunityTreeNode::getName).collect(Collectors.toList());
+    }
+
+    @Test
+    public void onRenamed_renamesNodeAndItsDescendantsPaths() {
+
+        treeCache.getSnapshot(loader);
+
+        Community com3 = new Community("com3b", "/com2/");
+        treeCache.onRenamed(com3, "com3");
+
+        CommunityTreeSnapshot snapshot = treeCache.getSnapshot(loader);
+
+        assertThat(loads).isEqualTo(1);
+
+        CommunityTreeNode renamed = snapshot.getRoots().get(1).getChildren().get(0);
+        assertThat(renamed.getName()).isEqualTo("com3b");
+        assertThat(renamed.getChildren().get(0).getPath()).isEqualTo("/com2/com3b/");
+
+        // Children of the renamed community can still be found under its new name
+        treeCache.onCreated(new Community("com5", "/com2/com3b/"));
+        assertThat(names(treeCache.getSnapshot(loader).getRoots().get(1).getChildren().get(0).getChildren())).containsExactly("com4", "com5");
+        assertThat(loads).isEqualTo(1);
+    }
+
+    @Test
+    public void onDeleted_removesSubTree() {
+
+        treeCache.getSnapshot(loader);
+
+        treeCache.onDeleted(new Community("com3", "/com2/"));
+
+        CommunityTreeSnapshot snapshot = treeCache.getSnapshot(loader);
+
+        assertThat(loads).isEqualTo(1);
+        assertThat(names(snapshot.getRoots())).containsExactly("com1", "com2");
+        assertThat(snapshot.getRoots().get(1).getChildren()).isEmpty();
+
+        // A deleted community is no longer a parent new communities can be attached to
+        treeCache.onCreated(new Community("com5", "/com2/com3/com4/"));
+        treeCache.getSnapshot(loader);
+        assertThat(loads).isEqualTo(2);
+    }
+
+    @Test
+    public void load_rejectedWhenChangedDuringRead() {
+
+        long changeCount = treeCache.getChangeCount();
+        List<CommunityTreeNode> tree = loader.get();
+
+        treeCache.onCreated(new Community("com5", "/com2/com3/"));
+
+        assertThat(treeCache.load(tree, changeCount)).isNull();
+        assertThat(treeCache.getLoadedSnapshot()).isNull();
+
+        CommunityTreeSnapshot snapshot = treeCache.load(loader.get(), treeCache.getChangeCount());
+        assertThat(names(snapshot.getRoots())).containsExactly("com1", "com2");
+        assertThat(treeCache.getLoadedSnapshot()).isSameAs(snapshot);
+    }
+}
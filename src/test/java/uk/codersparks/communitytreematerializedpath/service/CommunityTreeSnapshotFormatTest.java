@@ -0,0 +1,100 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityTreeSnapshotFormatTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CommunityTreeSnapshotFormat format = new CommunityTreeSnapshotFormat();
+
+    private final List<Community> communities = Arrays.asList(
+            new Community("com1", "/"),
+            new Community("com7", "/com1/"),
+            new Community("com2", "/"),
+            new Community("cöm3", "/com2/"),
+            new Community("com4", "/com2/cöm3/"),
+            new Community("com5", "/com2/cöm3/com4/"),
+            new Community("com6", "/com2/cöm3/com4/"),
+            new Community("com8", "/com2/"),
+            new Community("com9", "/missing/")
+    );
+
+    @Test
+    public void writeAndRead() throws IOException {
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+
+        assertThat(format.write(file, 42, communities.iterator())).isEqualTo(8);
+
+        List<CommunityTreeNode> roots = format.read(file, 42);
+
+        assertThat(roots).isEqualTo(new CommunityTreeAssembler().assemble(communities.iterator()));
+        assertThat(roots.get(1).getChildren().get(0).getChildren()).containsExactly(new CommunityTreeNode("com4", "/com2/cöm3/"));
+        assertThat(roots.get(1).getChildren().get(0).getChildren().get(0).getChildren())
+                .containsExactly(new CommunityTreeNode("com5", "/com2/cöm3/com4/"), new CommunityTreeNode("com6", "/com2/cöm3/com4/"));
+        assertThat(roots.get(1).getChildren().get(1)).isEqualTo(new CommunityTreeNode("com8", "/com2/"));
+    }
+
+    @Test
+    public void read_differentStamp() throws IOException {
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+        format.write(file, 42, communities.iterator());
+
+        assertThat(format.read(file, 43)).isNull();
+    }
+
+    @Test
+    public void write_replacesExistingSnapshot() throws IOException {
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+        format.write(file, 1, communities.iterator());
+        format.write(file, 2, Arrays.asList(new Community("com1", "/")).iterator());
+
+        assertThat(format.read(file, 2)).containsExactly(new CommunityTreeNode("com1", "/"));
+        assertThat(folder.getRoot().list()).containsExactly("tree.snapshot");
+    }
+
+    @Test(expected = IOException.class)
+    public void read_truncated() throws IOException {
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+        format.write(file, 42, communities.iterator());
+
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+
+        format.read(file, 42);
+    }
+
+    @Test
+    public void readWrite_keys() throws IOException {
+
+        Community root = new Community("com1", "/");
+        root.setKey("000000");
+        Community child = new Community("com2", "/000000/");
+        child.setKey("000001");
+
+        Path file = folder.getRoot().toPath().resolve("tree.snapshot");
+        format.write(file, 1, Arrays.asList(root, child).iterator());
+
+        List<CommunityTreeNode> roots = format.read(file, 1);
+
+        assertThat(roots).containsExactly(new CommunityTreeNode("com1", "000000", "/"));
+        assertThat(roots.get(0).getChildren()).containsExactly(new CommunityTreeNode("com2", "000001", "/000000/"));
+    }
+}
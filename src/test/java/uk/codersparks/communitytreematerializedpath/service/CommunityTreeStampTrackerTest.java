@@ -0,0 +1,110 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class CommunityTreeStampTrackerTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final AtomicLong stamp = new AtomicLong(5);
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private CommunityTreeStampTracker tracker(long checkIntervalSeconds) {
+        return new CommunityTreeStampTracker(() -> {
+            reads.incrementAndGet();
+            return stamp.get();
+        }, checkIntervalSeconds, TimeUnit.SECONDS, now::get);
+    }
+
+    private void elapse() {
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void checkForeignAdvances_localAdvancesNotReported() {
+
+        CommunityTreeStampTracker tracker = tracker(10);
+
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+
+        assertThat(tracker.advance(stamp::incrementAndGet)).isEqualTo(6);
+        assertThat(tracker.advance(stamp::incrementAndGet)).isEqualTo(7);
+        elapse();
+
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+    }
+
+    @Test
+    public void checkForeignAdvances_foreignAdvanceReportedOnce() {
+
+        CommunityTreeStampTracker tracker = tracker(10);
+
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+
+        tracker.advance(stamp::incrementAndGet);
+        stamp.incrementAndGet();
+        elapse();
+
+        assertThat(tracker.checkForeignAdvances()).isTrue();
+
+        elapse();
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+    }
+
+    @Test
+    public void checkForeignAdvances_readsOncePerInterval() {
+
+        CommunityTreeStampTracker tracker = tracker(10);
+
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+        stamp.incrementAndGet();
+
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+        assertThat(reads.get()).isEqualTo(1);
+
+        elapse();
+        assertThat(tracker.checkForeignAdvances()).isTrue();
+        assertThat(reads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void checkForeignAdvances_failedAdvanceNotCounted() {
+
+        CommunityTreeStampTracker tracker = tracker(10);
+
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+
+        try {
+            tracker.advance(() -> {
+                throw new IllegalStateException("Stamp not advanced");
+            });
+            fail("Expected the failure to be rethrown");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("Stamp not advanced");
+        }
+
+        stamp.incrementAndGet();
+        elapse();
+
+        assertThat(tracker.checkForeignAdvances()).isTrue();
+    }
+
+    @Test
+    public void checkForeignAdvances_noInterval_neverReads() {
+
+        CommunityTreeStampTracker tracker = tracker(0);
+
+        stamp.incrementAndGet();
+        elapse();
+
+        assertThat(tracker.checkForeignAdvances()).isFalse();
+        assertThat(reads.get()).isEqualTo(0);
+    }
+}
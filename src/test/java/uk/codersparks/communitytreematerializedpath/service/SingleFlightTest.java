@@ -0,0 +1,129 @@
+package uk.codersparks.communitytreematerializedpath.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private final SingleFlight<String> singleFlight = new SingleFlight<>();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void run_concurrentCallersShareOneCall() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+
+        Future<String> first = executor.submit(() -> singleFlight.run(1, () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(release);
+            return "tree";
+        }));
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        List<Future<String>> others = new ArrayList<>();
+        for (int i = 1; i < CALLERS; i++) {
+            others.add(executor.submit(() -> singleFlight.run(1, () -> {
+                calls.incrementAndGet();
+                return "other";
+            })));
+        }
+
+        // Wait for the other callers to join the call in flight before letting it finish
+        while (singleFlight.getCoalescedCount() < CALLERS - 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo("tree");
+        for (Future<String> other : others) {
+            assertThat(other.get(10, TimeUnit.SECONDS)).isEqualTo("tree");
+        }
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(singleFlight.getCallCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void run_laterGenerationMakesItsOwnCall() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> first = executor.submit(() -> singleFlight.run(1, () -> {
+            started.countDown();
+            await(release);
+            return "before";
+        }));
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(singleFlight.run(2, () -> "after")).isEqualTo("after");
+
+        release.countDown();
+        assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo("before");
+        assertThat(singleFlight.getCallCount()).isEqualTo(2);
+        assertThat(singleFlight.getCoalescedCount()).isZero();
+    }
+
+    @Test
+    public void run_failureIsSharedAndNotRemembered() throws Exception {
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> first = executor.submit(() -> singleFlight.run(1, () -> {
+            started.countDown();
+            await(release);
+            throw new IllegalStateException("database unavailable");
+        }));
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        Future<String> second = executor.submit(() -> singleFlight.run(1, () -> "unused"));
+        while (singleFlight.getCoalescedCount() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        for (Future<String> caller : Arrays.asList(first, second)) {
+            try {
+                caller.get(10, TimeUnit.SECONDS);
+                throw new AssertionError("Expected the call to fail");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(IllegalStateException.class).hasMessage("database unavailable");
+            }
+        }
+
+        // Nothing is in flight any more, so the next caller makes a new call
+        assertThat(singleFlight.run(1, () -> "retried")).isEqualTo("retried");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package uk.codersparks.communitytreematerializedpath.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.model.Community;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommunityTreeJsonWriterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final CommunityTreeJsonWriter writer = new CommunityTreeJsonWriter();
+
+    @Test
+    public void write_matchesSerializedTree() throws Exception {
+
+        // Hierachy
+        //  root
+        //      com1
+        //          com7
+        //      com2
+        //          com3
+        //              com4
+        //                  com5
+        //                  com6
+        List<Community> communitiesInTreeOrder = Arrays.asList(
+                new Community("com1", "/"),
+                new Community("com7", "/com1/"),
+                new Community("com2", "/"),
+                new Community("com3", "/com2/"),
+                new Community("com4", "/com2/com3/"),
+                new Community("com5", "/com2/com3/com4/"),
+                new Community("com6", "/com2/com3/com4/")
+        );
+
+        CommunityTreeNode com1 = new CommunityTreeNode("com1", "/");
+        CommunityTreeNode com7 = new CommunityTreeNode("com7", "/com1/");
+        CommunityTreeNode com2 = new CommunityTreeNode("com2", "/");
+        CommunityTreeNode com3 = new CommunityTreeNode("com3", "/com2/");
+        CommunityTreeNode com4 = new CommunityTreeNode("com4", "/com2/com3/");
+        com1.getChildren().add(com7);
+        com2.getChildren().add(com3);
+        com3.getChildren().add(com4);
+        com4.getChildren().add(new CommunityTreeNode("com5", "/com2/com3/com4/"));
+        com4.getChildren().add(new CommunityTreeNode("com6", "/com2/com3/com4/"));
+
+        StringWriter json = new StringWriter();
+        long written;
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(json)) {
+            written = writer.write(communitiesInTreeOrder.iterator(), generator);
+        }
+
+        assertThat(written).isEqualTo(7);
+        assertThat(objectMapper.readTree(json.toString())).isEqualTo(objectMapper.valueToTree(Arrays.asList(com1, com2)));
+    }
+
+    @Test
+    public void write_skipsOrphans() throws Exception {
+
+        List<Community> communitiesInTreeOrder = Arrays.asList(
+                new Community("com1", "/"),
+                new Community("com9", "/missing/"),
+                new Community("com2", "/")
+        );
+
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(json)) {
+            writer.write(communitiesInTreeOrder.iterator(), generator);
+        }
+
+        assertThat(json.toString()).isEqualTo("[{\"name\":\"com1\",\"path\":\"/\",\"children\":[]},{\"name\":\"com2\",\"path\":\"/\",\"children\":[]}]");
+    }
+
+    @Test
+    public void write_empty() throws Exception {
+
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(json)) {
+            writer.write(Arrays.<Community>asList().iterator(), generator);
+        }
+
+        assertThat(json.toString()).isEqualTo("[]");
+    }
+}
@@ -0,0 +1,74 @@
+package uk.codersparks.communitytreematerializedpath.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeNode;
+import uk.codersparks.communitytreematerializedpath.model.CommunityTreeSnapshot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VersionedResponseCacheTest {
+
+    private final VersionedResponseCache cache = new VersionedResponseCache(new ObjectMapper());
+
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final Supplier<CommunityTreeSnapshot> tree = () -> snapshot(1);
+
+    private CommunityTreeSnapshot snapshot(long version) {
+        return new CommunityTreeSnapshot(version, Collections.singletonList(new CommunityTreeNode("com" + reads.incrementAndGet(), "/")));
+    }
+
+    private static String name(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8).replaceAll(".*\"name\":\"(com\\d+)\".*", "$1");
+    }
+
+    @Test
+    public void get_sameVersion_servesSerializedBytes() throws Exception {
+
+        byte[] first = cache.get(1, tree);
+        byte[] second = cache.get(1, tree);
+
+        assertThat(name(first)).isEqualTo("com1");
+        assertThat(second).isSameAs(first);
+        assertThat(reads.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void get_newVersion_replacesCachedBytes() throws Exception {
+
+        cache.get(1, tree);
+        byte[] newer = cache.get(2, tree);
+
+        assertThat(name(newer)).isEqualTo("com2");
+        assertThat(cache.get(2, tree)).isSameAs(newer);
+        assertThat(reads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void get_olderVersion_doesNotReplaceCachedBytes() throws Exception {
+
+        byte[] newer = cache.get(2, tree);
+        cache.get(1, tree);
+
+        assertThat(cache.get(2, tree)).isSameAs(newer);
+        assertThat(reads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void get_uncachedTree_isSerializedEveryTime() throws Exception {
+
+        Supplier<CommunityTreeSnapshot> uncached = () -> snapshot(CommunityTreeSnapshot.UNCACHED_VERSION);
+
+        cache.get(1, uncached);
+        byte[] second = cache.get(1, uncached);
+
+        assertThat(name(second)).isEqualTo("com2");
+        assertThat(reads.get()).isEqualTo(2);
+    }
+}